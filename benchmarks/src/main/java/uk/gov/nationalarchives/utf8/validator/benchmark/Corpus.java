@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Corpora of text for benchmarking.
+ *
+ * Each is generated from a fixed seed, so the
+ * same bytes are produced on every run.
+ *
+ * @author agent <agent@local>
+ */
+public enum Corpus {
+
+    /**
+     * Pure 7-bit ASCII, lines of words
+     */
+    ASCII {
+        @Override
+        void append(final Random random, final StringBuilder text) {
+            appendWord(random, text, 'a', 26);
+        }
+    },
+
+    /**
+     * Mostly 3-byte CJK ideographs, with some ASCII punctuation
+     */
+    CJK {
+        @Override
+        void append(final Random random, final StringBuilder text) {
+            for (int i = 1 + random.nextInt(20); i > 0; i--) {
+                text.append((char) (0x4E00 + random.nextInt(0x5000)));
+            }
+            text.append(random.nextInt(4) == 0 ? '\n' : '。');
+        }
+    },
+
+    /**
+     * Mostly 4-byte emoji, with some ASCII words
+     */
+    EMOJI {
+        @Override
+        void append(final Random random, final StringBuilder text) {
+            for (int i = 1 + random.nextInt(5); i > 0; i--) {
+                text.appendCodePoint(0x1F300 + random.nextInt(0x300));
+            }
+            appendWord(random, text, 'a', 26);
+        }
+    },
+
+    /**
+     * Uniformly random bytes, which are mostly invalid
+     */
+    RANDOM {
+        @Override
+        void append(final Random random, final StringBuilder text) {
+            text.append((char) random.nextInt(256));
+        }
+
+        @Override
+        byte[] encode(final String text) {
+            return text.getBytes(StandardCharsets.ISO_8859_1);
+        }
+    },
+
+    /**
+     * Western European text encoded as ISO-8859-1 rather than UTF-8,
+     * so that every accented character is an error
+     */
+    LATIN1 {
+        @Override
+        void append(final Random random, final StringBuilder text) {
+            appendWord(random, text, 'à', 30);
+        }
+
+        @Override
+        byte[] encode(final String text) {
+            return text.getBytes(StandardCharsets.ISO_8859_1);
+        }
+    };
+
+    private static final long SEED = 20111;
+
+    /**
+     * Generates the corpus.
+     *
+     * @param size The number of bytes to generate
+     *
+     * @return The bytes of the corpus
+     */
+    byte[] generate(final int size) {
+        final Random random = new Random(SEED);
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(size);
+        final StringBuilder text = new StringBuilder();
+        while (data.size() < size) {
+            text.setLength(0);
+            for (int i = 0; i < 1024; i++) {
+                append(random, text);
+            }
+            final byte[] bytes = encode(text.toString());
+            data.write(bytes, 0, bytes.length);
+        }
+
+        // truncate to exactly size bytes, without breaking a sequence
+        final byte[] bytes = data.toByteArray();
+        int len = size;
+        while (len > 0 && len < bytes.length && (bytes[len] & 0xC0) == 0x80) {
+            len--;
+        }
+        final byte[] corpus = new byte[size];
+        System.arraycopy(bytes, 0, corpus, 0, len);
+        for (int i = len; i < size; i++) {
+            corpus[i] = ' ';
+        }
+        return corpus;
+    }
+
+    /**
+     * Appends some text of the corpus.
+     *
+     * @param random The source of the text
+     * @param text The text to append to
+     */
+    abstract void append(final Random random, final StringBuilder text);
+
+    byte[] encode(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendWord(final Random random, final StringBuilder text, final char first, final int range) {
+        for (int i = 2 + random.nextInt(8); i > 0; i--) {
+            final int c = random.nextInt(range + 8);
+            text.append(c < range ? (char) (first + c) : (char) ('a' + c - range));
+        }
+        text.append(random.nextInt(12) == 0 ? '\n' : ' ');
+    }
+}
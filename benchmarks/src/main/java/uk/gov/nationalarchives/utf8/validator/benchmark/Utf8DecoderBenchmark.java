@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.gov.nationalarchives.utf8.validator.DfaValidationEngine;
+import uk.gov.nationalarchives.utf8.validator.ErrorKind;
+import uk.gov.nationalarchives.utf8.validator.Utf8Decoder;
+import uk.gov.nationalarchives.utf8.validator.Utf8Validator;
+import uk.gov.nationalarchives.utf8.validator.ValidationException;
+import uk.gov.nationalarchives.utf8.validator.ValidationHandler;
+
+/**
+ * Compares decoding in the same pass as validation, with the
+ * Utf8Decoder, against validating and then decoding with the JDK.
+ *
+ *   java -jar target/benchmarks.jar Utf8DecoderBenchmark
+ *
+ * @author agent <agent@local>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Utf8DecoderBenchmark {
+
+    @Param({"ASCII", "CJK", "EMOJI", "RANDOM", "LATIN1"})
+    public Corpus corpus;
+
+    @Param({"65536"})
+    public int chunkSize;       // of the Utf8Decoder
+
+    @Param({"16777216"})
+    public int size;
+
+    private byte[] data;
+    private char[] chars;
+    private Utf8Decoder decoder;
+    private Utf8Validator validator;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = corpus.generate(size);
+        chars = new char[Utf8Decoder.maxChars(chunkSize)];
+
+        final ValidationHandler handler = new IgnoringValidationHandler();
+        decoder = new Utf8Decoder(handler);
+        validator = new Utf8Validator(new DfaValidationEngine(), handler);
+    }
+
+    @Benchmark
+    public void validateAndDecode(final Utf8ValidatorBenchmark.Bytes bytes, final Blackhole blackhole) throws ValidationException {
+        decoder.reset();
+        for (int off = 0; off < data.length; off += chunkSize) {
+            final int len = decoder.decode(data, off, Math.min(chunkSize, data.length - off), chars, 0);
+            blackhole.consume(chars[len >> 1]);
+        }
+        blackhole.consume(decoder.end(chars, 0));
+        bytes.add(size);
+    }
+
+    @Benchmark
+    public void validateThenNewString(final Utf8ValidatorBenchmark.Bytes bytes, final Blackhole blackhole) throws ValidationException {
+        validator.validate(data, 0, data.length);
+        blackhole.consume(new String(data, StandardCharsets.UTF_8));
+        bytes.add(size);
+    }
+
+    /**
+     * Ignores errors, so that error dense corpora
+     * measure decoding rather than reporting.
+     */
+    private static class IgnoringValidationHandler implements ValidationHandler {
+        @Override
+        public void error(final String message, final long byteOffset) {
+        }
+
+        @Override
+        public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+        }
+    }
+}
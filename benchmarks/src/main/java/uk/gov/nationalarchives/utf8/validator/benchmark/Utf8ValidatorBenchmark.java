@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.gov.nationalarchives.utf8.validator.ErrorKind;
+import uk.gov.nationalarchives.utf8.validator.IoMode;
+import uk.gov.nationalarchives.utf8.validator.Utf8Validator;
+import uk.gov.nationalarchives.utf8.validator.ValidationEngines;
+import uk.gov.nationalarchives.utf8.validator.ValidationException;
+import uk.gov.nationalarchives.utf8.validator.ValidationHandler;
+
+/**
+ * Benchmarks the throughput of the Utf8Validator.
+ *
+ * Besides operations per second, the "megabytes" counter
+ * reports the throughput in MB/s. For example, to compare
+ * the engines on CJK text:
+ *
+ *   java -jar target/benchmarks.jar -p corpus=CJK -p engine=mask,dfa
+ *
+ * or to compare the ways of reading small files:
+ *
+ *   java -jar target/benchmarks.jar -p size=4096 -p bufferSize=8192 "validateFile.*"
+ *
+ * @author agent <agent@local>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Utf8ValidatorBenchmark {
+
+    @Param({"ASCII", "CJK", "EMOJI", "RANDOM", "LATIN1"})
+    public Corpus corpus;
+
+    @Param({"mask", "dfa"})
+    public String engine;
+
+    @Param({"4096", "8192", "65536", "1048576"})
+    public int bufferSize;
+
+    @Param({"16777216"})
+    public int size;
+
+    private byte[] data;
+    private File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer mapped;
+    private ByteBuffer direct;
+    private Utf8Validator streamValidator;
+    private Utf8Validator mappedValidator;
+    private Utf8Validator channelValidator;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = corpus.generate(size);
+
+        file = File.createTempFile("utf8-validator-benchmark-" + corpus, ".txt");
+        Files.write(file.toPath(), data);
+
+        raf = new RandomAccessFile(file, "r");
+        mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        mapped.load();
+
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(data).flip();
+
+        final ValidationHandler handler = new CountingValidationHandler();
+        streamValidator = new Utf8Validator(ValidationEngines.forName(engine), IoMode.STREAM, bufferSize, handler);
+        mappedValidator = new Utf8Validator(ValidationEngines.forName(engine), IoMode.MAPPED, bufferSize, handler);
+        channelValidator = new Utf8Validator(ValidationEngines.forName(engine), IoMode.CHANNEL, bufferSize, handler);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void validateInputStream(final Bytes bytes) throws IOException, ValidationException {
+        streamValidator.validate(new ByteArrayInputStream(data));
+        bytes.add(size);
+    }
+
+    @Benchmark
+    public void validateMappedByteBuffer(final Bytes bytes) throws IOException, ValidationException {
+        mapped.rewind();
+        mappedValidator.validate(mapped);
+        bytes.add(size);
+    }
+
+    @Benchmark
+    public void validateDirectByteBuffer(final Bytes bytes) throws ValidationException {
+        direct.rewind();
+        streamValidator.validate(direct);
+        bytes.add(size);
+    }
+
+    @Benchmark
+    public void validateFile(final Bytes bytes) throws IOException, ValidationException {
+        streamValidator.validate(file);
+        bytes.add(size);
+    }
+
+    @Benchmark
+    public void validateFileMemMapped(final Bytes bytes) throws IOException, ValidationException {
+        mappedValidator.validate(file);
+        bytes.add(size);
+    }
+
+    @Benchmark
+    public void validateFileChannel(final Bytes bytes) throws IOException, ValidationException {
+        channelValidator.validate(file);
+        bytes.add(size);
+    }
+
+    /**
+     * Counts the megabytes validated, which
+     * JMH reports as a rate, i.e. MB/s.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+
+        void add(final int bytes) {
+            megabytes += bytes / (1024.0 * 1024.0);
+        }
+    }
+
+    /**
+     * Counts errors without creating a message for them, so that
+     * error dense corpora measure validation rather than reporting.
+     */
+    private static class CountingValidationHandler implements ValidationHandler {
+        long errors = 0;
+
+        @Override
+        public void error(final String message, final long byteOffset) {
+            errors++;
+        }
+
+        @Override
+        public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+            errors++;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.gov.nationalarchives.utf8.validator.ErrorKind;
+import uk.gov.nationalarchives.utf8.validator.Utf8Validator;
+import uk.gov.nationalarchives.utf8.validator.ValidationEngines;
+import uk.gov.nationalarchives.utf8.validator.ValidationException;
+import uk.gov.nationalarchives.utf8.validator.ValidationHandler;
+
+/**
+ * Benchmarks a single Utf8Validator which is shared by several
+ * threads, each validating many small inputs, e.g. request bodies.
+ *
+ * Run it with the GC profiler to see the allocations per call,
+ * i.e. "gc.alloc.rate.norm", which should be zero:
+ *
+ *   java -jar target/benchmarks.jar Utf8ValidatorReuseBenchmark -prof gc
+ *
+ * @author agent <agent@local>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class Utf8ValidatorReuseBenchmark {
+
+    @Param({"ASCII", "CJK"})
+    public Corpus corpus;
+
+    @Param({"mask", "dfa"})
+    public String engine;
+
+    @Param({"1024", "65536"})
+    public int size;
+
+    private Utf8Validator validator;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        validator = new Utf8Validator(ValidationEngines.forName(engine), new CountingValidationHandler());
+    }
+
+    /**
+     * The inputs of each thread, which are validated in turn, so that each
+     * call is given another array, as it would be given each request body.
+     * They are not allocated for each call, so that only the validator's
+     * allocations are measured.
+     */
+    @State(Scope.Thread)
+    public static class Input {
+        private static final int INPUTS = 16;
+
+        final byte[][] data = new byte[INPUTS][];
+        final ByteArrayInputStream[] streams = new ByteArrayInputStream[INPUTS];
+        final CountingValidationHandler handler = new CountingValidationHandler();
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void setup(final Utf8ValidatorReuseBenchmark benchmark) {
+            for (int i = 0; i < INPUTS; i++) {
+                data[i] = benchmark.corpus.generate(benchmark.size);
+                streams[i] = new ByteArrayInputStream(data[i]);
+            }
+        }
+
+        /**
+         * @return the index of the input for the next call
+         */
+        int next() {
+            next = (next + 1) % INPUTS;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public long validateByteArray(final Input input) throws ValidationException {
+        final byte[] data = input.data[input.next()];
+        validator.validate(data, 0, data.length);
+        return data.length;
+    }
+
+    @Benchmark
+    public long validateByteArrayWithHandler(final Input input) throws ValidationException {
+        final byte[] data = input.data[input.next()];
+        validator.validate(data, 0, data.length, input.handler);
+        return input.handler.errors;
+    }
+
+    @Benchmark
+    public long validateInputStream(final Input input) throws IOException, ValidationException {
+        final ByteArrayInputStream stream = input.streams[input.next()];
+        stream.reset();
+        validator.validate(stream, input.handler);
+        return input.handler.errors;
+    }
+
+    @Benchmark
+    public boolean isValid(final Input input) {
+        return Utf8Validator.isValid(input.data[input.next()]);
+    }
+
+    /**
+     * Counts errors without creating a message for them.
+     */
+    private static class CountingValidationHandler implements ValidationHandler {
+        long errors = 0;
+
+        @Override
+        public void error(final String message, final long byteOffset) {
+            errors++;
+        }
+
+        @Override
+        public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+            errors++;
+        }
+    }
+}
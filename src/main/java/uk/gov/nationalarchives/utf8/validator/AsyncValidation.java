@@ -0,0 +1,266 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Validates a single File asynchronously, so that reading
+ * the file from disk overlaps with validating it.
+ *
+ * The file is read with an AsynchronousFileChannel into a ring
+ * of buffers, each of which holds one chunk of the file. Whilst
+ * one chunk is validated the following chunks are being read, and
+ * as soon as a chunk has been validated its buffer is reused to read
+ * the next chunk after those. Reads may complete in any order,
+ * but the chunks are always validated in order.
+ *
+ * Each validation has its own ValidationState, so several
+ * may be in progress at once. The time spent waiting for
+ * the next chunk to be read, and the time spent validating
+ * the chunks, are recorded separately in the ValidationMetrics.
+ *
+ * @author agent <agent@local>
+ */
+final class AsyncValidation {
+
+    private static final int BUFFERS = 3;
+
+    private final ValidationEngine engine;
+    private final int bufferSize;
+    private final CharacterStatistics statistics;
+    private final boolean trackPositions;
+    private final ValidationMetrics metrics;
+
+    AsyncValidation(final ValidationEngine engine, final int bufferSize, final CharacterStatistics statistics, final boolean trackPositions, final ValidationMetrics metrics) {
+        this.engine = engine;
+        this.bufferSize = bufferSize;
+        this.statistics = statistics;
+        this.trackPositions = trackPositions;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Validates the File as UTF-8.
+     *
+     * @param path The file to UTF-8 validate
+     * @param handler A ValidationHandler that receives errors
+     *
+     * @return A future which completes with the number of bytes validated
+     */
+    CompletableFuture<Long> validate(final Path path, final ValidationHandler handler) throws IOException {
+        final long start = System.nanoTime();
+        final AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new Reader(channel, channel.size(), handler, start).start();
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the chunks of a file and validates them in order.
+     */
+    private final class Reader implements CompletionHandler<Integer, Chunk> {
+        private final AsynchronousFileChannel channel;
+        private final long size;
+        private final long chunks;
+        private final ValidationHandler handler;
+        private final PositionTracker tracker;
+        private final ValidationState state = new ValidationState();
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+        private final Chunk[] ring;
+        private long next = 0;          // the index of the next chunk to validate
+        private final long start;
+        private long waiting;           // when validation last had to wait for a chunk to be read
+        private long readNanos = 0;
+        private long validateNanos = 0;
+
+        Reader(final AsynchronousFileChannel channel, final long size, final ValidationHandler handler, final long start) {
+            this.channel = channel;
+            this.start = start;
+            this.waiting = start;
+            this.size = size;
+            this.chunks = (size + bufferSize - 1) / bufferSize;
+            this.tracker = trackPositions ? new PositionTracker(handler) : null;
+            this.handler = tracker != null ? tracker : handler;
+            this.ring = new Chunk[(int) Math.min(BUFFERS, chunks)];
+        }
+
+        synchronized CompletableFuture<Long> start() {
+            if (chunks == 0) {
+                completed();
+            } else {
+                final int capacity = (int) Math.min(bufferSize, size);
+                for (int i = 0; i < ring.length; i++) {
+                    ring[i] = new Chunk(ByteBuffer.allocateDirect(capacity));
+                    read(ring[i], i);
+                }
+            }
+            return result;
+        }
+
+        private void read(final Chunk chunk, final long index) {
+            final long position = index * bufferSize;
+            chunk.index = index;
+            chunk.position = position;
+            chunk.done = false;
+            chunk.buf.clear();
+            chunk.buf.limit((int) Math.min(bufferSize, size - position));
+            channel.read(chunk.buf, position, chunk, this);
+        }
+
+        @Override
+        public void completed(final Integer read, final Chunk chunk) {
+            if (read == -1) {
+                failed(new IOException("Unexpected end of file at byte position: " + (chunk.position + chunk.buf.position())), chunk);
+                return;
+            }
+
+            if (chunk.buf.hasRemaining()) {
+                // a short read, read the rest of the chunk
+                channel.read(chunk.buf, chunk.position + chunk.buf.position(), chunk, this);
+                return;
+            }
+
+            synchronized (this) {
+                chunk.done = true;
+                if (result.isDone()) {
+                    return;
+                }
+
+                // validate, in order, each chunk which has been read
+                try {
+                    long clock = System.nanoTime();
+                    final long waited = clock - waiting;
+                    final long first = next;
+                    Chunk current;
+                    while (next < chunks && (current = ring[(int) (next % ring.length)]).done && current.index == next) {
+                        if (next == first) {
+                            readNanos += waited;
+                        }
+                        current.buf.flip();
+                        if (statistics != null) {
+                            statistics.count(current.buf);
+                        }
+                        if (tracker != null) {
+                            tracker.chunk(state.read, current.buf);
+                        }
+                        engine.validate(state, current.buf, handler);
+                        if (tracker != null) {
+                            tracker.chunkValidated();
+                        }
+                        next++;
+
+                        final long now = System.nanoTime();
+                        validateNanos += now - clock;
+                        clock = now;
+                        waiting = now;
+
+                        final long following = current.index + ring.length;
+                        if (following < chunks) {
+                            read(current, following);
+                        }
+                    }
+
+                    if (next == chunks) {
+                        completed();
+                    }
+                } catch (final ValidationException | RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        @Override
+        public void failed(final Throwable t, final Chunk chunk) {
+            synchronized (this) {
+                fail(t);
+            }
+        }
+
+        private void completed() {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                engine.end(state, handler);
+                close();
+                record(false);
+                result.complete(state.read);
+            } catch (final ValidationException | IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(final Throwable t) {
+            if (!result.isDone()) {
+                record(true);
+                result.completeExceptionally(t);
+                try {
+                    close();
+                } catch (final IOException ioe) {
+                    t.addSuppressed(ioe);
+                }
+            }
+        }
+
+        private void record(final boolean failed) {
+            if (metrics != null) {
+                metrics.validated(state.read, System.nanoTime() - start, readNanos, validateNanos);
+                if (failed) {
+                    metrics.failed();
+                }
+            }
+        }
+
+        private void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A buffer in the ring, and the chunk of the file which it holds.
+     */
+    private static final class Chunk {
+        final ByteBuffer buf;
+        long index;
+        long position;
+        boolean done;
+
+        Chunk(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+/**
+ * A ValidationHandler which bounds the errors
+ * that are passed on to another ValidationHandler.
+ *
+ * Errors at consecutive byte offsets are merged into a single
+ * invalid run, which is passed on as one error at the offset of its
+ * first byte, e.g. "Invalid run of 12 bytes". A run is passed on once
+ * it has ended, so {@link #flush()} must be called after the validation
+ * to pass on the last of them. Once maxErrors errors have been received, the
+ * validation is stopped by throwing a ValidationException, so that invalid
+ * input is not read to its end and the output is of a bounded size.
+ * The line and column of an error, if the Utf8Validator tracks them,
+ * are passed on with it, for a run they are those of its first byte.
+ * A run does not span the end of an entry of a zip archive.
+ *
+ * @author agent <agent@local>
+ */
+public class BoundedValidationHandler implements PositionValidationHandler, ZipValidationHandler, StoppingValidationHandler {
+
+    private final ValidationHandler handler;
+    private final long maxErrors;
+    private long errors = 0;
+
+    // the current run of errors, which has not yet been passed on
+    private long runStart = -1;
+    private long runLength = 0;
+    private ErrorKind kind;
+    private int sequenceLength;
+    private int sequencePosition;
+    private String message;
+    private long line = -1;     // -1 if the run has no position
+    private long column;
+
+    /**
+     * @param handler The ValidationHandler to pass errors on to
+     * @param maxErrors The number of errors after which the validation
+     * is stopped, or zero or less to never stop it
+     */
+    public BoundedValidationHandler(final ValidationHandler handler, final long maxErrors) {
+        this.handler = handler;
+        this.maxErrors = maxErrors;
+    }
+
+    @Override
+    public void error(final String message, final long byteOffset) throws ValidationException {
+        if (!extendRun(byteOffset)) {
+            this.message = message;
+        }
+        counted(byteOffset);
+    }
+
+    @Override
+    public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) throws ValidationException {
+        if (!extendRun(byteOffset)) {
+            this.kind = kind;
+            this.sequenceLength = sequenceLength;
+            this.sequencePosition = sequencePosition;
+        }
+        counted(byteOffset);
+    }
+
+    @Override
+    public void error(final String message, final long byteOffset, final long line, final long column) throws ValidationException {
+        if (!extendRun(byteOffset)) {
+            this.message = message;
+            this.line = line;
+            this.column = column;
+        }
+        counted(byteOffset);
+    }
+
+    @Override
+    public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset, final long line, final long column) throws ValidationException {
+        if (!extendRun(byteOffset)) {
+            this.kind = kind;
+            this.sequenceLength = sequenceLength;
+            this.sequencePosition = sequencePosition;
+            this.line = line;
+            this.column = column;
+        }
+        counted(byteOffset);
+    }
+
+    @Override
+    public long getErrorLimit() {
+        return maxErrors > 0 ? maxErrors - errors : 0;
+    }
+
+    @Override
+    public void startEntry(final String name) throws ValidationException {
+        flush();
+        ZipValidation.startEntry(handler, name);
+    }
+
+    @Override
+    public void endEntry(final String name, final ValidationResult result) throws ValidationException {
+        flush();
+        ZipValidation.endEntry(handler, name, result);
+    }
+
+    /**
+     * Passes on the current run of errors, if there is one.
+     *
+     * @throws ValidationException thrown if the ValidationHandler
+     * which errors are passed on to throws one
+     */
+    public void flush() throws ValidationException {
+        if (runLength == 0) {
+            return;
+        }
+
+        final long start = runStart;
+        final long length = runLength;
+        final long line = this.line;
+        runStart = -1;
+        runLength = 0;
+        this.line = -1;
+
+        if (line == -1) {
+            if (length > 1) {
+                handler.error("Invalid run of " + length + " bytes", start);
+            } else if (message != null) {
+                handler.error(message, start);
+            } else {
+                handler.error(kind, sequenceLength, sequencePosition, start);
+            }
+        } else {
+            if (length > 1) {
+                PositionTracker.passOn(handler, "Invalid run of " + length + " bytes", start, line, column);
+            } else if (message != null) {
+                PositionTracker.passOn(handler, message, start, line, column);
+            } else {
+                PositionTracker.passOn(handler, kind, sequenceLength, sequencePosition, start, line, column);
+            }
+        }
+        message = null;
+        kind = null;
+    }
+
+    /**
+     * @return the number of errors which have been received
+     */
+    public long getErrorCount() {
+        return errors;
+    }
+
+    /**
+     * Forgets any previous errors, so that the
+     * handler may be reused for another validation.
+     */
+    public void reset() {
+        errors = 0;
+        runStart = -1;
+        runLength = 0;
+        message = null;
+        kind = null;
+        line = -1;
+    }
+
+    /**
+     * Adds the error to the current run if it is at the next offset,
+     * else passes on the current run and starts a new one.
+     *
+     * @return true if the current run was extended
+     */
+    private boolean extendRun(final long byteOffset) throws ValidationException {
+        if (runLength > 0 && byteOffset == runStart + runLength) {
+            runLength++;
+            return true;
+        }
+        flush();
+        runStart = byteOffset;
+        runLength = 1;
+        return false;
+    }
+
+    private void counted(final long byteOffset) throws ValidationException {
+        if (++errors == maxErrors) {
+            flush();
+            throw new ValidationException("Stopped after " + maxErrors + " errors", byteOffset);
+        }
+    }
+}
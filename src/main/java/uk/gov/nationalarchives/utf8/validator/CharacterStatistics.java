@@ -0,0 +1,273 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Statistics of the characters in the input, which
+ * may be collected by the Utf8Validator whilst it validates.
+ *
+ * Sequences are counted by their lead byte, i.e. 00..7F for 1 byte,
+ * C0..DF for 2 bytes, E0..EF for 3 bytes and F0..F7 for 4 bytes, so for
+ * input which is not valid UTF-8 the counts are of the lead bytes which
+ * were present. A line terminator is an LF, a CR, or a CR followed by an LF.
+ *
+ * The bytes of each chunk are counted whilst the chunk is in memory for
+ * validation, 8 bytes at a time when none of them has its MSB set.
+ *
+ * @author agent <agent@local>
+ */
+public final class CharacterStatistics {
+
+    private static final long ASCII_WORD_MASK = 0x8080808080808080L;   // MSB of each of 8 bytes
+    private static final long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long LFS = 0x0A0A0A0A0A0A0A0AL;
+    private static final long CRS = 0x0D0D0D0D0D0D0D0DL;
+
+    private static final byte[] BOM = { (byte)0xEF, (byte)0xBB, (byte)0xBF };
+
+    /**
+     * The length of the sequence started by each byte value,
+     * or 0 for a continuation byte or a byte which cannot start a sequence
+     */
+    private static final byte[] SEQUENCE_LENGTHS = new byte[256];
+    static {
+        for (int b = 0; b < 256; b++) {
+            if (b < 0x80) {
+                SEQUENCE_LENGTHS[b] = 1;
+            } else if (b >= 0xC0 && b < 0xE0) {
+                SEQUENCE_LENGTHS[b] = 2;
+            } else if (b >= 0xE0 && b < 0xF0) {
+                SEQUENCE_LENGTHS[b] = 3;
+            } else if (b >= 0xF0 && b < 0xF8) {
+                SEQUENCE_LENGTHS[b] = 4;
+            }
+        }
+    }
+
+    private long bytes = 0;
+    private final long[] sequences = new long[5];   // indexed by sequence length, 0 counts other bytes
+    private long lfs = 0;
+    private long crs = 0;
+    private long crlfs = 0;
+    private boolean bom = false;
+    private boolean atStart = true;                 // whether counting from the start of the input
+    private boolean startsWithLf = false;
+    private boolean endsWithCr = false;
+
+    public CharacterStatistics() {
+    }
+
+    /**
+     * @return the number of bytes counted
+     */
+    public long getByteCount() {
+        return bytes;
+    }
+
+    /**
+     * @param length The length of the sequences, from 1 to 4
+     *
+     * @return the number of sequences of length bytes
+     */
+    public long getSequenceCount(final int length) {
+        if (length < 1 || length > 4) {
+            throw new IllegalArgumentException("Sequences are from 1 to 4 bytes long, not: " + length);
+        }
+        return sequences[length];
+    }
+
+    /**
+     * @return the number of line terminators
+     */
+    public long getLineTerminatorCount() {
+        return lfs + crs - crlfs;
+    }
+
+    /**
+     * @return true if the input starts with a UTF-8 Byte Order Mark (EF BB BF)
+     */
+    public boolean hasBom() {
+        return bom;
+    }
+
+    /**
+     * @return true if every byte is ASCII, i.e. 00..7F
+     */
+    public boolean isAscii() {
+        return sequences[1] == bytes;
+    }
+
+    /**
+     * Clears the statistics, so that another input may be counted.
+     */
+    public void reset() {
+        bytes = 0;
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = 0;
+        }
+        lfs = 0;
+        crs = 0;
+        crlfs = 0;
+        bom = false;
+        atStart = true;
+        startsWithLf = false;
+        endsWithCr = false;
+    }
+
+    @Override
+    public String toString() {
+        return "bytes: " + bytes
+                + ", 1-byte: " + sequences[1]
+                + ", 2-byte: " + sequences[2]
+                + ", 3-byte: " + sequences[3]
+                + ", 4-byte: " + sequences[4]
+                + ", line terminators: " + getLineTerminatorCount()
+                + ", BOM: " + (bom ? "yes" : "no")
+                + ", ASCII: " + (isAscii() ? "yes" : "no");
+    }
+
+    /**
+     * Marks these statistics as counting from part way through
+     * the input, so that no BOM will be found by them.
+     */
+    void notAtStart() {
+        atStart = false;
+    }
+
+    /**
+     * Counts a region of a byte array.
+     */
+    void count(final byte[] data, final int off, final int len) {
+        count(ByteBuffer.wrap(data, off, len));
+    }
+
+    /**
+     * Counts the remaining bytes of a buffer, without changing its position.
+     */
+    void count(final ByteBuffer buf) {
+        final int end = buf.limit();
+        int i = buf.position();
+        if (i == end) {
+            return;
+        }
+
+        if (atStart) {
+            checkBom(buf, i, end);
+        }
+        if (bytes == 0) {
+            startsWithLf = buf.get(i) == '\n';
+        }
+
+        // the bytes of each word are read in order from its least significant byte
+        final ByteBuffer words = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        boolean cr = endsWithCr;
+        long ascii = 0;
+        while (i < end) {
+            if (i <= end - 8) {
+                final long word = words.getLong(i);
+                if ((word & ASCII_WORD_MASK) == 0) {
+                    // the MSB of each byte which is an LF or a CR
+                    final long lfMask = ~((word ^ LFS) + LOW_7_BITS) & ASCII_WORD_MASK;
+                    final long crMask = ~((word ^ CRS) + LOW_7_BITS) & ASCII_WORD_MASK;
+                    lfs += Long.bitCount(lfMask);
+                    crs += Long.bitCount(crMask);
+                    crlfs += Long.bitCount((crMask << 8) & lfMask);
+                    if (cr && (lfMask & 0x80) != 0) {
+                        crlfs++;
+                    }
+                    cr = crMask < 0;    // the MSB of the last byte
+                    ascii += 8;
+                    i += 8;
+                    continue;
+                }
+            }
+
+            final int b = buf.get(i++) & 0xFF;
+            final int length = SEQUENCE_LENGTHS[b];
+            if (length == 1) {
+                ascii++;
+                if (b == '\n') {
+                    lfs++;
+                    if (cr) {
+                        crlfs++;
+                    }
+                } else if (b == '\r') {
+                    crs++;
+                }
+            } else {
+                sequences[length]++;
+            }
+            cr = b == '\r';
+        }
+
+        sequences[1] += ascii;
+        bytes += end - buf.position();
+        endsWithCr = cr;
+    }
+
+    private void checkBom(final ByteBuffer buf, final int start, final int end) {
+        for (int i = start; i < end && bytes + (i - start) < BOM.length; i++) {
+            if (buf.get(i) != BOM[(int) bytes + (i - start)]) {
+                atStart = false;
+                return;
+            }
+        }
+        if (bytes + (end - start) >= BOM.length) {
+            bom = true;
+            atStart = false;
+        }
+    }
+
+    /**
+     * Adds the statistics of the input which
+     * immediately follows the input of these.
+     */
+    void add(final CharacterStatistics next) {
+        if (next.bytes == 0) {
+            return;
+        }
+        if (bytes == 0) {
+            startsWithLf = next.startsWithLf;
+        }
+        if (endsWithCr && next.startsWithLf) {
+            crlfs++;
+        }
+        bytes += next.bytes;
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] += next.sequences[i];
+        }
+        lfs += next.lfs;
+        crs += next.crs;
+        crlfs += next.crlfs;
+        bom |= next.bom;
+        atStart = false;
+        endsWithCr = next.endsWithCr;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.util.Arrays;
+
+/**
+ * Collects errors, so that they may later be
+ * reported to another ValidationHandler.
+ *
+ * The line and column of an error, if they are
+ * known, are collected and reported with it.
+ * Once the limit of errors has been collected, any
+ * further errors are ignored, and the validation which they
+ * are from should stop. Alternatively the errors may be passed
+ * straight on to another handler, and only counted.
+ *
+ * @author agent <agent@local>
+ */
+final class CollectingValidationHandler implements PositionValidationHandler {
+
+    /**
+     * The most errors which a task of a validation collects before
+     * it stops, and leaves its input to be validated again in order.
+     */
+    static final long MAX_COLLECTED_ERRORS = 4096;
+
+    private final long limit;
+    private final ValidationHandler handler;    // the handler errors are passed straight on to, or null to collect them
+    private int count = 0;
+    private long firstByteOffset = -1;
+    private ErrorKind[] kinds = new ErrorKind[16];
+    private int[] sequenceLengths = new int[16];
+    private int[] sequencePositions = new int[16];
+    private long[] byteOffsets = new long[16];
+    private String[] messages = null;       // only for errors reported with a message
+    private long[] lines = null;            // only for errors reported with a position
+    private long[] columns = null;
+
+    /**
+     * @param limit The number of errors to collect, or zero or less for all of them
+     */
+    CollectingValidationHandler(final long limit) {
+        this.limit = limit;
+        this.handler = null;
+    }
+
+    /**
+     * @param handler The handler to pass each error straight on to, rather than collecting it
+     */
+    CollectingValidationHandler(final ValidationHandler handler) {
+        this.limit = 0;
+        this.handler = handler;
+    }
+
+    /**
+     * Gets the number of errors to collect for a handler, which is
+     * no more than {@link #MAX_COLLECTED_ERRORS}.
+     *
+     * @param limit The limit of the handler, or zero or less if it does not stop
+     */
+    static long collectLimit(final long limit) {
+        return limit > 0 ? Math.min(limit, MAX_COLLECTED_ERRORS) : MAX_COLLECTED_ERRORS;
+    }
+
+    @Override
+    public void error(final String message, final long byteOffset) throws ValidationException {
+        if (handler != null) {
+            passedOn(byteOffset);
+            handler.error(message, byteOffset);
+        } else if (add(null, 0, 0, byteOffset)) {
+            message(message);
+        }
+    }
+
+    @Override
+    public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) throws ValidationException {
+        if (handler != null) {
+            passedOn(byteOffset);
+            handler.error(kind, sequenceLength, sequencePosition, byteOffset);
+        } else {
+            add(kind, sequenceLength, sequencePosition, byteOffset);
+        }
+    }
+
+    @Override
+    public void error(final String message, final long byteOffset, final long line, final long column) throws ValidationException {
+        if (handler != null) {
+            passedOn(byteOffset);
+            PositionTracker.passOn(handler, message, byteOffset, line, column);
+        } else if (add(null, 0, 0, byteOffset)) {
+            message(message);
+            position(line, column);
+        }
+    }
+
+    @Override
+    public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset, final long line, final long column) throws ValidationException {
+        if (handler != null) {
+            passedOn(byteOffset);
+            PositionTracker.passOn(handler, kind, sequenceLength, sequencePosition, byteOffset, line, column);
+        } else if (add(kind, sequenceLength, sequencePosition, byteOffset)) {
+            position(line, column);
+        }
+    }
+
+    /**
+     * @return the number of errors which have been collected, or passed on
+     */
+    int getErrorCount() {
+        return count;
+    }
+
+    /**
+     * @return true if the limit of errors has been collected
+     */
+    boolean isFull() {
+        return limit > 0 && count >= limit;
+    }
+
+    /**
+     * @return the offset of the first error which was collected, or passed on, or -1 if there were none
+     */
+    long getFirstByteOffset() {
+        return firstByteOffset;
+    }
+
+    private void passedOn(final long byteOffset) {
+        if (count++ == 0) {
+            firstByteOffset = byteOffset;
+        }
+    }
+
+    /**
+     * @return true if the error was collected, false if the limit had been reached
+     */
+    private boolean add(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+        if (isFull()) {
+            return false;
+        }
+        if (count == kinds.length) {
+            final int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            sequenceLengths = Arrays.copyOf(sequenceLengths, capacity);
+            sequencePositions = Arrays.copyOf(sequencePositions, capacity);
+            byteOffsets = Arrays.copyOf(byteOffsets, capacity);
+            if (messages != null) {
+                messages = Arrays.copyOf(messages, capacity);
+            }
+            if (lines != null) {
+                lines = Arrays.copyOf(lines, capacity);
+                columns = Arrays.copyOf(columns, capacity);
+            }
+        }
+        kinds[count] = kind;
+        sequenceLengths[count] = sequenceLength;
+        sequencePositions[count] = sequencePosition;
+        byteOffsets[count] = byteOffset;
+        if (lines != null) {
+            lines[count] = -1;
+        }
+        if (count++ == 0) {
+            this.firstByteOffset = byteOffset;
+        }
+        return true;
+    }
+
+    private void message(final String message) {
+        if (messages == null) {
+            messages = new String[kinds.length];
+        }
+        messages[count - 1] = message;
+    }
+
+    private void position(final long line, final long column) {
+        if (lines == null) {
+            lines = new long[kinds.length];
+            columns = new long[kinds.length];
+            Arrays.fill(lines, 0, count - 1, -1);
+        }
+        lines[count - 1] = line;
+        columns[count - 1] = column;
+    }
+
+    /**
+     * Gets the number of further errors after which a handler stops.
+     *
+     * @return the limit of a StoppingValidationHandler, or zero if the handler does not stop
+     */
+    static long errorLimit(final ValidationHandler handler) {
+        if (handler instanceof StoppingValidationHandler) {
+            return ((StoppingValidationHandler) handler).getErrorLimit();
+        }
+        return 0;
+    }
+
+    /**
+     * Reports the collected errors, in the order in which they were collected.
+     * Errors which were passed straight on are not reported again.
+     */
+    void replay(final ValidationHandler handler) throws ValidationException {
+        if (this.handler != null) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (lines != null && lines[i] != -1) {
+                if (kinds[i] != null) {
+                    PositionTracker.passOn(handler, kinds[i], sequenceLengths[i], sequencePositions[i], byteOffsets[i], lines[i], columns[i]);
+                } else {
+                    PositionTracker.passOn(handler, messages[i], byteOffsets[i], lines[i], columns[i]);
+                }
+            } else if (kinds[i] != null) {
+                handler.error(kinds[i], sequenceLengths[i], sequencePositions[i], byteOffsets[i]);
+            } else {
+                handler.error(messages[i], byteOffsets[i]);
+            }
+        }
+    }
+}
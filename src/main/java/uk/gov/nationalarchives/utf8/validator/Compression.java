@@ -0,0 +1,198 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Enumeration of the formats of compressed input,
+ * which are detected by their magic bytes.
+ *
+ * Only the formats which the JDK can decompress are supported, the others
+ * are detected so that they may be reported, rather than validated as if they
+ * were text. A zlib stream is only detected when its header checksum is correct
+ * and its second byte is not ASCII text, or is 01, so that text which starts
+ * with "x^" is not mistaken for one. As text may still start with such a header,
+ * e.g. "x" followed by a character whose UTF-8 encoding starts with DA, the start
+ * of a file which looks like a zlib stream is also inflated, and if that fails
+ * the file is not compressed.
+ *
+ * @author agent <agent@local>
+ */
+enum Compression {
+    NONE,
+    GZIP,
+    ZLIB,
+    ZIP,
+    BZIP2,
+    ZSTD,
+    XZ;
+
+    /**
+     * The number of bytes from the start of the input needed to detect any format
+     */
+    static final int HEADER_SIZE = 10;
+
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Detects the format from the first bytes of the input.
+     *
+     * @param header The first bytes of the input
+     * @param len The number of bytes in header, fewer than HEADER_SIZE only for a shorter input
+     */
+    static Compression detect(final byte[] header, final int len) {
+        if (startsWith(header, len, 0x1F, 0x8B)) {
+            return GZIP;
+        } else if (isZlibHeader(header, len)) {
+            return ZLIB;
+        } else if (startsWith(header, len, 0x50, 0x4B, 0x03, 0x04)) {
+            return ZIP;
+        } else if (len == HEADER_SIZE && startsWith(header, len, 0x42, 0x5A, 0x68) && header[3] >= '1' && header[3] <= '9'
+                && (matchesAt(header, 4, len, 0x31, 0x41, 0x59, 0x26, 0x53, 0x59) || matchesAt(header, 4, len, 0x17, 0x72, 0x45, 0x38, 0x50, 0x90))) {
+            return BZIP2;
+        } else if (startsWith(header, len, 0x28, 0xB5, 0x2F, 0xFD)) {
+            return ZSTD;
+        } else if (startsWith(header, len, 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00)) {
+            return XZ;
+        }
+        return NONE;
+    }
+
+    /**
+     * Detects the format of a file from its first bytes,
+     * and for a zlib stream by inflating its start.
+     */
+    static Compression detect(final File f) throws IOException {
+        final byte[] header = new byte[HEADER_SIZE];
+        final int len = readFully(f, header);
+        final Compression compression = detect(header, len);
+        if (compression == ZLIB && !inflates(f)) {
+            return NONE;
+        }
+        return compression;
+    }
+
+    /**
+     * A zlib header of the deflate method with a 32KB window, as written by
+     * the JDK and most other tools, and no preset dictionary, whose second
+     * byte is not ASCII text, or is 01, and whose checksum is correct.
+     */
+    private static boolean isZlibHeader(final byte[] header, final int len) {
+        if (len < 2 || header[0] != 0x78) {
+            return false;
+        }
+        final int cmf = header[0] & 0xFF;
+        final int flg = header[1] & 0xFF;
+        return (flg == 0x01 || flg >= 0x80)
+                && (flg & 0x20) == 0
+                && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /**
+     * Inflates the start of a file whose header is that of a zlib stream.
+     *
+     * @return false if the start of the file is not deflated data, or if the whole
+     * of a file which is shorter than the buffer is not a complete zlib stream
+     */
+    private static boolean inflates(final File f) throws IOException {
+        final byte[] in = new byte[INFLATE_BUFFER_SIZE];
+        final int len = readFully(f, in);
+        final byte[] out = new byte[INFLATE_BUFFER_SIZE];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in, 0, len);
+            while (!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()) {
+                inflater.inflate(out);
+            }
+            return inflater.finished() || (len == in.length && inflater.needsInput());
+        } catch (final DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads the first bytes of a file.
+     *
+     * @return the number of bytes read, fewer than the length of buf only for a shorter file
+     */
+    private static int readFully(final File f, final byte[] buf) throws IOException {
+        int len = 0;
+        try (final InputStream is = new FileInputStream(f)) {
+            int read;
+            while (len < buf.length && (read = is.read(buf, len, buf.length - len)) > -1) {
+                len += read;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Decompresses an input of this format.
+     *
+     * @throws IOException if this format is not supported, or its header cannot be read
+     */
+    InputStream decompress(final InputStream in) throws IOException {
+        switch (this) {
+            case NONE:
+                return in;
+            case GZIP:
+                return new GZIPInputStream(in, INFLATE_BUFFER_SIZE);
+            case ZLIB:
+                return new InflaterInputStream(in, new Inflater(), INFLATE_BUFFER_SIZE);
+            case ZIP:
+                throw new IOException("Zip archives cannot be read as a stream, each entry must be validated");
+            default:
+                throw new IOException(name() + " compressed input is not supported, it must be decompressed first");
+        }
+    }
+
+    private static boolean startsWith(final byte[] header, final int len, final int... magic) {
+        return matchesAt(header, 0, len, magic);
+    }
+
+    private static boolean matchesAt(final byte[] header, final int off, final int len, final int... magic) {
+        if (len - off < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((header[off + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
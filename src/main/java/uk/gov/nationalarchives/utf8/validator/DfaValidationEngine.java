@@ -0,0 +1,279 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Validation Engine which is driven by a table of
+ * transitions between the states of a DFA, after
+ * Bjoern Hoehrmann's "Flexible and Economical UTF-8 Decoder".
+ *
+ * Each byte is mapped to one of 12 classes, and the
+ * class and current state together index the next state,
+ * so there are no data dependent branches whilst the
+ * input is valid. The DFA enforces all of the rules
+ * of RFC 3629, and so it also rejects overlong forms,
+ * surrogates (U+D800 to U+DFFF) and values above U+10FFFF.
+ *
+ * When a sequence is broken by a byte which cannot continue
+ * it, that byte is then validated again as the
+ * possible start of a new sequence.
+ *
+ * @author agent <agent@local>
+ */
+public class DfaValidationEngine implements ValidationEngine {
+
+    private static final long ASCII_WORD_MASK = 0x8080808080808080L;   // MSB of each of 8 bytes
+
+    // states, each is the offset of its row in TRANSITIONS, ACCEPT and REJECT are shared with the Utf8Decoder
+    static final int ACCEPT =   0;              // not within a sequence
+    static final int REJECT =   12;             // the byte is invalid in the current state
+    private static final int NEED_1 =   24;     // 1 more byte of 80..BF
+    private static final int NEED_2 =   36;     // 2 more bytes, the first of 80..BF
+    private static final int NEED_2_E0 = 48;    // 2 more bytes, the first of A0..BF (no overlong forms)
+    private static final int NEED_2_ED = 60;    // 2 more bytes, the first of 80..9F (no surrogates)
+    private static final int NEED_3 =   72;     // 3 more bytes, the first of 80..BF
+    private static final int NEED_3_F0 = 84;    // 3 more bytes, the first of 90..BF (no overlong forms)
+    private static final int NEED_3_F4 = 96;    // 3 more bytes, the first of 80..8F (no values above U+10FFFF)
+
+    /**
+     * The number of bytes which remain of the
+     * current sequence in each state, indexed by state / 12
+     */
+    static final int[] REMAINING = {
+        0, 0, 1, 2, 2, 2, 3, 3, 3
+    };
+
+    /**
+     * The class of each byte value
+     *
+     *  0: 00..7F   1: 80..8F   2: C2..DF   3: E1..EC, EE..EF
+     *  4: ED       5: F4       6: F1..F3   7: A0..BF
+     *  8: C0..C1, F5..FF       9: 90..9F  10: E0        11: F0
+     */
+    static final byte[] BYTE_CLASSES = new byte[256];
+    static {
+        fill(0x00, 0x7F, 0);
+        fill(0x80, 0x8F, 1);
+        fill(0x90, 0x9F, 9);
+        fill(0xA0, 0xBF, 7);
+        fill(0xC0, 0xC1, 8);
+        fill(0xC2, 0xDF, 2);
+        fill(0xE0, 0xE0, 10);
+        fill(0xE1, 0xEC, 3);
+        fill(0xED, 0xED, 4);
+        fill(0xEE, 0xEF, 3);
+        fill(0xF0, 0xF0, 11);
+        fill(0xF1, 0xF3, 6);
+        fill(0xF4, 0xF4, 5);
+        fill(0xF5, 0xFF, 8);
+    }
+
+    private static void fill(final int from, final int to, final int byteClass) {
+        for (int b = from; b <= to; b++) {
+            BYTE_CLASSES[b] = (byte) byteClass;
+        }
+    }
+
+    /**
+     * The next state, indexed by state + byte class
+     */
+    static final byte[] TRANSITIONS = {
+        //  0          1          2          3          4          5          6          7          8          9          10         11
+        ACCEPT,    REJECT,    NEED_1,    NEED_2,    NEED_2_ED, NEED_3_F4, NEED_3,    REJECT,    REJECT,    REJECT,    NEED_2_E0, NEED_3_F0,  // ACCEPT
+        REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,     // REJECT
+        REJECT,    ACCEPT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    ACCEPT,    REJECT,    ACCEPT,    REJECT,    REJECT,     // NEED_1
+        REJECT,    NEED_1,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    NEED_1,    REJECT,    NEED_1,    REJECT,    REJECT,     // NEED_2
+        REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    NEED_1,    REJECT,    REJECT,    REJECT,    REJECT,     // NEED_2_E0
+        REJECT,    NEED_1,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    NEED_1,    REJECT,    REJECT,     // NEED_2_ED
+        REJECT,    NEED_2,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    NEED_2,    REJECT,    NEED_2,    REJECT,    REJECT,     // NEED_3
+        REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    NEED_2,    REJECT,    NEED_2,    REJECT,    REJECT,     // NEED_3_F0
+        REJECT,    NEED_2,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT,    REJECT      // NEED_3_F4
+    };
+
+    @Override
+    public void validate(final ValidationState state, final byte[] data, final int off, final int len, final ValidationHandler handler) throws ValidationException {
+        long read = state.read;
+        int multiByteLen = state.multiByteLen;
+        int s = state.engineState;
+
+        final ByteBuffer words = ValidationState.words(data);
+
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+
+            if (s == ACCEPT) {
+                // ASCII fast path, skip 8 bytes at a time whilst none of them has its MSB set
+                final int start = i;
+                while (i <= end - 8 && (words.getLong(i) & ASCII_WORD_MASK) == 0) {
+                    i += 8;
+                }
+                read += i - start;
+                if (i == end) {
+                    break;
+                }
+            }
+
+            final int byteClass = BYTE_CLASSES[data[i++] & 0xFF];
+
+            read++;
+
+            int next = TRANSITIONS[s + byteClass];
+            if (next == REJECT) {
+                if (s == ACCEPT) {
+                    handler.error(ErrorKind.INVALID_SINGLE_BYTE, 1, 1, read);
+                    continue;
+                }
+
+                handler.error(ErrorKind.INVALID_SEQUENCE, multiByteLen, multiByteLen - REMAINING[s / 12] + 1, read);
+
+                // the byte may instead start a new sequence
+                s = ACCEPT;
+                next = TRANSITIONS[ACCEPT + byteClass];
+                if (next == REJECT) {
+                    next = ACCEPT;
+                }
+            }
+
+            if (s == ACCEPT && next != ACCEPT) {
+                multiByteLen = REMAINING[next / 12] + 1;
+            }
+            s = next;
+        }
+
+        state.read = read;
+        state.multiByteLen = multiByteLen;
+        state.multiBytesRemain = REMAINING[s / 12];
+        state.engineState = s;
+    }
+
+    @Override
+    public void validate(final ValidationState state, final ByteBuffer buf, final ValidationHandler handler) throws ValidationException {
+        long read = state.read;
+        int multiByteLen = state.multiByteLen;
+        int s = state.engineState;
+
+        final int end = buf.limit();
+        int i = buf.position();
+        while (i < end) {
+
+            if (s == ACCEPT) {
+                // ASCII fast path, skip 8 bytes at a time whilst none of them has its MSB set
+                final int start = i;
+                while (i <= end - 8 && (buf.getLong(i) & ASCII_WORD_MASK) == 0) {
+                    i += 8;
+                }
+                read += i - start;
+                if (i == end) {
+                    break;
+                }
+            }
+
+            final int byteClass = BYTE_CLASSES[buf.get(i++) & 0xFF];
+
+            read++;
+
+            int next = TRANSITIONS[s + byteClass];
+            if (next == REJECT) {
+                if (s == ACCEPT) {
+                    handler.error(ErrorKind.INVALID_SINGLE_BYTE, 1, 1, read);
+                    continue;
+                }
+
+                handler.error(ErrorKind.INVALID_SEQUENCE, multiByteLen, multiByteLen - REMAINING[s / 12] + 1, read);
+
+                // the byte may instead start a new sequence
+                s = ACCEPT;
+                next = TRANSITIONS[ACCEPT + byteClass];
+                if (next == REJECT) {
+                    next = ACCEPT;
+                }
+            }
+
+            if (s == ACCEPT && next != ACCEPT) {
+                multiByteLen = REMAINING[next / 12] + 1;
+            }
+            s = next;
+        }
+
+        buf.position(end);
+
+        state.read = read;
+        state.multiByteLen = multiByteLen;
+        state.multiBytesRemain = REMAINING[s / 12];
+        state.engineState = s;
+    }
+
+    /**
+     * Validates the bytes from index from to index to of buf, stopping at the
+     * first error, which is not reported. The position of buf is unchanged.
+     *
+     * @return the byte offset at which the first error would have been reported
+     * to a ValidationHandler, or -1 if there is no error, in which case state
+     * is updated so that validation may continue with the next bytes
+     */
+    static long firstError(final ValidationState state, final ByteBuffer buf, final int from, final int to) {
+        long read = state.read;
+        int s = state.engineState;
+
+        int i = from;
+        while (i < to) {
+
+            if (s == ACCEPT) {
+                // ASCII fast path, skip 8 bytes at a time whilst none of them has its MSB set
+                final int start = i;
+                while (i <= to - 8 && (buf.getLong(i) & ASCII_WORD_MASK) == 0) {
+                    i += 8;
+                }
+                read += i - start;
+                if (i == to) {
+                    break;
+                }
+            }
+
+            read++;
+            s = TRANSITIONS[s + BYTE_CLASSES[buf.get(i++) & 0xFF]];
+            if (s == REJECT) {
+                return read;
+            }
+        }
+
+        state.read = read;
+        state.multiBytesRemain = REMAINING[s / 12];
+        state.engineState = s;
+        return -1;
+    }
+
+    @Override
+    public void end(final ValidationState state, final ValidationHandler handler) throws ValidationException {
+        if (state.multiBytesRemain > 0) {
+            handler.error(ErrorKind.TRUNCATED_SEQUENCE, state.multiByteLen, state.multiByteLen - state.multiBytesRemain, state.read);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+/**
+ * Enumeration of the kinds of UTF-8 Validation Error
+ *
+ * An error is reported as its kind, together with the length of
+ * the sequence and the position within it, so that no message
+ * has to be created unless somebody asks for one.
+ *
+ * @author agent <agent@local>
+ */
+public enum ErrorKind {
+
+    /**
+     * A byte which may not appear on its own,
+     * e.g. a continuation byte outside of a sequence
+     */
+    INVALID_SINGLE_BYTE,
+
+    /**
+     * A byte within a multi-byte sequence which
+     * is not a valid continuation of that sequence
+     */
+    INVALID_SEQUENCE,
+
+    /**
+     * A multi-byte sequence which was not
+     * complete at the end of the input
+     */
+    TRUNCATED_SEQUENCE;
+
+    /**
+     * Formats a description of the error.
+     *
+     * @param sequenceLength the length of the sequence in which the error occurred
+     * @param sequencePosition the position (starting from 1) within the sequence of
+     * the invalid byte, or for a truncated sequence the number of bytes which were read
+     *
+     * @return A description of the validation error
+     */
+    public String message(final int sequenceLength, final int sequencePosition) {
+        switch(this) {
+            case INVALID_SINGLE_BYTE:
+                return "Invalid single byte UTF-8 character ";
+
+            case INVALID_SEQUENCE:
+                return "Invalid UTF-8 sequence, byte " + sequencePosition + " of " + sequenceLength + " byte sequence.";
+
+            default:
+                return "Invalid UTF-8 Sequence, expecting: " + (sequenceLength - sequencePosition) + " more bytes in " + sequenceLength + " byte sequence. End of File!";
+        }
+    }
+}
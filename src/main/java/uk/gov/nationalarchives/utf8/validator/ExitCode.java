@@ -46,4 +46,20 @@ public enum ExitCode {
     public int getCode() {
         return code;
     }
+
+    /**
+     * @param code The code of an ExitCode
+     *
+     * @return the ExitCode which has the code
+     *
+     * @throws IllegalArgumentException if no ExitCode has the code
+     */
+    public static ExitCode forCode(final int code) {
+        for (final ExitCode exitCode : values()) {
+            if (exitCode.code == code) {
+                return exitCode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown exit code: " + code);
+    }
 }
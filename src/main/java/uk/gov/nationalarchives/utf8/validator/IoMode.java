@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+/**
+ * Enumeration of the ways in which a File may be read for validation
+ *
+ * @author agent <agent@local>
+ */
+public enum IoMode {
+
+    /**
+     * Read with a FileInputStream into a byte array on the heap
+     */
+    STREAM,
+
+    /**
+     * Map a window of the file into memory at a time
+     */
+    MAPPED,
+
+    /**
+     * Read with a FileChannel into a direct ByteBuffer, which is
+     * off the heap like a mapping, but avoids the cost of setting up
+     * and tearing down a mapping, and the page faults of reading it,
+     * for each file. This suits many small files best.
+     */
+    CHANNEL;
+
+    /**
+     * Gets an IoMode by its name
+     *
+     * @param name The name of the IoMode, e.g. "channel"
+     *
+     * @return The IoMode
+     *
+     * @throws IllegalArgumentException if there is no IoMode of that name
+     */
+    public static IoMode forName(final String name) {
+        for (final IoMode ioMode : values()) {
+            if (ioMode.name().equalsIgnoreCase(name)) {
+                return ioMode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown I/O mode: " + name);
+    }
+}
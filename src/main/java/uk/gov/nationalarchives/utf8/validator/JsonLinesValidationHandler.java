@@ -0,0 +1,278 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * ValidationHandler which writes its errors to a Writer as JSON Lines,
+ * i.e. one JSON object per line, so that they may be read by a program.
+ *
+ * Each error is written as a record of type "error", and the outcome
+ * of validating each file as a record of type "file", e.g.
+ *
+ *   {"type":"error","path":"a.txt","offset":3,"kind":"INVALID_SEQUENCE","sequenceLength":2,"sequencePosition":2,"message":"..."}
+ *   {"type":"file","path":"a.txt","valid":false,"errors":1,"bytes":1024,"durationMs":1.5,"mibPerSecond":0.65}
+ *
+ * The "bytes" of a file record are the size of the file as it was read, so for
+ * a compressed file or a zip archive they are its compressed size, not the number
+ * of bytes validated, and "mibPerSecond" is that size in mebibytes (2^20 bytes)
+ * divided by the duration in seconds.
+ *
+ * The Writer is never flushed by the handler, so it should be buffered,
+ * and flushed once the output is complete. Like the PrintingValidationHandler
+ * it may fail-fast, by aborting processing upon the first error. When the
+ * Utf8Validator tracks positions, each error also has a "line" and a "column",
+ * and an error in an entry of a zip archive also has the name of its "entry".
+ * An IOException from the Writer is thrown as an UncheckedIOException.
+ *
+ * @author agent <agent@local>
+ */
+public class JsonLinesValidationHandler implements PositionValidationHandler, ZipValidationHandler, StoppingValidationHandler {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final boolean failFast;
+    private final Writer output;
+    private String path = null;
+    private String entry = null;    // the entry of a zip archive whose errors are being received
+    private long errors = 0;
+
+    public JsonLinesValidationHandler(final boolean failFast, final Writer output) {
+        this.failFast = failFast;
+        this.output = output;
+    }
+
+    /**
+     * Starts the records of a file, forgetting any previous errors.
+     *
+     * @param path The path of the file, which is written in each of its records
+     */
+    public void startFile(final String path) {
+        this.path = path;
+        this.errors = 0;
+        this.entry = null;
+    }
+
+    /**
+     * Writes the record of the outcome of validating the current file.
+     *
+     * @param bytes The size of the file as it was read, i.e. its compressed size if it is compressed
+     * @param durationNanos How long the validation took
+     * @param statistics The statistics of the characters in the file, or null
+     */
+    public void endFile(final long bytes, final long durationNanos, final CharacterStatistics statistics) {
+        try {
+            startRecord("file");
+            output.write(",\"valid\":");
+            output.write(errors == 0 ? "true" : "false");
+            output.write(",\"errors\":");
+            output.write(Long.toString(errors));
+            duration(bytes, durationNanos);
+            if (statistics != null) {
+                output.write(",\"sequences\":[");
+                for (int length = 1; length <= 4; length++) {
+                    if (length > 1) {
+                        output.write(',');
+                    }
+                    output.write(Long.toString(statistics.getSequenceCount(length)));
+                }
+                output.write("],\"lineTerminators\":");
+                output.write(Long.toString(statistics.getLineTerminatorCount()));
+                output.write(",\"bom\":");
+                output.write(statistics.hasBom() ? "true" : "false");
+                output.write(",\"ascii\":");
+                output.write(statistics.isAscii() ? "true" : "false");
+            }
+            output.write("}\n");
+        } catch (final IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Writes the record of a file which could not be validated.
+     *
+     * @param message Description of the failure
+     */
+    public void failed(final String message) {
+        try {
+            startRecord("file");
+            output.write(",\"failed\":");
+            string(message);
+            output.write("}\n");
+        } catch (final IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    @Override
+    public void error(final String message, final long byteOffset) throws ValidationException {
+        error(message, byteOffset, -1, -1);
+    }
+
+    @Override
+    public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) throws ValidationException {
+        error(kind, sequenceLength, sequencePosition, byteOffset, -1, -1);
+    }
+
+    @Override
+    public void error(final String message, final long byteOffset, final long line, final long column) throws ValidationException {
+        errors++;
+        try {
+            startError(byteOffset, line, column);
+            output.write(",\"message\":");
+            string(message);
+            output.write("}\n");
+        } catch (final IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        if (failFast) {
+            throw new ValidationException(message, byteOffset);
+        }
+    }
+
+    @Override
+    public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset, final long line, final long column) throws ValidationException {
+        errors++;
+        try {
+            startError(byteOffset, line, column);
+            output.write(",\"kind\":\"");
+            output.write(kind.name());
+            output.write("\",\"sequenceLength\":");
+            output.write(Integer.toString(sequenceLength));
+            output.write(",\"sequencePosition\":");
+            output.write(Integer.toString(sequencePosition));
+            output.write(",\"message\":");
+            string(kind.message(sequenceLength, sequencePosition));
+            output.write("}\n");
+        } catch (final IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        if (failFast) {
+            throw new ValidationException(kind, sequenceLength, sequencePosition, byteOffset);
+        }
+    }
+
+    @Override
+    public long getErrorLimit() {
+        return failFast ? 1 : 0;
+    }
+
+    @Override
+    public void startEntry(final String name) {
+        entry = name;
+    }
+
+    @Override
+    public void endEntry(final String name, final ValidationResult result) {
+        entry = null;
+    }
+
+    public boolean isErrored() {
+        return errors > 0;
+    }
+
+    private void startRecord(final String type) throws IOException {
+        output.write("{\"type\":\"");
+        output.write(type);
+        output.write('"');
+        if (path != null) {
+            output.write(",\"path\":");
+            string(path);
+        }
+    }
+
+    /**
+     * Starts an error record, with its entry if it is in a zip archive,
+     * and the position of the error if it is known, i.e. line is not -1.
+     */
+    private void startError(final long byteOffset, final long line, final long column) throws IOException {
+        startRecord("error");
+        if (entry != null) {
+            output.write(",\"entry\":");
+            string(entry);
+        }
+        output.write(",\"offset\":");
+        output.write(Long.toString(byteOffset));
+        if (line != -1) {
+            output.write(",\"line\":");
+            output.write(Long.toString(line));
+            output.write(",\"column\":");
+            output.write(Long.toString(column));
+        }
+    }
+
+    private void duration(final long bytes, final long durationNanos) throws IOException {
+        output.write(",\"bytes\":");
+        output.write(Long.toString(bytes));
+        output.write(",\"durationMs\":");
+        output.write(Double.toString(durationNanos / 1e6));
+        output.write(",\"mibPerSecond\":");
+        output.write(durationNanos > 0 ? Double.toString((bytes / (1024.0 * 1024.0)) / (durationNanos / 1e9)) : "0");
+    }
+
+    /**
+     * Writes a JSON string, escaping quotes, backslashes and control characters.
+     */
+    private void string(final String s) throws IOException {
+        output.write('"');
+        int from = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                output.write(s, from, i - from);
+                output.write('\\');
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        output.write(c);
+                        break;
+                    case '\n':
+                        output.write('n');
+                        break;
+                    case '\r':
+                        output.write('r');
+                        break;
+                    case '\t':
+                        output.write('t');
+                        break;
+                    default:
+                        output.write('u');
+                        output.write("00");
+                        output.write(HEX[c >> 4]);
+                        output.write(HEX[c & 0xF]);
+                }
+                from = i + 1;
+            }
+        }
+        output.write(s, from, s.length() - from);
+        output.write('"');
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Validation Engine which classifies each byte
+ * by testing it against the bit masks of
+ * the UTF-8 lead bytes.
+ *
+ * It checks that each lead byte is followed by the number
+ * of continuation bytes it declares, but does not check
+ * for overlong forms, surrogates or values above U+10FFFF.
+ * A run of ASCII is skipped 8 bytes at a time.
+ *
+ * @author Adam Retter <adam.retter@googlemail.com>
+ * @author agent <agent@local>
+ */
+public class MaskValidationEngine implements ValidationEngine {
+
+    private static final int FOUR_BYTE_CHAR =       0xF0;   // 11110xxx
+    private static final int THREE_BYTE_CHAR =      0xE0;   // 1110xxxx
+    private static final int TWO_BYTE_CHAR =        0xC0;   // 110xxxxx
+
+    private static final long ASCII_WORD_MASK = 0x8080808080808080L;   // MSB of each of 8 bytes
+
+    @Override
+    public void validate(final ValidationState state, final byte[] data, final int off, final int len, final ValidationHandler handler) throws ValidationException {
+        long read = state.read;
+        int multiByteLen = state.multiByteLen;
+        int multiBytesRemain = state.multiBytesRemain;
+
+        final ByteBuffer words = ValidationState.words(data);
+
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+
+            if (multiBytesRemain == 0) {
+                // ASCII fast path, skip 8 bytes at a time whilst none of them has its MSB set
+                final int start = i;
+                while (i <= end - 8 && (words.getLong(i) & ASCII_WORD_MASK) == 0) {
+                    i += 8;
+                }
+                read += i - start;
+                if (i == end) {
+                    break;
+                }
+            }
+
+            final int b = data[i++] & 0xFF;
+
+            read++;
+
+            if (multiBytesRemain > 0) {
+                multiBytesRemain--;
+                if ((b >>> 6) != 2) {
+                    handler.error(ErrorKind.INVALID_SEQUENCE, multiByteLen, multiByteLen - multiBytesRemain, read);
+                }
+
+            } else if ((b & 0x80) == 0) {
+                // One byte Sequence (MSB of a single byte character must be 0)
+                continue;
+
+            } else if ((b & FOUR_BYTE_CHAR) == FOUR_BYTE_CHAR) {
+                //Four byte Sequence
+                multiByteLen = 4;
+                multiBytesRemain = 3;
+
+            } else if((b & THREE_BYTE_CHAR) == THREE_BYTE_CHAR) {
+                //Three byte Sequence
+                multiByteLen = 3;
+                multiBytesRemain = 2;
+
+            } else if((b & TWO_BYTE_CHAR) == TWO_BYTE_CHAR) {
+                //Two byte Sequence
+                multiByteLen = 2;
+                multiBytesRemain = 1;
+
+            } else {
+                handler.error(ErrorKind.INVALID_SINGLE_BYTE, 1, 1, read);
+            }
+        }
+
+        state.read = read;
+        state.multiByteLen = multiByteLen;
+        state.multiBytesRemain = multiBytesRemain;
+    }
+
+    @Override
+    public void validate(final ValidationState state, final ByteBuffer buf, final ValidationHandler handler) throws ValidationException {
+        long read = state.read;
+        int multiByteLen = state.multiByteLen;
+        int multiBytesRemain = state.multiBytesRemain;
+
+        final int end = buf.limit();
+        int i = buf.position();
+        while (i < end) {
+
+            if (multiBytesRemain == 0) {
+                // ASCII fast path, skip 8 bytes at a time whilst none of them has its MSB set
+                final int start = i;
+                while (i <= end - 8 && (buf.getLong(i) & ASCII_WORD_MASK) == 0) {
+                    i += 8;
+                }
+                read += i - start;
+                if (i == end) {
+                    break;
+                }
+            }
+
+            final int b = buf.get(i++) & 0xFF;
+
+            read++;
+
+            if (multiBytesRemain > 0) {
+                multiBytesRemain--;
+                if ((b >>> 6) != 2) {
+                    handler.error(ErrorKind.INVALID_SEQUENCE, multiByteLen, multiByteLen - multiBytesRemain, read);
+                }
+
+            } else if ((b & 0x80) == 0) {
+                // One byte Sequence (MSB of a single byte character must be 0)
+                continue;
+
+            } else if ((b & FOUR_BYTE_CHAR) == FOUR_BYTE_CHAR) {
+                //Four byte Sequence
+                multiByteLen = 4;
+                multiBytesRemain = 3;
+
+            } else if((b & THREE_BYTE_CHAR) == THREE_BYTE_CHAR) {
+                //Three byte Sequence
+                multiByteLen = 3;
+                multiBytesRemain = 2;
+
+            } else if((b & TWO_BYTE_CHAR) == TWO_BYTE_CHAR) {
+                //Two byte Sequence
+                multiByteLen = 2;
+                multiBytesRemain = 1;
+
+            } else {
+                handler.error(ErrorKind.INVALID_SINGLE_BYTE, 1, 1, read);
+            }
+        }
+
+        buf.position(end);
+
+        state.read = read;
+        state.multiByteLen = multiByteLen;
+        state.multiBytesRemain = multiBytesRemain;
+    }
+
+    @Override
+    public void end(final ValidationState state, final ValidationHandler handler) throws ValidationException {
+        if (state.multiBytesRemain > 0) {
+            handler.error(ErrorKind.TRUNCATED_SEQUENCE, state.multiByteLen, state.multiByteLen - state.multiBytesRemain, state.read);
+        }
+    }
+}
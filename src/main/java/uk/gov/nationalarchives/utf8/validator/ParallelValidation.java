@@ -0,0 +1,381 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Validates a single File in parallel, by splitting it
+ * into regions which are validated on a ForkJoinPool.
+ *
+ * A region (other than the first) starts by skipping any
+ * continuation bytes, as they belong to a sequence which the
+ * previous region validates by reading on past its own end until
+ * that sequence is complete. Should a region not have started where
+ * the previous region actually finished, which can only happen
+ * when the input is invalid, it is validated again from there.
+ * The first region is validated by the calling thread, which passes
+ * its errors straight on to the ValidationHandler, whilst the errors
+ * of each later region are collected and then reported in order,
+ * so the ValidationHandler receives exactly the same errors, at the
+ * same offsets, as it would from a sequential validation.
+ * A region collects no more than
+ * {@link CollectingValidationHandler#MAX_COLLECTED_ERRORS} errors,
+ * nor more than the limit of a {@link StoppingValidationHandler}, and
+ * stops once it has them; it is then validated again, in order, by the
+ * calling thread, which passes its errors straight on. Once a region has
+ * as many errors as the handler will receive, the regions after it are
+ * cancelled, and should a region fail, or the handler stop, the regions
+ * which remain are cancelled.
+ * The pool of a number of threads is shared by every validation
+ * with that number, so that its threads are not started again for
+ * each file.
+ *
+ * @author agent <agent@local>
+ */
+final class ParallelValidation {
+
+    private static final long MIN_REGION_SIZE = 1024 * 1024;
+
+    private static final ConcurrentMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    private final ValidationEngine engine;
+    private final int bufferSize;
+    private long validated = 0;     // the end of the last region whose errors were reported
+
+    ParallelValidation(final ValidationEngine engine, final int bufferSize) {
+        this.engine = engine;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the number of bytes from the start of the file which were validated,
+     * and whose errors were reported, by the last validation, even if it failed
+     */
+    long getBytesValidated() {
+        return validated;
+    }
+
+    /**
+     * Validates the File as UTF-8 using up to threads regions.
+     *
+     * @param f The file to UTF-8 validate
+     * @param threads The number of threads to validate with
+     * @param handler A ValidationHandler that receives errors
+     * @param statistics Statistics to add the statistics of the file to, or null
+     */
+    void validate(final File f, final int threads, final ValidationHandler handler, final CharacterStatistics statistics) throws IOException, ValidationException {
+        final long size = f.length();
+        final int regions = (int) Math.max(1, Math.min(threads, size / MIN_REGION_SIZE));
+        validate(f, threads, regions, handler, statistics);
+    }
+
+    /**
+     * Validates the File as UTF-8 in a number of regions.
+     *
+     * @param f The file to UTF-8 validate
+     * @param threads The number of threads to validate with
+     * @param regions The number of regions to split the file into
+     * @param handler A ValidationHandler that receives errors
+     * @param statistics Statistics to add the statistics of the file to, or null
+     */
+    void validate(final File f, final int threads, final int regions, final ValidationHandler handler, final CharacterStatistics statistics) throws IOException, ValidationException {
+        validated = 0;
+        final long limit = CollectingValidationHandler.errorLimit(handler);
+        final Cancellation cancellation = new Cancellation(regions);
+        final ForkJoinPool pool = pool(threads);
+        final List<Future<Region>> futures = new ArrayList<>(regions);
+        try(final RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            final FileChannel fc = raf.getChannel();
+            final long size = fc.size();
+
+            for (int i = 1; i < regions; i++) {
+                final int index = i;
+                final long nominalStart = size * i / regions;
+                final long nominalEnd = size * (i + 1) / regions;
+                futures.add(pool.submit(new Callable<Region>() {
+                    @Override
+                    public Region call() throws IOException, ValidationException {
+                        try {
+                            final long start = skipContinuations(fc, nominalStart, nominalEnd);
+                            return validateRegion(fc, size, start, nominalEnd, statistics != null, new CollectingValidationHandler(CollectingValidationHandler.collectLimit(limit)), limit, index, cancellation);
+                        } catch(final Throwable t) {
+                            cancellation.cancel();
+                            throw t;
+                        }
+                    }
+                }));
+            }
+
+            long end = 0;   // where the previous region actually finished
+            for (int i = 0; i < regions; i++) {
+                Region region = i == 0 ? null : get(futures.get(i - 1));
+                if (region == null || region.start != end || !region.complete) {
+                    final long nominalEnd = region == null ? size / regions : region.nominalEnd;
+                    if (region != null && end >= nominalEnd) {
+                        continue;   // the previous region has already validated all of this one
+                    }
+                    if (region != null && !region.complete && cancellation.isCancelled(0)) {
+                        rethrowFailure(futures, i);
+                    }
+                    try {
+                        region = validateRegion(fc, size, end, nominalEnd, statistics != null, new CollectingValidationHandler(handler), 0, i, null);
+                    } catch(final ValidationException ve) {
+                        // the bytes up to the error which the handler stopped at were validated
+                        validated = Math.max(end, ve.getByteOffset());
+                        throw ve;
+                    }
+                }
+                validated = region.end;
+                region.errors.replay(handler);
+                if (statistics != null) {
+                    statistics.add(region.statistics);
+                }
+                end = region.end;
+            }
+        } finally {
+            cancellation.cancel();
+            for (final Future<Region> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Rethrows the exception of the region which failed, and cancelled
+     * the others, from those that follow the region of an index.
+     */
+    private static void rethrowFailure(final List<Future<Region>> futures, final int index) throws IOException, ValidationException {
+        for (int i = index; i < futures.size(); i++) {
+            get(futures.get(i));
+        }
+    }
+
+    /**
+     * Gets the pool of a number of threads. Its threads are
+     * daemons, which stop once they have been idle for a while,
+     * so the pool is never shut down.
+     */
+    static ForkJoinPool pool(final int threads) {
+        final Integer parallelism = Math.max(1, threads);
+        ForkJoinPool pool = POOLS.get(parallelism);
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+            final ForkJoinPool existing = POOLS.putIfAbsent(parallelism, pool);
+            if (existing != null) {
+                pool.shutdown();
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Finds the start of the first sequence in a region,
+     * by skipping up to 3 continuation bytes.
+     */
+    private static long skipContinuations(final FileChannel fc, final long nominalStart, final long nominalEnd) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(3);
+        while (buf.hasRemaining() && fc.read(buf, nominalStart + buf.position()) > -1) {
+        }
+        buf.flip();
+
+        long start = nominalStart;
+        while (buf.hasRemaining() && (buf.get() & 0xC0) == 0x80) {
+            start++;
+        }
+        return Math.min(start, Math.max(nominalStart, nominalEnd));
+    }
+
+    /**
+     * Validates from the start of a sequence up to the end of the
+     * sequence which spans the nominal end of the region.
+     * If the end of the file is reached, the validation is completed.
+     * Statistics are of exactly the bytes which are validated, so that
+     * those of consecutive regions add up to those of the file.
+     * A region which is validated by the calling thread, whose errors
+     * are passed straight on, has no cancellation and is never stopped.
+     */
+    private Region validateRegion(final FileChannel fc, final long size, final long start, final long nominalEnd, final boolean collectStatistics, final CollectingValidationHandler errors, final long limit, final int index, final Cancellation cancellation) throws IOException, ValidationException {
+        final Region region = new Region(start, nominalEnd, collectStatistics, errors);
+        final ValidationState state = new ValidationState();
+        state.read = start;
+
+        final ByteBuffer buf = ByteBuffer.allocate(bufferSize);
+        final byte[] data = buf.array();
+        long pos = start;
+        while (cancellation == null || !cancellation.isCancelled(index)) {
+            if (errors.isFull()) {
+                if (limit > 0 && errors.getErrorCount() >= limit) {
+                    cancellation.cancelAfter(index);
+                }
+                break;
+            }
+            if (pos >= size) {
+                engine.end(state, errors);
+                region.complete = true;
+                break;
+            } else if (pos >= nominalEnd && state.multiBytesRemain == 0) {
+                region.complete = true;
+                break;
+            }
+
+            buf.clear();
+            if (pos < nominalEnd) {
+                buf.limit((int) Math.min(bufferSize, nominalEnd - pos));
+            }
+            final int len = fc.read(buf, pos);
+            if (len == -1) {
+                throw new IOException("Unexpected end of file at byte position: " + pos);
+            }
+
+            if (pos < nominalEnd) {
+                if (region.statistics != null) {
+                    region.statistics.count(data, 0, len);
+                }
+                engine.validate(state, data, 0, len, errors);
+                pos += len;
+            } else {
+                // past the end of the region, only complete the sequence which spans its end
+                int i = 0;
+                while (i < len && state.multiBytesRemain > 0) {
+                    engine.validate(state, data, i++, 1, errors);
+                }
+                if (region.statistics != null) {
+                    region.statistics.count(data, 0, i);
+                }
+                pos += i;
+            }
+        }
+
+        region.end = pos;
+        return region;
+    }
+
+    /**
+     * Gets the result of a task, rethrowing the exception which it failed with.
+     */
+    static <T> T get(final Future<T> future) throws IOException, ValidationException {
+        try {
+            return future.get();
+        } catch(final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        } catch(final ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ValidationException) {
+                throw (ValidationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    private static final class Region {
+        final long start;
+        final long nominalEnd;
+        final CollectingValidationHandler errors;
+        final CharacterStatistics statistics;
+        long end;
+        boolean complete = false;   // false if the region stopped before its end
+
+        Region(final long start, final long nominalEnd, final boolean collectStatistics, final CollectingValidationHandler errors) {
+            this.start = start;
+            this.nominalEnd = nominalEnd;
+            this.errors = errors;
+            if (collectStatistics) {
+                this.statistics = new CharacterStatistics();
+                if (start > 0) {
+                    this.statistics.notAtStart();
+                }
+            } else {
+                this.statistics = null;
+            }
+        }
+    }
+
+    /**
+     * Tells the tasks of a validation, which are numbered in the
+     * order that their errors are reported, whether they may stop.
+     * Once a task has collected as many errors as the handler will receive,
+     * those after it are not needed, and once a task has failed, or the
+     * handler has stopped, none of them are.
+     */
+    static final class Cancellation {
+        private final AtomicInteger needed;     // the number of tasks whose errors may still be reported
+
+        Cancellation(final int tasks) {
+            this.needed = new AtomicInteger(tasks);
+        }
+
+        /**
+         * Stops every task.
+         */
+        void cancel() {
+            needed.set(0);
+        }
+
+        /**
+         * Stops the tasks after the task.
+         *
+         * @param index The number of the task, starting from 0
+         */
+        void cancelAfter(final int index) {
+            int current;
+            while ((current = needed.get()) > index + 1 && !needed.compareAndSet(current, index + 1)) {
+            }
+        }
+
+        /**
+         * @param index The number of the task, starting from 0
+         *
+         * @return true if the task should stop
+         */
+        boolean isCancelled(final int index) {
+            return index >= needed.get();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Tracks the line and column of the input whilst it is validated,
+ * and passes them on with each error to a PositionValidationHandler.
+ *
+ * Each chunk is given to the tracker before it is validated. When an error
+ * is reported, the chunk is counted up to the invalid byte, and once the chunk
+ * has been validated the rest of it is counted. Words of 8 bytes which are
+ * all ASCII are counted at once, by counting the LFs amongst them.
+ *
+ * @author agent <agent@local>
+ */
+final class PositionTracker implements ValidationHandler {
+
+    private static final long ASCII_WORD_MASK = 0x8080808080808080L;   // MSB of each of 8 bytes
+    private static final long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long LFS = 0x0A0A0A0A0A0A0A0AL;
+
+    private final ValidationHandler handler;
+
+    private long line = 1;
+    private long column = 1;
+
+    // the current chunk, whose bytes are counted up to countedTo
+    private ByteBuffer words;
+    private int chunkBase;      // the index in words of the first byte of the chunk
+    private long chunkStart;    // the offset in the input of the first byte of the chunk
+    private int chunkEnd;       // the index in words after the last byte of the chunk
+    private int counted;        // the index in words of the next byte to count
+
+    /**
+     * @param handler The ValidationHandler to pass errors on to, the position
+     * is only passed on if it is a PositionValidationHandler
+     */
+    PositionTracker(final ValidationHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Sets the chunk which is about to be validated.
+     *
+     * @param start The offset in the input of the first byte of the chunk
+     * @param buf The chunk, i.e. the remaining bytes of buf
+     */
+    void chunk(final long start, final ByteBuffer buf) {
+        // the bytes of each word are read in order from its least significant byte
+        words = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        chunkBase = buf.position();
+        chunkStart = start;
+        chunkEnd = buf.limit();
+        counted = chunkBase;
+    }
+
+    /**
+     * Sets the chunk which is about to be validated.
+     *
+     * @param start The offset in the input of the first byte of the chunk
+     * @param data The bytes of the chunk
+     * @param off The offset of the first byte of the chunk in data
+     * @param len The number of bytes in the chunk
+     */
+    void chunk(final long start, final byte[] data, final int off, final int len) {
+        chunk(start, ByteBuffer.wrap(data, off, len));
+    }
+
+    /**
+     * Counts the rest of the chunk, once it has been validated.
+     */
+    void chunkValidated() {
+        if (words != null) {
+            count(chunkEnd);
+            words = null;
+        }
+    }
+
+    /**
+     * @return the line of the next byte, starting from 1
+     */
+    long getLine() {
+        return line;
+    }
+
+    /**
+     * @return the column of the next byte in code points, starting from 1
+     */
+    long getColumn() {
+        return column;
+    }
+
+    @Override
+    public void error(final String message, final long byteOffset) throws ValidationException {
+        position(byteOffset);
+        passOn(handler, message, byteOffset, line, column);
+    }
+
+    @Override
+    public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) throws ValidationException {
+        position(byteOffset);
+        passOn(handler, kind, sequenceLength, sequencePosition, byteOffset, line, column);
+    }
+
+    /**
+     * Passes an error on to a handler, with its position
+     * if the handler is a PositionValidationHandler.
+     */
+    static void passOn(final ValidationHandler handler, final String message, final long byteOffset, final long line, final long column) throws ValidationException {
+        if (handler instanceof PositionValidationHandler) {
+            ((PositionValidationHandler) handler).error(message, byteOffset, line, column);
+        } else {
+            handler.error(message, byteOffset);
+        }
+    }
+
+    /**
+     * Passes an error on to a handler, with its position
+     * if the handler is a PositionValidationHandler.
+     */
+    static void passOn(final ValidationHandler handler, final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset, final long line, final long column) throws ValidationException {
+        if (handler instanceof PositionValidationHandler) {
+            ((PositionValidationHandler) handler).error(kind, sequenceLength, sequencePosition, byteOffset, line, column);
+        } else {
+            handler.error(kind, sequenceLength, sequencePosition, byteOffset);
+        }
+    }
+
+    /**
+     * Counts the chunk up to the byte which was found to be invalid,
+     * errors are reported at the offset one past that byte.
+     */
+    private void position(final long byteOffset) {
+        if (words != null) {
+            final long index = chunkBase + (byteOffset - 1 - chunkStart);
+            if (index > counted) {
+                count((int) Math.min(index, chunkEnd));
+            }
+        }
+    }
+
+    private void count(final int to) {
+        int i = counted;
+        while (i < to) {
+            if (i <= to - 8) {
+                final long word = words.getLong(i);
+                if ((word & ASCII_WORD_MASK) == 0) {
+                    // the MSB of each byte which is an LF
+                    final long lfMask = ~((word ^ LFS) + LOW_7_BITS) & ASCII_WORD_MASK;
+                    if (lfMask == 0) {
+                        column += 8;
+                    } else {
+                        line += Long.bitCount(lfMask);
+                        // the code points after the last LF
+                        column = 1 + (Long.numberOfLeadingZeros(lfMask) >>> 3);
+                    }
+                    i += 8;
+                    continue;
+                }
+            }
+
+            final int b = words.get(i++);
+            if (b == '\n') {
+                line++;
+                column = 1;
+            } else if ((b & 0xC0) != 0x80) {
+                column++;
+            }
+        }
+        counted = i;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+/**
+ * A ValidationHandler which is also told the line and column
+ * of each error, when the Utf8Validator tracks positions.
+ *
+ * Lines are counted by their LF bytes, and start from 1. Columns
+ * are counted in code points, i.e. every byte which is not a continuation
+ * byte (80..BF), and start from 1. The column of an error is that of
+ * the byte which was found to be invalid, or for a sequence which is
+ * truncated by the end of the input, the column after the last code point.
+ *
+ * @author agent <agent@local>
+ *
+ * @see Utf8Validator#setTrackPositions(boolean)
+ */
+public interface PositionValidationHandler extends ValidationHandler {
+
+   /**
+    * Error handler, called when a Validation Error occurs,
+    * by default it calls {@link #error(String, long)}
+    *
+    * @param message Description of the validation error
+    * @param byteOffset offset in the underlying data that failed validation
+    * @param line The line of the error, starting from 1
+    * @param column The column of the error in code points, starting from 1
+    *
+    * @throws ValidationException, an implementation may choose to throw a
+    * ValidationException on receipt of an error. Throwing a ValidationException
+    * stops the Utf8Validator
+    */
+    default void error(final String message, final long byteOffset, final long line, final long column) throws ValidationException {
+        error(message, byteOffset);
+    }
+
+   /**
+    * Error handler, called when a Validation Error occurs, by default
+    * it calls {@link #error(ErrorKind, int, int, long)}
+    *
+    * @param kind The kind of validation error
+    * @param sequenceLength the length of the sequence in which the error occurred
+    * @param sequencePosition the position (starting from 1) within the sequence of
+    * the invalid byte, or for a truncated sequence the number of bytes which were read
+    * @param byteOffset offset in the underlying data that failed validation
+    * @param line The line of the error, starting from 1
+    * @param column The column of the error in code points, starting from 1
+    *
+    * @throws ValidationException, an implementation may choose to throw a
+    * ValidationException on receipt of an error. Throwing a ValidationException
+    * stops the Utf8Validator
+    */
+    default void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset, final long line, final long column) throws ValidationException {
+        error(kind, sequenceLength, sequencePosition, byteOffset);
+    }
+}
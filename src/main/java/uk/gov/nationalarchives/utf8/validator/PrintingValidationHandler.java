@@ -31,16 +31,18 @@ import java.io.PrintStream;
 /**
  * Example ValidationHandler which prints its errors to an output PrintStream
  * It also has the ability to fail-fast by aborting processing
- * upon the first error.
+ * upon the first error. The entry of an error in a zip archive
+ * is printed with its byte position.
  * It is used by the Utf8ValidateCmd.
  *
  * @author Adam Retter <adam.retter@googlemail.com>
  */
-public class PrintingValidationHandler implements ValidationHandler {
+public class PrintingValidationHandler implements PositionValidationHandler, ZipValidationHandler, StoppingValidationHandler {
             
     private final boolean failFast;
     private final PrintStream output;
     private boolean errored = false;
+    private String entry = null;    // the entry of a zip archive whose errors are being received
 
     public PrintingValidationHandler(final boolean failFast, final PrintStream output) {
         this.failFast = failFast;
@@ -51,13 +53,105 @@ public class PrintingValidationHandler implements ValidationHandler {
     public void error(final String message, final long byteOffset) throws ValidationException {
         errored = true;
         if(failFast) {
-            throw new ValidationException(message, byteOffset);
+            throw exception(message, byteOffset);
         } else {
-            output.println("[ERROR] " + message + " @ byte position: " + byteOffset);
+            output.print("[ERROR] " + message);
+            printAt(byteOffset);
+            output.println();
         }
     }
 
+    @Override
+    public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) throws ValidationException {
+        errored = true;
+        if(failFast) {
+            throw exception(kind, sequenceLength, sequencePosition, byteOffset);
+        } else {
+            output.print("[ERROR] ");
+            output.print(kind.message(sequenceLength, sequencePosition));
+            printAt(byteOffset);
+            output.println();
+        }
+    }
+
+    @Override
+    public void error(final String message, final long byteOffset, final long line, final long column) throws ValidationException {
+        errored = true;
+        if(failFast) {
+            throw exception(message, byteOffset);
+        } else {
+            output.print("[ERROR] " + message);
+            printAt(byteOffset);
+            output.println(", line: " + line + ", column: " + column);
+        }
+    }
+
+    @Override
+    public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset, final long line, final long column) throws ValidationException {
+        errored = true;
+        if(failFast) {
+            throw exception(kind, sequenceLength, sequencePosition, byteOffset);
+        } else {
+            output.print("[ERROR] ");
+            output.print(kind.message(sequenceLength, sequencePosition));
+            printAt(byteOffset);
+            output.print(", line: ");
+            output.print(line);
+            output.print(", column: ");
+            output.println(column);
+        }
+    }
+
+    @Override
+    public long getErrorLimit() {
+        return failFast ? 1 : 0;
+    }
+
+    @Override
+    public void startEntry(final String name) {
+        entry = name;
+    }
+
+    @Override
+    public void endEntry(final String name, final ValidationResult result) {
+        entry = null;
+    }
+
     public boolean isErrored() {
         return errored;
     }
+
+    /**
+     * Forgets any previous errors, so that the
+     * handler may be reused for another validation.
+     */
+    public void reset() {
+        errored = false;
+        entry = null;
+    }
+
+    /**
+     * Prints where an error is, i.e. its byte position, and its entry if it is in a zip archive.
+     */
+    private void printAt(final long byteOffset) {
+        output.print(" @ ");
+        if(entry != null) {
+            output.print("entry: ");
+            output.print(entry);
+            output.print(", ");
+        }
+        output.print("byte position: ");
+        output.print(byteOffset);
+    }
+
+    private ValidationException exception(final String message, final long byteOffset) {
+        return new ValidationException(entry != null ? message + " in entry: " + entry : message, byteOffset);
+    }
+
+    private ValidationException exception(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+        if(entry != null) {
+            return new ValidationException(kind.message(sequenceLength, sequencePosition) + " in entry: " + entry, byteOffset);
+        }
+        return new ValidationException(kind, sequenceLength, sequencePosition, byteOffset);
+    }
 }
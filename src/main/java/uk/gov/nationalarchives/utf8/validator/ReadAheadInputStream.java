@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream which reads another InputStream on its own thread,
+ * e.g. one which decompresses its input, into a bounded number of buffers,
+ * so that reading the other stream overlaps with using what has been read.
+ *
+ * Each buffer is filled by the reading thread before it is passed on, and
+ * is returned to that thread once it has been read. Closing this stream
+ * stops the reading thread and closes the other stream.
+ *
+ * @author agent <agent@local>
+ */
+final class ReadAheadInputStream extends InputStream {
+
+    private final InputStream in;
+    private final BlockingQueue<Chunk> filled;
+    private final BlockingQueue<Chunk> empty;
+    private final Thread reader;
+    private Chunk current = null;
+    private int pos = 0;
+    private long byteCount = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param in The InputStream to read ahead of
+     * @param buffers The number of buffers, at least 2
+     * @param bufferSize The size of each buffer
+     */
+    ReadAheadInputStream(final InputStream in, final int buffers, final int bufferSize) {
+        this.in = in;
+        this.filled = new ArrayBlockingQueue<>(buffers);
+        this.empty = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            empty.add(new Chunk(new byte[bufferSize]));
+        }
+        this.reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        }, "utf8-validator-read-ahead");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Fills each empty buffer and passes it on, until
+     * the end of the other stream or an error.
+     */
+    private void readAhead() {
+        try {
+            while (!closed) {
+                final Chunk chunk = empty.take();
+                chunk.len = 0;
+                chunk.error = null;
+                int read = 0;
+                while (chunk.len < chunk.buf.length && (read = in.read(chunk.buf, chunk.len, chunk.buf.length - chunk.len)) > -1) {
+                    chunk.len += read;
+                }
+                chunk.end = read == -1;
+                filled.put(chunk);
+                if (chunk.end) {
+                    return;
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            if (!closed) {
+                final Chunk failed = new Chunk(new byte[0]);
+                failed.error = e;
+                filled.offer(failed);   // there is always room, as this thread holds no other chunk
+            }
+        } catch (final InterruptedException ie) {
+            // closed
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || pos == current.len) {
+            if (current != null) {
+                if (current.end) {
+                    return -1;
+                }
+                empty.add(current);
+                current = null;
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            try {
+                current = filled.take();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            pos = 0;
+            if (current.error != null) {
+                final Exception e = current.error;
+                current.end = true;
+                current.len = 0;
+                if (e instanceof IOException) {
+                    throw (IOException) e;
+                }
+                throw (RuntimeException) e;
+            }
+        }
+
+        final int n = Math.min(len, current.len - pos);
+        System.arraycopy(current.buf, pos, b, off, n);
+        pos += n;
+        byteCount += n;
+        return n;
+    }
+
+    /**
+     * @return The number of bytes which have been read from this stream
+     */
+    long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            // the reading thread finishes any read of the other stream before it stops
+            reader.interrupt();
+            try {
+                reader.join();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            in.close();
+        }
+    }
+
+    private static final class Chunk {
+        final byte[] buf;
+        int len;
+        boolean end;
+        Exception error;
+
+        Chunk(final byte[] buf) {
+            this.buf = buf;
+        }
+    }
+}
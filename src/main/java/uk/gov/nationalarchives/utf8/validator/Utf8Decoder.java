@@ -0,0 +1,355 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import static uk.gov.nationalarchives.utf8.validator.DfaValidationEngine.ACCEPT;
+import static uk.gov.nationalarchives.utf8.validator.DfaValidationEngine.BYTE_CLASSES;
+import static uk.gov.nationalarchives.utf8.validator.DfaValidationEngine.REJECT;
+import static uk.gov.nationalarchives.utf8.validator.DfaValidationEngine.REMAINING;
+import static uk.gov.nationalarchives.utf8.validator.DfaValidationEngine.TRANSITIONS;
+
+/**
+ * Validates UTF-8 and decodes it to UTF-16 chars in the same pass,
+ * rather than validating and then decoding with a CharsetDecoder.
+ *
+ * The bytes are validated by the same DFA as the {@link DfaValidationEngine},
+ * and the ValidationHandler receives exactly the same errors as it would from
+ * that engine. Each invalid byte, or part of a sequence which cannot be
+ * completed, is decoded as U+FFFD as recommended by the Unicode Standard,
+ * i.e. each maximal subpart of an ill-formed sequence is replaced. This is
+ * the same as {@code new String(bytes, StandardCharsets.UTF_8)}, other than
+ * for every surrogate, i.e. a sequence which starts ED A0..BF. Its maximal
+ * subpart is the ED alone, so the ED and each of the continuation bytes
+ * which follow it are decoded as a U+FFFD each, e.g. ED A0 80 as three,
+ * whereas the JDK decodes the ED A0..BF, and a continuation byte after it
+ * should there be one, as a single U+FFFD.
+ *
+ * The input may be decoded a chunk at a time, any multi-byte sequence
+ * which spans two chunks is carried over between them. When the input is
+ * finished {@link #end(char[], int)} or {@link #end(CharBuffer)} must be called.
+ * A decoder may then be reused after {@link #reset()}, but it must
+ * not be used by more than one thread at a time.
+ *
+ * @author agent <agent@local>
+ */
+public class Utf8Decoder {
+
+    private static final long ASCII_WORD_MASK = 0x8080808080808080L;   // MSB of each of 8 bytes
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final ValidationHandler handler;
+    private final ValidationState state = new ValidationState();
+    private int codePoint = 0;      // bits of the code point decoded so far from a multi-byte sequence
+
+    /**
+     * @param handler A ValidationHandler that receives errors
+     */
+    public Utf8Decoder(final ValidationHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * The most chars which may be decoded from a chunk of bytes,
+     * as a sequence carried over from the previous chunk may
+     * complete as a surrogate pair.
+     *
+     * @param len The number of bytes in the chunk
+     *
+     * @return The number of chars which must be available for decoding the chunk
+     */
+    public static int maxChars(final int len) {
+        return len + 1;
+    }
+
+    /**
+     * Validates and decodes a region of a byte array.
+     *
+     * @param data The bytes for UTF-8 validation
+     * @param off The offset of the first byte in data to decode
+     * @param len The number of bytes from data to decode
+     * @param out The array to decode chars into, which must have
+     * room for {@link #maxChars(int)} chars from outOff
+     * @param outOff The offset in out of the first decoded char
+     *
+     * @return the number of chars decoded into out
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    public int decode(final byte[] data, final int off, final int len, final char[] out, final int outOff) throws ValidationException {
+        if(off < 0 || len < 0 || len > data.length - off) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", data.length: " + data.length);
+        }
+        if(outOff < 0 || maxChars(len) > out.length - outOff) {
+            throw new IndexOutOfBoundsException("outOff: " + outOff + ", maxChars: " + maxChars(len) + ", out.length: " + out.length);
+        }
+
+        long read = state.read;
+        int multiByteLen = state.multiByteLen;
+        int s = state.engineState;
+        int cp = codePoint;
+
+        final ByteBuffer words = ValidationState.words(data);
+
+        final int end = off + len;
+        int i = off;
+        int o = outOff;
+        while (i < end) {
+
+            if (s == ACCEPT) {
+                // ASCII fast path, copy 8 bytes at a time whilst none of them has its MSB set
+                final int start = i;
+                while (i <= end - 8 && (words.getLong(i) & ASCII_WORD_MASK) == 0) {
+                    for (int j = 0; j < 8; j++) {
+                        out[o + j] = (char)data[i + j];
+                    }
+                    i += 8;
+                    o += 8;
+                }
+                read += i - start;
+                if (i == end) {
+                    break;
+                }
+            }
+
+            final int b = data[i++] & 0xFF;
+            final int byteClass = BYTE_CLASSES[b];
+
+            read++;
+
+            int next = TRANSITIONS[s + byteClass];
+            if (next == REJECT) {
+                out[o++] = REPLACEMENT;
+                if (s == ACCEPT) {
+                    handler.error(ErrorKind.INVALID_SINGLE_BYTE, 1, 1, read);
+                    continue;
+                }
+
+                handler.error(ErrorKind.INVALID_SEQUENCE, multiByteLen, multiByteLen - REMAINING[s / 12] + 1, read);
+
+                // the byte may instead start a new sequence
+                s = ACCEPT;
+                next = TRANSITIONS[ACCEPT + byteClass];
+                if (next == REJECT) {
+                    out[o++] = REPLACEMENT;
+                    continue;
+                }
+            }
+
+            if (s == ACCEPT) {
+                if (next == ACCEPT) {
+                    cp = b;
+                } else {
+                    multiByteLen = REMAINING[next / 12] + 1;
+                    cp = b & (0x7F >> multiByteLen);     // the bits of the lead byte after its length prefix
+                }
+            } else {
+                cp = (cp << 6) | (b & 0x3F);
+            }
+
+            if (next == ACCEPT) {
+                if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    out[o++] = (char)cp;
+                } else {
+                    out[o++] = Character.highSurrogate(cp);
+                    out[o++] = Character.lowSurrogate(cp);
+                }
+            }
+            s = next;
+        }
+
+        state.read = read;
+        state.multiByteLen = multiByteLen;
+        state.multiBytesRemain = REMAINING[s / 12];
+        state.engineState = s;
+        codePoint = cp;
+
+        return o - outOff;
+    }
+
+    /**
+     * Validates and decodes as many of the remaining bytes of a buffer as there
+     * is room for in the CharBuffer, which will be all of them if out has room for
+     * {@link #maxChars(int)} chars. No bytes are decoded unless out has room
+     * for at least 2 chars. On return the position of each buffer is after
+     * the bytes decoded, and the chars decoded, respectively.
+     *
+     * @param in The bytes for UTF-8 validation
+     * @param out The buffer to decode chars into
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    public void decode(final ByteBuffer in, final CharBuffer out) throws ValidationException {
+        long read = state.read;
+        int multiByteLen = state.multiByteLen;
+        int s = state.engineState;
+        int cp = codePoint;
+
+        final int end = in.limit();
+        final int outEnd = out.limit();
+        int i = in.position();
+        int o = out.position();
+
+        // a single byte decodes to at most 2 chars
+        while (i < end && o <= outEnd - 2) {
+
+            if (s == ACCEPT) {
+                // ASCII fast path, copy 8 bytes at a time whilst none of them has its MSB set
+                final int start = i;
+                while (i <= end - 8 && o <= outEnd - 8 && (in.getLong(i) & ASCII_WORD_MASK) == 0) {
+                    for (int j = 0; j < 8; j++) {
+                        out.put(o + j, (char)in.get(i + j));
+                    }
+                    i += 8;
+                    o += 8;
+                }
+                read += i - start;
+                if (i == end || o > outEnd - 2) {
+                    break;
+                }
+            }
+
+            final int b = in.get(i++) & 0xFF;
+            final int byteClass = BYTE_CLASSES[b];
+
+            read++;
+
+            int next = TRANSITIONS[s + byteClass];
+            if (next == REJECT) {
+                out.put(o++, REPLACEMENT);
+                if (s == ACCEPT) {
+                    handler.error(ErrorKind.INVALID_SINGLE_BYTE, 1, 1, read);
+                    continue;
+                }
+
+                handler.error(ErrorKind.INVALID_SEQUENCE, multiByteLen, multiByteLen - REMAINING[s / 12] + 1, read);
+
+                // the byte may instead start a new sequence
+                s = ACCEPT;
+                next = TRANSITIONS[ACCEPT + byteClass];
+                if (next == REJECT) {
+                    out.put(o++, REPLACEMENT);
+                    continue;
+                }
+            }
+
+            if (s == ACCEPT) {
+                if (next == ACCEPT) {
+                    cp = b;
+                } else {
+                    multiByteLen = REMAINING[next / 12] + 1;
+                    cp = b & (0x7F >> multiByteLen);     // the bits of the lead byte after its length prefix
+                }
+            } else {
+                cp = (cp << 6) | (b & 0x3F);
+            }
+
+            if (next == ACCEPT) {
+                if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    out.put(o++, (char)cp);
+                } else {
+                    out.put(o++, Character.highSurrogate(cp));
+                    out.put(o++, Character.lowSurrogate(cp));
+                }
+            }
+            s = next;
+        }
+
+        in.position(i);
+        out.position(o);
+
+        state.read = read;
+        state.multiByteLen = multiByteLen;
+        state.multiBytesRemain = REMAINING[s / 12];
+        state.engineState = s;
+        codePoint = cp;
+    }
+
+    /**
+     * Completes the decoding, reporting any multi-byte sequence which was
+     * left incomplete by the end of the input, and decoding it as U+FFFD.
+     *
+     * @param out The array to decode any char into, which
+     * must have room for 1 char from outOff
+     * @param outOff The offset in out of the decoded char
+     *
+     * @return the number of chars decoded into out, 0 or 1
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    public int end(final char[] out, final int outOff) throws ValidationException {
+        if (state.multiBytesRemain == 0) {
+            return 0;
+        }
+        out[outOff] = REPLACEMENT;
+        truncated();
+        return 1;
+    }
+
+    /**
+     * Completes the decoding, reporting any multi-byte sequence which was
+     * left incomplete by the end of the input, and decoding it as U+FFFD.
+     *
+     * @param out The buffer to decode any char into
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     * @throws BufferOverflowException if a char is decoded and out has no room for it
+     */
+    public void end(final CharBuffer out) throws ValidationException {
+        if (state.multiBytesRemain > 0) {
+            out.put(REPLACEMENT);
+            truncated();
+        }
+    }
+
+    /**
+     * Resets the decoder so that it may decode further input.
+     */
+    public void reset() {
+        state.read = 0;
+        state.multiByteLen = 0;
+        state.multiBytesRemain = 0;
+        state.engineState = ACCEPT;
+        codePoint = 0;
+    }
+
+    private void truncated() throws ValidationException {
+        final int multiByteLen = state.multiByteLen;
+        final int multiBytesRemain = state.multiBytesRemain;
+        final long read = state.read;
+        reset();
+        state.read = read;
+        handler.error(ErrorKind.TRUNCATED_SEQUENCE, multiByteLen, multiByteLen - multiBytesRemain, read);
+    }
+}
@@ -26,18 +26,52 @@
  */
 package uk.gov.nationalarchives.utf8.validator;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.management.JMException;
 
 /**
  * UTF-8 Validator Command Line
  *
+ * Validates any number of files, directories (which are walked
+ * recursively) and @listfiles (which list one path per line).
+ * The exit code is the bitwise OR of the ExitCode for each file.
+ * The files may instead be validated by a long running server, whose
+ * validators have already been compiled by the JIT.
+ *
  * @author Adam Retter <adam.retter@googlemail.com>
  * @version 1.2
  */
 public class Utf8ValidateCmd {
     
     final static String VERSION = "1.2";
+
+    private final static int JSON_BUFFER_SIZE = 64 * 1024;
+
+    private final static int DEFAULT_CACHE_SIZE = 1000000;
         
     /**
      * @param args the command line arguments
@@ -47,69 +81,697 @@ public class Utf8ValidateCmd {
         //check useage
         if(args.length < 1) {
             System.out.println("UTF-8 Validator version: " + VERSION);
-            System.out.println("Usage: utf8validate [options] <file>");
+            System.out.println("Usage: utf8validate [options] <file|directory|@listfile>...");
+            System.out.println("       utf8validate [options] --server <port>");
             System.out.println("");
             System.out.println("\t-f | --fail-fast");
             System.out.println("\t\tStops on the first validation error rather than reporting all errors. Default false");
+            System.out.println("\t-n | --max-errors");
+            System.out.println("\t\tStops after this many validation errors, and reports errors at consecutive bytes as a single invalid run. Default unlimited");
             System.out.println("\t-b | --buffer-size");
             System.out.println("\t\tSize of the in-memory buffer for file data (in bytes). Default 8192");
             System.out.println("\t-m | --mem-mapped");
-            System.out.println("\t\tUse memory mapped Disk I/O. Default false");
+            System.out.println("\t\tUse memory mapped Disk I/O, the same as --io mapped. Default false");
+            System.out.println("\t-i | --io <stream|mapped|channel>");
+            System.out.println("\t\tHow files are read, channel reads into an off-heap buffer, which suits many small files. Default stream");
+            System.out.println("\t-w | --mapped-window-size");
+            System.out.println("\t\tSize of the window of the file which is memory mapped at a time (in bytes). Default 268435456");
+            System.out.println("\t-e | --engine <mask|dfa|vector>");
+            System.out.println("\t\tThe validation engine, dfa and vector also reject overlong forms, surrogates and values above U+10FFFF. Default mask");
+            System.out.println("\t\tvector needs the utf8-validator-vector module, else dfa is used");
+            System.out.println("\t-t | --threads");
+            System.out.println("\t\tNumber of threads to validate regions of the file with in parallel. Default 1");
+            System.out.println("\t-a | --async");
+            System.out.println("\t\tRead the next chunks of the file whilst validating the current chunk, unless using threads. Default false");
+            System.out.println("\t-j | --jobs");
+            System.out.println("\t\tNumber of files to validate at the same time. Default 1");
+            System.out.println("\t-k | --cache <file>");
+            System.out.println("\t\tCache the outcome of validating each file in this file, and skip files which were valid and have not changed since");
+            System.out.println("\t-K | --cache-size <entries>");
+            System.out.println("\t\tThe most outcomes for the cache to hold, the least recently used are evicted. It should be more than the number of files validated each time, else none are found. Default " + DEFAULT_CACHE_SIZE);
+            System.out.println("\t-o | --format <text|jsonl>");
+            System.out.println("\t\tThe format of the output, jsonl writes a JSON record for each file and each error. Default text");
+            System.out.println("\t-z | --decompress");
+            System.out.println("\t\tValidate the decompressed content of gzip and zlib compressed files, which are detected by their first bytes. Default false");
+            System.out.println("\t-x | --zip-entries <glob>");
+            System.out.println("\t\tValidate the entries of zip archives whose names match the glob, e.g. '**.txt', rather than the archive, using --threads for the entries");
+            System.out.println("\t-l | --lines");
+            System.out.println("\t\tAlso report the line, and the column in characters, of each validation error. Default false");
+            System.out.println("\t-c | --char-stats");
+            System.out.println("\t\tPrint statistics of the characters in each file, e.g. the number of each length of sequence and of line terminators. Default false");
+            System.out.println("\t-p | --stats");
+            System.out.println("\t\tPrint a summary of the metrics of the validations at the end, e.g. the throughput and the latency for each size of file, which are also exposed over JMX. Default false");
+            System.out.println("\t-s | --server <port>");
+            System.out.println("\t\tRun a validation server on this port of the loopback interface, which validates files for --use-server with the other options, and --jobs files at a time");
+            System.out.println("\t-u | --use-server <port>");
+            System.out.println("\t\tAsk the validation server on this port to validate the files, the options of the server are used instead of the other options");
             System.out.println("");
             System.exit(ExitCode.INVALID_ARGS.getCode());
         }
         
         //parse args
-        boolean failFast = false;
-        int bufferSize = -1;
-        boolean memMapped = false;
-        final File fileToValidate;
+        final Options options = new Options();
+        int jobs = 1;
+        Path cacheFile = null;
+        int cacheSize = DEFAULT_CACHE_SIZE;
 
         // parse args
-        for (int i = 0; i < args.length - 1; i++) {
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
             if(args[i].equals("-f") || args[i].equals("--fail-fast")) {
-                failFast = true;
+                options.failFast = true;
+            }
+
+            if(args[i].equals("-n") || args[i].equals("--max-errors")) {
+                options.maxErrors = Long.parseLong(args[++i]);
             }
 
             if(args[i].equals("-b") || args[i].equals("--buffer-size")) {
-                bufferSize = Integer.parseInt(args[++i]);
+                options.bufferSize = Integer.parseInt(args[++i]);
             }
 
             if(args[i].equals("-m") || args[i].equals("--mem-mapped")) {
-                memMapped = true;
+                options.ioMode = IoMode.MAPPED;
+            }
+
+            if(args[i].equals("-i") || args[i].equals("--io")) {
+                try {
+                    options.ioMode = IoMode.forName(args[++i]);
+                } catch(final IllegalArgumentException iae) {
+                    System.out.println(iae.getMessage());
+                    System.exit(ExitCode.INVALID_ARGS.getCode());
+                }
+            }
+
+            if(args[i].equals("-w") || args[i].equals("--mapped-window-size")) {
+                options.mappedWindowSize = Integer.parseInt(args[++i]);
+            }
+
+            if(args[i].equals("-t") || args[i].equals("--threads")) {
+                options.threads = Integer.parseInt(args[++i]);
+            }
+
+            if(args[i].equals("-a") || args[i].equals("--async")) {
+                options.async = true;
+            }
+
+            if(args[i].equals("-j") || args[i].equals("--jobs")) {
+                jobs = Math.max(1, Integer.parseInt(args[++i]));
+            }
+
+            if(args[i].equals("-k") || args[i].equals("--cache")) {
+                cacheFile = Paths.get(args[++i]);
+            }
+
+            if(args[i].equals("-K") || args[i].equals("--cache-size")) {
+                cacheSize = Integer.parseInt(args[++i]);
+            }
+
+            if(args[i].equals("-o") || args[i].equals("--format")) {
+                final String format = args[++i];
+                if(format.equals("jsonl")) {
+                    options.jsonl = true;
+                } else if(!format.equals("text")) {
+                    System.out.println("Unknown format: " + format);
+                    System.exit(ExitCode.INVALID_ARGS.getCode());
+                }
+            }
+
+            if(args[i].equals("-z") || args[i].equals("--decompress")) {
+                options.decompress = true;
+            }
+
+            if(args[i].equals("-x") || args[i].equals("--zip-entries")) {
+                options.zipEntries = args[++i];
+            }
+
+            if(args[i].equals("-l") || args[i].equals("--lines")) {
+                options.lines = true;
+            }
+
+            if(args[i].equals("-c") || args[i].equals("--char-stats")) {
+                options.charStats = true;
+            }
+
+            if(args[i].equals("-p") || args[i].equals("--stats")) {
+                options.metrics = new ValidationMetrics();
+            }
+
+            if(args[i].equals("-s") || args[i].equals("--server")) {
+                options.serverPort = Integer.parseInt(args[++i]);
+            }
+
+            if(args[i].equals("-u") || args[i].equals("--use-server")) {
+                options.usePort = Integer.parseInt(args[++i]);
+            }
+
+            if(args[i].equals("-e") || args[i].equals("--engine")) {
+                try {
+                    options.engine = ValidationEngines.forName(args[++i]);
+                } catch(final IllegalArgumentException iae) {
+                    System.out.println(iae.getMessage());
+                    System.exit(ExitCode.INVALID_ARGS.getCode());
+                }
             }
         }
-        fileToValidate = new File(args[args.length - 1]);
 
-        if(!fileToValidate.exists()) {
-            System.out.println("File: " + fileToValidate.getPath() + " does not exist!");
+        if(cacheFile != null) {
+            try {
+                options.cache = new ValidationCache(cacheFile, cacheSize);
+            } catch(final IOException ioe) {
+                System.out.println("Cache file: " + cacheFile + " could not be read! " + ioe.getMessage());
+                System.exit(ExitCode.INVALID_ARGS.getCode());
+            }
+        }
+
+        if(options.metrics != null) {
+            exposeMetrics(options.metrics);
+        }
+
+        if(options.serverPort > -1) {
+            if(i < args.length) {
+                System.out.println("Files to validate may not be given to the server!");
+                System.exit(ExitCode.INVALID_ARGS.getCode());
+            }
+            serve(options, jobs);
+            return;
+        }
+
+        if(i == args.length) {
+            System.out.println("No files to validate!");
             System.exit(ExitCode.INVALID_ARGS.getCode());
         }
+
+        final Batch batch = new Batch(options, jobs);
+        for (; i < args.length; i++) {
+            if(args[i].startsWith("@")) {
+                batch.validateListFile(Paths.get(args[i].substring(1)));
+            } else {
+                batch.validate(Paths.get(args[i]));
+            }
+        }
         
-        final PrintingValidationHandler handler = new PrintingValidationHandler(failFast, System.out);
-        
-        ExitCode result = ExitCode.OK;
-        final long start = System.currentTimeMillis();
-        
-        System.out.println("Validating: " + fileToValidate.getPath());
-        
+        System.exit(batch.await());
+    }
+
+    /**
+     * Registers the metrics over JMX on another thread, as starting
+     * the platform MBeanServer takes longer than validating small files.
+     */
+    private static void exposeMetrics(final ValidationMetrics metrics) {
+        final Thread register = new Thread("utf8-validator-jmx") {
+            @Override
+            public void run() {
+                try {
+                    metrics.register("utf8validate");
+                } catch(final JMException jme) {
+                    System.err.println("[ERROR] Metrics could not be exposed over JMX! " + jme.getMessage());
+                }
+            }
+        };
+        register.setDaemon(true);
+        register.start();
+    }
+
+    /**
+     * Runs a ValidationServer until the JVM is stopped, e.g. by Ctrl-C.
+     */
+    private static void serve(final Options options, final int jobs) {
+        // the server owns this JVM, so may set this for all of it; the headers and body of a
+        // response are written separately, so without TCP_NODELAY each waits for the delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        final ValidationServer server;
+        try {
+            server = new ValidationServer(options.serverPort, jobs, new Supplier<Worker>() {
+                @Override
+                public Worker get() {
+                    return new Worker(options, true, null);
+                }
+            });
+        } catch(final IOException ioe) {
+            System.out.println("Could not listen on port: " + options.serverPort + "! " + ioe.getMessage());
+            System.exit(ExitCode.IO_ERROR.getCode());
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop(1);
+                if(options.metrics != null) {
+                    System.out.println("Metrics: " + options.metrics);
+                }
+                if(options.cache != null) {
+                    try {
+                        options.cache.save();
+                    } catch(final IOException ioe) {
+                        System.err.println("[ERROR]" + ioe.getMessage());
+                    }
+                }
+            }
+        });
+
         try {
-            new Utf8Validator(memMapped, bufferSize, handler).validate(fileToValidate);
-            
-            if(!failFast && handler.isErrored()) {
+            server.start();
+        } catch(final IOException ioe) {
+            System.out.println("Could not write the token of the server! " + ioe.getMessage());
+            System.exit(ExitCode.IO_ERROR.getCode());
+            return;
+        }
+        System.out.println("UTF-8 Validator server listening on port: " + server.getPort()
+                + ", its token is in: " + ValidationServer.tokenFile(ValidationServer.defaultTokenDirectory(), server.getPort()));
+    }
+
+    /**
+     * Options for validating each file
+     */
+    private static class Options {
+        boolean failFast = false;
+        long maxErrors = -1;
+        int bufferSize = -1;
+        IoMode ioMode = IoMode.STREAM;
+        int mappedWindowSize = -1;
+        ValidationEngine engine = new MaskValidationEngine();
+        int threads = 1;
+        boolean async = false;
+        boolean charStats = false;
+        boolean lines = false;
+        boolean decompress = false;
+        String zipEntries = null;
+        int serverPort = -1;
+        int usePort = -1;
+        boolean jsonl = false;
+        ValidationCache cache = null;
+        ValidationMetrics metrics = null;
+    }
+
+    /**
+     * Validates files on a pool of workers, and
+     * accumulates the ExitCode of each file.
+     */
+    private static class Batch {
+        private final Options options;
+        private final ExecutorService executor;
+        private final Semaphore queued;
+        private final ThreadLocal<Worker> workers;
+        private final ValidationClient client;
+        private final Writer jsonOutput;
+        private final AtomicInteger exitCode = new AtomicInteger(ExitCode.OK.getCode());
+
+        Batch(final Options options, final int jobs) {
+            this.options = options;
+            this.executor = Executors.newFixedThreadPool(jobs);
+            this.queued = new Semaphore(jobs * 4);      // bounds the files waiting for a worker whilst walking directories
+
+            // with a single worker its output goes straight to System.out, else each file's output is printed together
+            final boolean buffered = jobs > 1;
+            this.jsonOutput = options.jsonl && !buffered ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), JSON_BUFFER_SIZE) : null;
+            this.workers = new ThreadLocal<Worker>() {
+                @Override
+                protected Worker initialValue() {
+                    return new Worker(options, buffered, jsonOutput);
+                }
+            };
+            this.client = options.usePort > -1 ? client(options.usePort) : null;
+        }
+
+        private static ValidationClient client(final int port) {
+            try {
+                return new ValidationClient(port);
+            } catch(final IOException ioe) {
+                System.out.println(ioe.getMessage());
+                System.exit(ExitCode.IO_ERROR.getCode());
+                return null;
+            }
+        }
+
+        /**
+         * Validates a file, or all of the files in a directory.
+         */
+        void validate(final Path path) {
+            if(!Files.exists(path)) {
+                message("File: " + path + " does not exist!");
+                result(ExitCode.INVALID_ARGS);
+            } else if(Files.isDirectory(path)) {
+                try {
+                    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                            if(attrs.isRegularFile()) {
+                                submit(file);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(final Path file, final IOException ioe) {
+                            System.err.println("[ERROR]" + ioe.getMessage());
+                            result(ExitCode.IO_ERROR);
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                } catch(final IOException ioe) {
+                    System.err.println("[ERROR]" + ioe.getMessage());
+                    result(ExitCode.IO_ERROR);
+                }
+            } else {
+                submit(path);
+            }
+        }
+
+        /**
+         * Validates each of the paths listed in a file, one per line.
+         */
+        void validateListFile(final Path listFile) {
+            try(final BufferedReader reader = Files.newBufferedReader(listFile, StandardCharsets.UTF_8)) {
+                String line = null;
+                while((line = reader.readLine()) != null) {
+                    if(!line.isEmpty()) {
+                        validate(Paths.get(line));
+                    }
+                }
+            } catch(final IOException ioe) {
+                message("List file: " + listFile + " could not be read! " + ioe.getMessage());
+                result(ExitCode.INVALID_ARGS);
+            }
+        }
+
+        private void submit(final Path file) {
+            queued.acquireUninterruptibly();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        result(client != null ? validateByServer(file) : workers.get().validate(file.toFile()));
+                    } finally {
+                        queued.release();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Asks the validation server to validate a file, and prints its output.
+         */
+        private ExitCode validateByServer(final Path file) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                final ExitCode result = client.validate(file.toFile(), out);
+                synchronized(System.out) {
+                    System.out.write(out.toByteArray(), 0, out.size());
+                    System.out.flush();
+                }
+                return result;
+            } catch(final IOException ioe) {
+                System.err.println("[ERROR]" + ioe.getMessage());
+                return ExitCode.IO_ERROR;
+            }
+        }
+
+        /**
+         * Prints a message about the arguments, which
+         * goes to System.err when System.out is JSON.
+         */
+        private void message(final String message) {
+            if(options.jsonl) {
+                System.err.println(message);
+            } else {
+                System.out.println(message);
+            }
+        }
+
+        private void result(final ExitCode result) {
+            int current;
+            do {
+                current = exitCode.get();
+            } while(!exitCode.compareAndSet(current, current | result.getCode()));
+        }
+
+        /**
+         * Waits for all of the files to be validated.
+         *
+         * @return the bitwise OR of the ExitCode of each file
+         */
+        int await() {
+            executor.shutdown();
+            try {
+                while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                }
+            } catch(final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                result(ExitCode.IO_ERROR);
+            }
+
+            if(jsonOutput != null) {
+                try {
+                    jsonOutput.flush();
+                } catch(final IOException ioe) {
+                    System.err.println("[ERROR]" + ioe.getMessage());
+                    result(ExitCode.IO_ERROR);
+                }
+            }
+
+            if(options.cache != null) {
+                try {
+                    options.cache.save();
+                } catch(final IOException ioe) {
+                    System.err.println("[ERROR]" + ioe.getMessage());
+                    result(ExitCode.IO_ERROR);
+                }
+            }
+
+            if(options.metrics != null && client == null) {
+                message("Metrics: " + options.metrics);
+            }
+            return exitCode.get();
+        }
+    }
+
+    /**
+     * Validates one file at a time, reusing
+     * its validator and buffer for each file.
+     */
+    private static class Worker implements ValidationServer.RequestValidator {
+        private final Options options;
+        private final ByteArrayOutputStream buffer;
+        private final PrintStream output;
+        private final PrintStream errorOutput;
+        private final Writer jsonOutput;
+        private final PrintingValidationHandler handler;
+        private final JsonLinesValidationHandler jsonHandler;
+        private final BoundedValidationHandler bounded;
+        private final Utf8Validator validator;
+        private final CharacterStatistics statistics;
+
+        Worker(final Options options, final boolean buffered, final Writer jsonOutput) {
+            this.options = options;
+            if(buffered) {
+                this.buffer = new ByteArrayOutputStream();
+                this.output = new PrintStream(buffer, false);
+            } else {
+                this.buffer = null;
+                this.output = System.out;
+            }
+            // the errors of a server go to its client
+            this.errorOutput = options.serverPort > -1 ? output : System.err;
+
+            final ValidationHandler target;
+            if(options.jsonl) {
+                this.jsonOutput = buffered ? new BufferedWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8), JSON_BUFFER_SIZE) : jsonOutput;
+                this.handler = null;
+                this.jsonHandler = new JsonLinesValidationHandler(options.failFast, this.jsonOutput);
+                target = jsonHandler;
+            } else {
+                this.jsonOutput = null;
+                this.handler = new PrintingValidationHandler(options.failFast, output);
+                this.jsonHandler = null;
+                target = handler;
+            }
+
+            // fail fast already stops at the first error
+            this.bounded = options.maxErrors > 0 && !options.failFast ? new BoundedValidationHandler(target, options.maxErrors) : null;
+            this.validator = new Utf8Validator(options.engine, options.ioMode, options.bufferSize, bounded != null ? bounded : target);
+            this.validator.setMappedWindowSize(options.mappedWindowSize);
+            this.statistics = options.charStats ? new CharacterStatistics() : null;
+            this.validator.setCharacterStatistics(statistics);
+            this.validator.setCache(options.cache);
+            this.validator.setTrackPositions(options.lines);
+            this.validator.setDecompress(options.decompress);
+            this.validator.setMetrics(options.metrics);
+        }
+
+        ExitCode validate(final File fileToValidate) {
+            final ExitCode result = validate(fileToValidate.getPath(), fileToValidate, null);
+
+            if(buffer != null) {
+                synchronized(System.out) {
+                    try {
+                        writeBuffer(System.out);
+                    } catch(final IOException ioe) {
+                        // cannot happen, as a PrintStream does not throw them
+                    }
+                    System.out.flush();
+                }
+            }
+
+            return result;
+        }
+
+        @Override
+        public ExitCode validate(final File fileToValidate, final OutputStream out) throws IOException {
+            final ExitCode result = validate(fileToValidate.getPath(), fileToValidate, null);
+            writeBuffer(out);
+            return result;
+        }
+
+        @Override
+        public ExitCode validate(final String name, final InputStream is, final OutputStream out) throws IOException {
+            final ExitCode result = validate(name, null, new CountingInputStream(is));
+            writeBuffer(out);
+            return result;
+        }
+
+        /**
+         * Validates a file, or if is is not null a stream.
+         *
+         * @param name The name of the input, which is printed
+         */
+        private ExitCode validate(final String name, final File fileToValidate, final CountingInputStream is) {
+            if(bounded != null) {
+                bounded.reset();
+            }
+            return jsonHandler != null ? validateJson(name, fileToValidate, is) : validateText(name, fileToValidate, is);
+        }
+
+        /**
+         * Writes the buffered output to out, and empties the buffer.
+         */
+        private void writeBuffer(final OutputStream out) throws IOException {
+            output.flush();
+            if(jsonOutput != null) {
+                jsonOutput.flush();
+            }
+            buffer.writeTo(out);
+            buffer.reset();
+        }
+
+        private ExitCode validateText(final String name, final File fileToValidate, final CountingInputStream is) {
+            handler.reset();
+
+            ExitCode result = ExitCode.OK;
+            final long start = System.nanoTime();
+
+            output.println("Validating: " + name);
+
+            try {
+                validateInput(fileToValidate, is);
+
+                if(!options.failFast && handler.isErrored()) {
+                    result = ExitCode.VALIDATION_ERROR;
+                } else {
+                    output.println("Valid OK (took " + (System.nanoTime() - start) / 1000000 + "ms)");
+                    result = ExitCode.OK;
+                }
+
+                if(statistics != null) {
+                    output.println("Statistics: " + statistics);
+                }
+            } catch(final ValidationException ve) {
+                output.println(ve.getMessage());
                 result = ExitCode.VALIDATION_ERROR;
+            } catch(final IOException ioe) {
+                errorOutput.println("[ERROR]" + ioe.getMessage());
+                result = ExitCode.IO_ERROR;
+            }
+
+            return result;
+        }
+
+        private ExitCode validateJson(final String name, final File fileToValidate, final CountingInputStream is) {
+            jsonHandler.startFile(name);
+            final long start = System.nanoTime();
+
+            try {
+                try {
+                    validateInput(fileToValidate, is);
+                } catch(final ValidationException ve) {
+                    // the errors have been written, the file record follows them
+                }
+                jsonHandler.endFile(is != null ? is.getCount() : fileToValidate.length(), System.nanoTime() - start, statistics);
+                return jsonHandler.isErrored() ? ExitCode.VALIDATION_ERROR : ExitCode.OK;
+            } catch(final IOException ioe) {
+                jsonHandler.failed(String.valueOf(ioe.getMessage()));
+                return ExitCode.IO_ERROR;
+            }
+        }
+
+        private void validateInput(final File fileToValidate, final InputStream is) throws IOException, ValidationException {
+            if(is != null) {
+                validator.validate(is);
+            } else if(options.zipEntries != null && Compression.detect(fileToValidate) == Compression.ZIP) {
+                validator.validateZip(fileToValidate.toPath(), options.zipEntries, options.threads);
+            } else if(options.async && options.threads < 2) {
+                validateAsync(fileToValidate);
             } else {
-                System.out.println("Valid OK (took " + (System.currentTimeMillis() - start) + "ms)");
-                result = ExitCode.OK;
+                validator.validate(fileToValidate, options.threads);
+            }
+            if(bounded != null) {
+                bounded.flush();
             }
-        } catch(final ValidationException ve) {
-            System.out.println(ve.getMessage());
-            result = ExitCode.VALIDATION_ERROR;
-        } catch(final IOException ioe) {
-            System.err.println("[ERROR]" + ioe.getMessage());
-            result = ExitCode.IO_ERROR;
         }
-        
-        System.exit(result.getCode());
+
+        private void validateAsync(final File fileToValidate) throws IOException, ValidationException {
+            try {
+                validator.validateAsync(fileToValidate).get();
+            } catch(final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ie);
+            } catch(final ExecutionException ee) {
+                final Throwable cause = ee.getCause();
+                if(cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if(cause instanceof ValidationException) {
+                    throw (ValidationException) cause;
+                } else if(cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new IOException(cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes which are read from a stream.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if(b > -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if(read > -1) {
+                count += read;
+            }
+            return read;
+        }
+
+        long getCount() {
+            return count;
+        }
     }
 }
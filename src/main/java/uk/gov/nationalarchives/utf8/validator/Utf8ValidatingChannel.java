@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A ReadableByteChannel which validates the bytes as UTF-8
+ * as they are read from it, so that data may be validated
+ * whilst it is consumed, rather than being read twice.
+ *
+ * Errors are reported to the ValidationHandler as the bytes which
+ * contain them are read. Any multi-byte sequence which is incomplete is
+ * reported when the end of the channel is reached, or when the channel is
+ * closed. A ValidationException from the handler is thrown to the reader
+ * as an IOException, whose cause is the ValidationException.
+ *
+ * @author agent <agent@local>
+ */
+public class Utf8ValidatingChannel implements ReadableByteChannel {
+
+    private final ReadableByteChannel channel;
+    private final Utf8ValidationSession session;
+
+    /**
+     * @param channel The channel of bytes to validate
+     * @param handler A ValidationHandler that receives errors
+     */
+    public Utf8ValidatingChannel(final ReadableByteChannel channel, final ValidationHandler handler) {
+        this(channel, new MaskValidationEngine(), handler);
+    }
+
+    /**
+     * @param channel The channel of bytes to validate
+     * @param engine the ValidationEngine which validates the bytes
+     * @param handler A ValidationHandler that receives errors
+     */
+    public Utf8ValidatingChannel(final ReadableByteChannel channel, final ValidationEngine engine, final ValidationHandler handler) {
+        this.channel = channel;
+        this.session = new Utf8ValidationSession(engine, handler);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        final int start = dst.position();
+        final int read = channel.read(dst);
+        if (read == -1) {
+            finish();
+        } else if (read > 0) {
+            // validate just the bytes which were read, leaving dst as the caller expects
+            final ByteBuffer readBytes = dst.duplicate();
+            readBytes.limit(dst.position()).position(start);
+            try {
+                session.feed(readBytes);
+            } catch (final ValidationException ve) {
+                throw new IOException(ve.getMessage(), ve);
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes which have been read and validated
+     */
+    public long getByteCount() {
+        return session.getByteCount();
+    }
+
+    private void finish() throws IOException {
+        if (!session.isFinished()) {
+            try {
+                session.finish();
+            } catch (final ValidationException ve) {
+                throw new IOException(ve.getMessage(), ve);
+            }
+        }
+    }
+}
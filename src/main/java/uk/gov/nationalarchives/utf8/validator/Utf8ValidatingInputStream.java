@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream which validates the bytes as UTF-8
+ * as they are read from it, so that data may be validated
+ * whilst it is consumed, rather than being read twice.
+ *
+ * Errors are reported to the ValidationHandler as the bytes which
+ * contain them are read. Any multi-byte sequence which is incomplete is
+ * reported when the end of the stream is reached, or when the stream is
+ * closed. A ValidationException from the handler is thrown to the reader
+ * as an IOException, whose cause is the ValidationException.
+ *
+ * Skipped bytes are read and validated, and mark/reset is not supported.
+ *
+ * @author agent <agent@local>
+ */
+public class Utf8ValidatingInputStream extends FilterInputStream {
+
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    private final Utf8ValidationSession session;
+
+    /**
+     * @param in The stream of bytes to validate
+     * @param handler A ValidationHandler that receives errors
+     */
+    public Utf8ValidatingInputStream(final InputStream in, final ValidationHandler handler) {
+        this(in, new MaskValidationEngine(), handler);
+    }
+
+    /**
+     * @param in The stream of bytes to validate
+     * @param engine the ValidationEngine which validates the bytes
+     * @param handler A ValidationHandler that receives errors
+     */
+    public Utf8ValidatingInputStream(final InputStream in, final ValidationEngine engine, final ValidationHandler handler) {
+        super(in);
+        this.session = new Utf8ValidationSession(engine, handler);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b == -1) {
+            finish();
+        } else {
+            try {
+                session.feed((byte)b);
+            } catch (final ValidationException ve) {
+                throw new IOException(ve.getMessage(), ve);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int read = in.read(b, off, len);
+        if (read == -1) {
+            finish();
+        } else {
+            validate(b, off, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        final byte[] skipBuffer = new byte[(int)Math.min(n, SKIP_BUFFER_SIZE)];
+        long remaining = n;
+        while (remaining > 0) {
+            final int read = read(skipBuffer, 0, (int)Math.min(remaining, skipBuffer.length));
+            if (read == -1) {
+                break;
+            }
+            remaining -= read;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(final int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            super.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes which have been read and validated
+     */
+    public long getByteCount() {
+        return session.getByteCount();
+    }
+
+    private void validate(final byte[] b, final int off, final int len) throws IOException {
+        try {
+            session.feed(b, off, len);
+        } catch (final ValidationException ve) {
+            throw new IOException(ve.getMessage(), ve);
+        }
+    }
+
+    private void finish() throws IOException {
+        if (!session.isFinished()) {
+            try {
+                session.finish();
+            } catch (final ValidationException ve) {
+                throw new IOException(ve.getMessage(), ve);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A resumable validation, to which the input is pushed
+ * a piece at a time, rather than being pulled from a stream.
+ *
+ * This allows data to be validated as it flows through a
+ * pipeline, e.g. of NIO or Netty buffers, without buffering the
+ * whole of it or blocking a thread to read it. A multi-byte sequence
+ * may be split across any number of pieces. Only a few fields are
+ * held between pieces, so it is cheap to keep a session for each
+ * of many connections.
+ *
+ * A session is not thread-safe, and each piece
+ * must be fed to it in the order that it was received.
+ *
+ * @author agent <agent@local>
+ */
+public class Utf8ValidationSession {
+
+    private final ValidationEngine engine;
+    private final ValidationHandler handler;
+    private final ValidationState state = new ValidationState();
+    private final byte[] single = new byte[1];      // holds a byte which is fed on its own
+    private boolean finished = false;
+
+    /**
+     * @param engine the ValidationEngine which validates the bytes
+     * @param handler A ValidationHandler that receives errors
+     */
+    public Utf8ValidationSession(final ValidationEngine engine, final ValidationHandler handler) {
+        this.engine = engine;
+        this.handler = handler;
+    }
+
+    /**
+     * Validates the next piece of the input.
+     *
+     * @param buf The remaining bytes of the buffer are validated,
+     * on return its position will be its limit
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     * @throws IllegalStateException if the session has been finished
+     */
+    public void feed(final ByteBuffer buf) throws ValidationException {
+        checkNotFinished();
+        engine.validate(state, buf, handler);
+    }
+
+    /**
+     * Validates the next piece of the input.
+     *
+     * @param data The bytes for UTF-8 validation
+     * @param off The offset of the first byte in data to validate
+     * @param len The number of bytes from data to validate
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     * @throws IllegalStateException if the session has been finished
+     * @throws IndexOutOfBoundsException if off or len are outside of data
+     */
+    public void feed(final byte[] data, final int off, final int len) throws ValidationException {
+        checkNotFinished();
+        if(off < 0 || len < 0 || len > data.length - off) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", data.length: " + data.length);
+        }
+        engine.validate(state, data, off, len, handler);
+    }
+
+    /**
+     * Validates the next byte of the input.
+     *
+     * An ASCII byte which is not part of a multi-byte sequence is valid
+     * whatever the engine, so it is only counted; any other byte is
+     * validated by the engine. Nothing is allocated, so a piece of
+     * a single byte is cheap.
+     *
+     * @param b The byte for UTF-8 validation
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     * @throws IllegalStateException if the session has been finished
+     */
+    public void feed(final byte b) throws ValidationException {
+        checkNotFinished();
+        if (b >= 0 && state.multiBytesRemain == 0) {
+            state.read++;
+        } else {
+            single[0] = b;
+            engine.validate(state, single, 0, 1, handler);
+        }
+    }
+
+    /**
+     * Completes the validation, reporting any multi-byte
+     * sequence which was left incomplete by the end of the input.
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     * @throws IllegalStateException if the session has already been finished
+     */
+    public void finish() throws ValidationException {
+        checkNotFinished();
+        finished = true;
+        engine.end(state, handler);
+    }
+
+    /**
+     * @return the number of bytes which have been validated
+     */
+    public long getByteCount() {
+        return state.read;
+    }
+
+    /**
+     * @return true if the input so far ends part way through a multi-byte sequence
+     */
+    public boolean isInSequence() {
+        return state.multiBytesRemain > 0;
+    }
+
+    /**
+     * @return true if {@link #finish()} has been called
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("The validation session has already finished");
+        }
+    }
+}
@@ -27,12 +27,33 @@
 package uk.gov.nationalarchives.utf8.validator;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 /**
- * Validates a File or InputStream byte by byte
+ * Validates a File, InputStream or byte array
  * to ensure it is UTF-8 Valid.
+ *
+ * Input is read and validated in chunks of bufferSize
+ * bytes, any multi-byte sequence which spans two chunks
+ * is carried over between them.
+ *
+ * A Utf8Validator is thread-safe, and is intended to be created once
+ * and reused for many validations. Each thread keeps its own buffer
+ * and ValidationState, which are reused for each of its validations by
+ * any Utf8Validator, so validating a byte array allocates nothing. Errors go to the ValidationHandler
+ * given to the constructor, unless one is given for the validation, which
+ * allows a handler that is not thread-safe to be used for each validation.
+ * CharacterStatistics are not thread-safe, so a Utf8Validator which
+ * collects them must only be used by one thread at a time.
  * 
  * @author Adam Retter <adam.retter@googlemail.com>
  * @version 1.2
@@ -40,14 +61,29 @@ import java.nio.channels.FileChannel;
 public class Utf8Validator {
 
     private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int QUERY_BLOCK_SIZE = 4096;      // bytes validated by the vector engine between checks for an error
+    private static final int DEFAULT_MAPPED_WINDOW_SIZE = 256 * 1024 * 1024;
+    private static final int READ_AHEAD_BUFFERS = 4;
+    private static final int READ_AHEAD_BUFFER_SIZE = 64 * 1024;
 
-    private static final int FOUR_BYTE_CHAR =       0xF0;   // 11110xxx
-    private static final int THREE_BYTE_CHAR =      0xE0;   // 1110xxxx
-    private static final int TWO_BYTE_CHAR =        0xC0;   // 110xxxxx
+    private final ValidationEngine engine;
+    private final int bufferSize;
+    private final IoMode ioMode;
+    private volatile int mappedWindowSize = DEFAULT_MAPPED_WINDOW_SIZE;
+    private final ValidationHandler handler;
+    private volatile CharacterStatistics statistics = null;
+    private volatile ValidationCache cache = null;
+    private volatile boolean trackPositions = false;
+    private volatile boolean decompress = false;
+    private volatile ValidationMetrics metrics = null;
 
-    private int bufferSize;
-    private boolean memMapped;
-    private ValidationHandler handler;
+    // static, so that the scratch space of a thread does not keep a validator reachable
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
 
     /**
      * @param handler A ValidationHandler that receives errors
@@ -61,7 +97,7 @@ public class Utf8Validator {
      * @param handler A ValidationHandler that receives errors
      */
     public Utf8Validator(final int bufferSize, final ValidationHandler handler) {
-        this(false, DEFAULT_BUFFER_SIZE, handler);
+        this(false, bufferSize, handler);
     }
 
 
@@ -79,11 +115,122 @@ public class Utf8Validator {
      * @param handler A ValidationHandler that receives errors
      */
     public Utf8Validator(final boolean memMapped, final int bufferSize, final ValidationHandler handler) {
-        this.memMapped = memMapped;
+        this(new MaskValidationEngine(), memMapped, bufferSize, handler);
+    }
+
+    /**
+     * @param engine the ValidationEngine which validates the bytes
+     * @param handler A ValidationHandler that receives errors
+     */
+    public Utf8Validator(final ValidationEngine engine, final ValidationHandler handler) {
+        this(engine, false, DEFAULT_BUFFER_SIZE, handler);
+    }
+
+    /**
+     * @param engine the ValidationEngine which validates the bytes
+     * @memMapped true if memory mapped I/O should be used
+     * @param bufferSize the amount of data from the file (in bytes) to buffer in RAM
+     * @param handler A ValidationHandler that receives errors
+     */
+    public Utf8Validator(final ValidationEngine engine, final boolean memMapped, final int bufferSize, final ValidationHandler handler) {
+        this(engine, memMapped ? IoMode.MAPPED : IoMode.STREAM, bufferSize, handler);
+    }
+
+    /**
+     * @param engine the ValidationEngine which validates the bytes
+     * @param ioMode how a File is read
+     * @param bufferSize the amount of data from the file (in bytes) to buffer in RAM
+     * @param handler A ValidationHandler that receives errors
+     */
+    public Utf8Validator(final ValidationEngine engine, final IoMode ioMode, final int bufferSize, final ValidationHandler handler) {
+        this.engine = engine;
+        this.ioMode = ioMode;
         this.bufferSize = bufferSize <= 0 ? DEFAULT_BUFFER_SIZE : bufferSize;
         this.handler = handler;
     }
     
+    /**
+     * Sets the size of the window which is mapped into memory at a time,
+     * when validating a File with memory mapped I/O. Any size of file may be
+     * validated, the window is moved along the file until the end is reached.
+     *
+     * @param mappedWindowSize the size of the window (in bytes), or
+     * zero or less for the default of 256MB
+     */
+    public void setMappedWindowSize(final int mappedWindowSize) {
+        this.mappedWindowSize = mappedWindowSize <= 0 ? DEFAULT_MAPPED_WINDOW_SIZE : mappedWindowSize;
+    }
+
+    /**
+     * Sets the statistics to collect whilst validating, each validation
+     * resets them first, so that they are of the most recently validated input.
+     * By default no statistics are collected.
+     *
+     * @param statistics the statistics to collect, or null to collect none
+     */
+    public void setCharacterStatistics(final CharacterStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Sets a cache of the outcome of validating files. A File which the cache
+     * shows was valid, and has not changed since, is not validated again,
+     * unless statistics are being collected. A File which was not valid is
+     * validated again, so that the ValidationHandler receives its errors.
+     * The outcome for the entries of a zip archive which match a glob is also
+     * cached, by {@link #validateZip(Path, String, int, ValidationHandler)}.
+     * By default no cache is used.
+     *
+     * @param cache the cache, or null to use none
+     */
+    public void setCache(final ValidationCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets whether the line and column of each error are tracked, and passed
+     * to a ValidationHandler which is a {@link PositionValidationHandler}.
+     * Whilst positions are tracked a File is validated by a single thread,
+     * even when several are asked for. By default positions are not tracked,
+     * and tracking them costs nothing.
+     *
+     * @param trackPositions true to track the line and column of errors
+     */
+    public void setTrackPositions(final boolean trackPositions) {
+        this.trackPositions = trackPositions;
+    }
+
+    /**
+     * Sets whether a File which is compressed is decompressed, and its
+     * content validated, rather than the File itself. Compression is detected
+     * by the first bytes of the File, and gzip and zlib are supported, as are zip
+     * archives, each of whose entries is validated as by {@link #validateZip(Path)}.
+     * For any other format an IOException is thrown. The File is decompressed on
+     * another thread, so that decompression and validation overlap, and byte offsets
+     * are of the decompressed content. A gzip or zlib File is validated by a single
+     * thread, even when several are asked for. The outcome of validating the
+     * content of a File is cached apart from that of validating its bytes.
+     * By default files are not decompressed.
+     *
+     * @param decompress true to decompress files which are compressed
+     */
+    public void setDecompress(final boolean decompress) {
+        this.decompress = decompress;
+    }
+
+    /**
+     * Sets the metrics which are updated by each validation, e.g. with its
+     * number of bytes and errors and its latency. The same metrics may be
+     * given to several validators, and are thread-safe. Every validation is
+     * counted, including one which is stopped by an error. By default no
+     * metrics are kept.
+     *
+     * @param metrics The metrics to update, or null to keep none
+     */
+    public void setMetrics(final ValidationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * Validates the File as UTF-8.
      * 
@@ -94,36 +241,389 @@ public class Utf8Validator {
      * that an error causes an exception
      */
     public void validate(final File f) throws IOException, ValidationException {
-        if (memMapped) {
-            RandomAccessFile raf = null;
-            FileChannel fc = null;
+        validate(f, 1, handler);
+    }
+
+    /**
+     * Validates the File as UTF-8.
+     *
+     * @param f The file to UTF-8 validate
+     * @param handler A ValidationHandler that receives the errors of this validation
+     *
+     * @throws IOException Exception is thrown if the file cannot be read
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    public void validate(final File f, final ValidationHandler handler) throws IOException, ValidationException {
+        validate(f, 1, handler);
+    }
+
+    /**
+     * Validates the File as UTF-8, using several threads.
+     *
+     * The file is split into regions which are validated in parallel, the
+     * ValidationHandler receives the same errors, in the same order, as it
+     * would from {@link #validate(File)}. The regions are read with positional
+     * reads of bufferSize bytes, whether or not memory mapped I/O was requested.
+     *
+     * @param f The file to UTF-8 validate
+     * @param threads The number of threads to use, if less than 2 then
+     * this is the same as {@link #validate(File)}
+     *
+     * @throws IOException Exception is thrown if the file cannot be read
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    public void validate(final File f, final int threads) throws IOException, ValidationException {
+        validate(f, threads, handler);
+    }
+
+    /**
+     * Validates the File as UTF-8, using several threads.
+     *
+     * @param f The file to UTF-8 validate
+     * @param threads The number of threads to use, if less than 2 then
+     * this is the same as {@link #validate(File, ValidationHandler)}
+     * @param handler A ValidationHandler that receives the errors of this validation
+     *
+     * @throws IOException Exception is thrown if the file cannot be read
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     *
+     * @see #validate(File, int)
+     */
+    public void validate(final File f, final int threads, final ValidationHandler handler) throws IOException, ValidationException {
+        final ValidationCache cache = this.cache;
+        if (cache == null) {
+            validateFile(f, threads, handler);
+            return;
+        }
+
+        final ValidationCache.Entry identity = cache.identify(f, engine, cacheContent());
+        if (statistics == null) {
+            final ValidationCache.Entry cached = cache.get(identity);
+            if (cached != null && cached.isValid()) {
+                return;
+            }
+        }
+
+        final RecordingValidationHandler recorder = new RecordingValidationHandler(handler, null);
+        boolean complete = false;
+        try {
+            validateFile(f, threads, recorder);
+            complete = true;
+        } finally {
+            // a fail-fast error is also an outcome, but an I/O error without one is not
+            if (recorder.errors > 0) {
+                cache.put(identity, recorder.firstByteOffset);
+            } else if (complete) {
+                cache.put(identity, -1);
+            }
+        }
+    }
+
+    private void validateFile(final File f, final int threads, final ValidationHandler handler) throws IOException, ValidationException {
+        final Compression compression = decompress ? Compression.detect(f) : Compression.NONE;
+        if (compression != Compression.NONE) {
+            validateCompressed(f, compression, threads, handler);
+        } else if (threads >= 2 && !trackPositions) {
+            resetStatistics();
+            final ValidationMetrics metrics = this.metrics;
+            final long start = metrics != null ? System.nanoTime() : 0;
+            final ParallelValidation validation = new ParallelValidation(engine, bufferSize);
+            boolean complete = false;
             try {
-                raf = new RandomAccessFile(f, "r");
-                fc = raf.getChannel();
-                final MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-                validate(buffer);
-                buffer.clear();
+                validation.validate(f, threads, meter(metrics, handler), statistics);
+                complete = true;
             } finally {
-                if(fc != null) {
-                    fc.close();
-                }
-                if(raf != null) {
-                    raf.close();
+                if (metrics != null) {
+                    metrics.validated(validation.getBytesValidated(), System.nanoTime() - start, 0, 0);
+                    if (!complete) {
+                        metrics.failed();
+                    }
                 }
             }
+        } else if (ioMode == IoMode.MAPPED) {
+            validateMapped(f, handler);
+        } else if (ioMode == IoMode.CHANNEL) {
+            validateChannel(f, handler);
         } else {
-            InputStream is = null;
-            try {
-                is = new BufferedInputStream(new FileInputStream(f), bufferSize);
-                validate(is);
-            } finally {
-                if (is != null) {
-                    is.close();
+            try (final InputStream is = new FileInputStream(f)) {
+                validate(is, handler);
+            }
+        }
+    }
+
+    /**
+     * Validates the decompressed content of a File, which
+     * is decompressed on another thread whilst it is validated.
+     *
+     * @return the number of bytes of decompressed content
+     */
+    private long validateCompressed(final File f, final Compression compression, final int threads, final ValidationHandler handler) throws IOException, ValidationException {
+        if (compression == Compression.ZIP) {
+            long bytes = 0;
+            for (final ValidationResult result : validateZipEntries(f.toPath(), null, threads, handler).values()) {
+                bytes += result.getByteCount();
+            }
+            return bytes;
+        }
+
+        final InputStream raw = new FileInputStream(f);
+        final InputStream decompressed;
+        try {
+            decompressed = compression.decompress(raw);
+        } catch (final IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+        try (final ReadAheadInputStream is = new ReadAheadInputStream(decompressed, READ_AHEAD_BUFFERS, READ_AHEAD_BUFFER_SIZE)) {
+            validate(is, handler);
+            return is.getByteCount();
+        }
+    }
+
+    private void validateChannel(final File f, final ValidationHandler handler) throws IOException, ValidationException {
+        final Scratch s = acquireScratch();
+        final ValidationMetrics metrics = this.metrics;
+        try (final FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buf = s.directBuffer(bufferSize);
+            final ValidationState state = s.state;
+            resetStatistics();
+
+            final ValidationHandler tracked = track(meter(metrics, handler));
+            s.startClock(metrics);
+
+            buf.clear();
+            while (fc.read(buf) > -1) {
+                s.read();
+                buf.flip();
+                validateChunk(state, buf, tracked);
+                buf.clear();
+                s.validated();
+            }
+
+            engine.end(state, tracked);
+            s.completed();
+        } finally {
+            s.record(metrics);
+            releaseScratch(s);
+        }
+    }
+
+    private void validateMapped(final File f, final ValidationHandler handler) throws IOException, ValidationException {
+        final Scratch s = acquireScratch();
+        final ValidationMetrics metrics = this.metrics;
+        try (final RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            final FileChannel fc = raf.getChannel();
+            final long size = fc.size();
+            final ValidationState state = s.state;
+            final int mappedWindowSize = this.mappedWindowSize;
+            resetStatistics();
+            final ValidationHandler tracked = track(meter(metrics, handler));
+            s.startClock(metrics);
+
+            // map a window at a time, as a single mapping cannot exceed 2GB
+            for (long pos = 0; pos < size; pos += mappedWindowSize) {
+                final MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(mappedWindowSize, size - pos));
+                validateChunk(state, window, tracked);
+            }
+
+            engine.end(state, tracked);
+            s.completed();
+        } finally {
+            s.record(metrics);
+            releaseScratch(s);
+        }
+    }
+
+    /**
+     * Validates the File as UTF-8 asynchronously, reading the next
+     * chunks of the file whilst the current chunk is validated.
+     *
+     * The chunks are of bufferSize bytes, and are read with an
+     * AsynchronousFileChannel and validated in order, so that
+     * the ValidationHandler receives the same errors, in the same order,
+     * as it would from {@link #validate(File)}, although on another thread.
+     * Each asynchronous validation has its own state, so this Utf8Validator
+     * may be used for other validations whilst it is in progress.
+     *
+     * @param f The file to UTF-8 validate
+     *
+     * @return A future which completes with the result of the validation, or
+     * exceptionally with an IOException if the file cannot be read or with
+     * the ValidationException if the ValidationHandler throws one
+     */
+    public CompletableFuture<ValidationResult> validateAsync(final File f) {
+        try {
+            final ValidationCache.Entry identity = cache == null ? null : cache.identify(f, engine, cacheContent());
+            if (identity != null && statistics == null) {
+                final ValidationCache.Entry cached = cache.get(identity);
+                if (cached != null && cached.isValid()) {
+                    return CompletableFuture.completedFuture(new ValidationResult(f.length(), 0, -1));
                 }
             }
+
+            final Compression compression = decompress ? Compression.detect(f) : Compression.NONE;
+            if (compression != Compression.NONE) {
+                return validateCompressedAsync(f, compression, identity);
+            }
+
+            resetStatistics();
+            final ValidationMetrics metrics = this.metrics;
+            final RecordingValidationHandler recorder = new RecordingValidationHandler(handler, metrics);
+            return new AsyncValidation(engine, bufferSize, statistics, trackPositions, metrics).validate(f.toPath(), recorder)
+                    .handle(new BiFunction<Long, Throwable, ValidationResult>() {
+                        @Override
+                        public ValidationResult apply(final Long bytes, final Throwable t) {
+                            // a fail-fast error is also an outcome, but an I/O error without one is not
+                            if (identity != null) {
+                                if (recorder.errors > 0) {
+                                    cache.put(identity, recorder.firstByteOffset);
+                                } else if (t == null) {
+                                    cache.put(identity, -1);
+                                }
+                            }
+                            if (t != null) {
+                                throw new CompletionException(t);
+                            }
+                            return new ValidationResult(bytes, recorder.errors, recorder.firstByteOffset);
+                        }
+                    });
+        } catch (final IOException ioe) {
+            final CompletableFuture<ValidationResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ioe);
+            return failed;
         }
     }
-    
+
+    /**
+     * Validates the decompressed content of a File on the common ForkJoinPool, as
+     * the content cannot be read asynchronously, but is decompressed on another thread.
+     */
+    private CompletableFuture<ValidationResult> validateCompressedAsync(final File f, final Compression compression, final ValidationCache.Entry identity) {
+        return CompletableFuture.supplyAsync(new Supplier<ValidationResult>() {
+            @Override
+            public ValidationResult get() {
+                final RecordingValidationHandler recorder = new RecordingValidationHandler(handler, null);
+                boolean complete = false;
+                try {
+                    final long bytes = validateCompressed(f, compression, 1, recorder);
+                    complete = true;
+                    return new ValidationResult(bytes, recorder.errors, recorder.firstByteOffset);
+                } catch (final IOException | ValidationException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    // a fail-fast error is also an outcome, but an I/O error without one is not
+                    if (identity != null) {
+                        if (recorder.errors > 0) {
+                            cache.put(identity, recorder.firstByteOffset);
+                        } else if (complete) {
+                            cache.put(identity, -1);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Validates each entry of a zip (or jar) archive as UTF-8, using
+     * a thread for each of the available processors.
+     *
+     * The archive is opened once, and its entries are validated in parallel,
+     * but their errors are reported in the order of the entries in the archive.
+     * If the ValidationHandler is a {@link ZipValidationHandler} it is told the
+     * name of the entry of each error, whose byte offset is within the content
+     * of that entry. Directories are skipped, and the statistics of the
+     * characters of the entries are not collected.
+     *
+     * @param zip The zip archive whose entries to UTF-8 validate
+     *
+     * @return The result of each entry, by name, in the order of the archive
+     *
+     * @throws IOException Exception is thrown if the archive cannot be read
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    public Map<String, ValidationResult> validateZip(final Path zip) throws IOException, ValidationException {
+        return validateZip(zip, null, Runtime.getRuntime().availableProcessors(), handler);
+    }
+
+    /**
+     * Validates those entries of a zip (or jar) archive
+     * whose names match a glob as UTF-8.
+     *
+     * @param zip The zip archive whose entries to UTF-8 validate
+     * @param glob The glob which the names of the entries must match, as by
+     * {@link java.nio.file.FileSystem#getPathMatcher(String)}, e.g. "**.txt" for
+     * those in any directory, or null to validate all of the entries
+     * @param threads The number of threads to validate entries with
+     *
+     * @return The result of each entry, by name, in the order of the archive
+     *
+     * @throws IOException Exception is thrown if the archive cannot be read
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     *
+     * @see #validateZip(Path)
+     */
+    public Map<String, ValidationResult> validateZip(final Path zip, final String glob, final int threads) throws IOException, ValidationException {
+        return validateZip(zip, glob, threads, handler);
+    }
+
+    /**
+     * Validates those entries of a zip (or jar) archive
+     * whose names match a glob as UTF-8.
+     *
+     * @param zip The zip archive whose entries to UTF-8 validate
+     * @param glob The glob which the names of the entries must match,
+     * or null to validate all of the entries
+     * @param threads The number of threads to validate entries with
+     * @param handler A ValidationHandler that receives the errors of this validation
+     *
+     * @return The result of each entry, by name, in the order of the archive
+     *
+     * @throws IOException Exception is thrown if the archive cannot be read
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     *
+     * @see #validateZip(Path, String, int)
+     */
+    public Map<String, ValidationResult> validateZip(final Path zip, final String glob, final int threads, final ValidationHandler handler) throws IOException, ValidationException {
+        final ValidationCache cache = this.cache;
+        if (cache == null) {
+            return validateZipEntries(zip, glob, threads, handler);
+        }
+
+        final ValidationCache.Entry identity = cache.identify(zip.toFile(), engine, ValidationCache.zipEntries(glob));
+        final ValidationCache.Entry cached = cache.get(identity);
+        if (cached != null && cached.isValid()) {
+            return ZipValidation.validEntries(zip, glob, handler);
+        }
+
+        final RecordingValidationHandler recorder = new RecordingValidationHandler(handler, null);
+        boolean complete = false;
+        try {
+            final Map<String, ValidationResult> results = validateZipEntries(zip, glob, threads, recorder);
+            complete = true;
+            return results;
+        } finally {
+            // a fail-fast error is also an outcome, but an I/O error without one is not
+            if (recorder.errors > 0) {
+                cache.put(identity, recorder.firstByteOffset);
+            } else if (complete) {
+                cache.put(identity, -1);
+            }
+        }
+    }
+
+    private Map<String, ValidationResult> validateZipEntries(final Path zip, final String glob, final int threads, final ValidationHandler handler) throws IOException, ValidationException {
+        resetStatistics();
+        final ValidationMetrics metrics = this.metrics;
+        return new ZipValidation(engine, bufferSize, trackPositions, metrics).validate(zip, glob, threads, meter(metrics, handler));
+    }
+
     /**
      * Validates Input Stream as UTF-8.
      * 
@@ -134,103 +634,613 @@ public class Utf8Validator {
      * that an error causes an exception
      */
     public void validate(final InputStream is) throws IOException, ValidationException {
-        int read = 0;                       // total bytes read
-        byte multiByteLen = 0;              // length of multi-byte character sequence (or zero if a single byte character)
-        byte multiBytesRemain = 0;          // bytes remaining to read of multi-byte character sequence (or zero if a single byte character)
-        int b = -1;                         // current byte
-
-        while ((b = is.read()) > -1) {
+        validate(is, handler);
+    }
 
-            read++;
+    /**
+     * Validates Input Stream as UTF-8.
+     *
+     * @param is Input Stream for UTF-8 validation
+     * @param handler A ValidationHandler that receives the errors of this validation
+     *
+     * @throws IOException Exception is thrown if the stream cannot be read
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    public void validate(final InputStream is, final ValidationHandler handler) throws IOException, ValidationException {
+        final Scratch s = acquireScratch();
+        final ValidationMetrics metrics = this.metrics;
+        try {
+            final byte[] buf = s.buffer(bufferSize);
+            final ValidationState state = s.state;
+            resetStatistics();
 
-            if (multiBytesRemain > 0) {
-                multiBytesRemain--;
-                if ((b >>> 6) != 2) {
-                    handler.error("Invalid UTF-8 sequence, byte " + (multiByteLen - multiBytesRemain) + " of " + multiByteLen + " byte sequence.", read);
-                }
+            final ValidationHandler tracked = track(meter(metrics, handler));
+            s.startClock(metrics);
 
-            } else if ((b & 0x80) == 0) {
-                // One byte Sequence (MSB of a single byte character must be 0)
-                continue;
+            int len = -1;
+            while ((len = is.read(buf, 0, buf.length)) > -1) {
+                s.read();
+                validateChunk(state, buf, 0, len, tracked);
+                s.validated();
+            }
 
-            } else if ((b & FOUR_BYTE_CHAR) == FOUR_BYTE_CHAR) {
-                //Four byte Sequence
-                multiByteLen = 4;
-                multiBytesRemain = 3;
+            engine.end(state, tracked);
+            s.completed();
+        } finally {
+            s.record(metrics);
+            releaseScratch(s);
+        }
+    }
 
-            } else if((b & THREE_BYTE_CHAR) == THREE_BYTE_CHAR) {
-                //Three byte Sequence
-                multiByteLen = 3;
-                multiBytesRemain = 2;
+    /**
+     * Validates Mapped Byte Buffer as UTF-8.
+     *
+     * @param buf Mapped Byte Buffer for UTF-8 validation
+     *
+     * @throws IOException Exception is thrown if the buf cannot be read
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     *
+     * @see #validate(ByteBuffer)
+     */
+    public void validate(final MappedByteBuffer buf) throws IOException, ValidationException {
+        validate((ByteBuffer) buf, handler);
+    }
 
-            } else if((b & TWO_BYTE_CHAR) == TWO_BYTE_CHAR) {
-                //Two byte Sequence
-                multiByteLen = 2;
-                multiBytesRemain = 1;
+    /**
+     * Validates the remaining bytes of a Byte Buffer as UTF-8,
+     * after which the position of the buffer is its limit.
+     *
+     * Any heap, direct or mapped buffer may be validated. The array of a
+     * heap buffer is validated directly, whilst a direct or mapped buffer
+     * is validated in place, 8 bytes at a time whilst they are ASCII.
+     *
+     * @param buf Byte Buffer for UTF-8 validation
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    public void validate(final ByteBuffer buf) throws ValidationException {
+        validate(buf, handler);
+    }
 
+    /**
+     * Validates the remaining bytes of a Byte Buffer as UTF-8,
+     * after which the position of the buffer is its limit.
+     *
+     * @param buf Byte Buffer for UTF-8 validation
+     * @param handler A ValidationHandler that receives the errors of this validation
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     *
+     * @see #validate(ByteBuffer)
+     */
+    public void validate(final ByteBuffer buf, final ValidationHandler handler) throws ValidationException {
+        final Scratch s = acquireScratch();
+        final ValidationMetrics metrics = this.metrics;
+        try {
+            final ValidationState state = s.state;
+            resetStatistics();
+            final ValidationHandler tracked = track(meter(metrics, handler));
+            s.startClock(metrics);
+            if (buf.hasArray()) {
+                validateChunk(state, buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), tracked);
+                buf.position(buf.limit());
             } else {
-                handler.error("Invalid single byte UTF-8 character ", read);
+                validateChunk(state, buf, tracked);
             }
+            engine.end(state, tracked);
+            s.completed();
+        } finally {
+            s.record(metrics);
+            releaseScratch(s);
         }
+    }
 
-        if (multiBytesRemain > 0) {
-            handler.error("Invalid UTF-8 Sequence, expecting: " + multiBytesRemain + " more bytes in " + multiByteLen + " byte sequence. End of File!", read);
-        }
+    /**
+     * Validates a region of a byte array as UTF-8.
+     *
+     * @param data The bytes for UTF-8 validation
+     * @param off The offset of the first byte in data to validate
+     * @param len The number of bytes from data to validate
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    public void validate(final byte[] data, final int off, final int len) throws ValidationException {
+        validate(data, off, len, handler);
     }
 
     /**
-     * Validates Mapped Byte Buffer as UTF-8.
+     * Validates a region of a byte array as UTF-8.
      *
-     * @param buf Mapped Byte Buffer for UTF-8 validation
+     * @param data The bytes for UTF-8 validation
+     * @param off The offset of the first byte in data to validate
+     * @param len The number of bytes from data to validate
+     * @param handler A ValidationHandler that receives the errors of this validation
      *
-     * @throws IOException Exception is thrown if the buf cannot be read
      * @throws ValidationException thrown if the ValidationHandler determines
      * that an error causes an exception
      */
-    public void validate(final MappedByteBuffer buf) throws IOException, ValidationException {
-        int read = 0;                       // total bytes read
-        byte multiByteLen = 0;              // length of multi-byte character sequence (or zero if a single byte character)
-        byte multiBytesRemain = 0;          // bytes remaining to read of multi-byte character sequence (or zero if a single byte character)
-        int b = -1;                         // current byte
+    public void validate(final byte[] data, final int off, final int len, final ValidationHandler handler) throws ValidationException {
+        if(off < 0 || len < 0 || len > data.length - off) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", data.length: " + data.length);
+        }
 
-        while (buf.remaining() > 0) {
+        final Scratch s = acquireScratch();
+        final ValidationMetrics metrics = this.metrics;
+        try {
+            final ValidationState state = s.state;
+            resetStatistics();
+            final ValidationHandler tracked = track(meter(metrics, handler));
+            s.startClock(metrics);
+            validateChunk(state, data, off, len, tracked);
+            engine.end(state, tracked);
+            s.completed();
+        } finally {
+            s.record(metrics);
+            releaseScratch(s);
+        }
+    }
 
-            b = buf.get() & 0xFF;
+    /**
+     * Counts and validates a chunk of the input.
+     */
+    private void validateChunk(final ValidationState state, final byte[] data, final int off, final int len, final ValidationHandler handler) throws ValidationException {
+        if (statistics != null) {
+            statistics.count(data, off, len);
+        }
+        if (handler instanceof PositionTracker) {
+            final PositionTracker tracker = (PositionTracker) handler;
+            tracker.chunk(state.read, data, off, len);
+            engine.validate(state, data, off, len, tracker);
+            tracker.chunkValidated();
+        } else {
+            engine.validate(state, data, off, len, handler);
+        }
+    }
 
-            read++;
+    /**
+     * Counts and validates a chunk of the input, i.e. the remaining bytes of buf.
+     */
+    private void validateChunk(final ValidationState state, final ByteBuffer buf, final ValidationHandler handler) throws ValidationException {
+        if (statistics != null) {
+            statistics.count(buf);
+        }
+        if (handler instanceof PositionTracker) {
+            final PositionTracker tracker = (PositionTracker) handler;
+            tracker.chunk(state.read, buf);
+            engine.validate(state, buf, tracker);
+            tracker.chunkValidated();
+        } else {
+            engine.validate(state, buf, handler);
+        }
+    }
 
-            if (multiBytesRemain > 0) {
-                multiBytesRemain--;
-                if ((b >>> 6) != 2) {
-                    handler.error("Invalid UTF-8 sequence, byte " + (multiByteLen - multiBytesRemain) + " of " + multiByteLen + " byte sequence.", read);
+    /**
+     * Wraps the handler in a PositionTracker, if positions are tracked.
+     */
+    private ValidationHandler track(final ValidationHandler handler) {
+        return trackPositions ? new PositionTracker(handler) : handler;
+    }
+
+    /**
+     * Wraps the handler so that its errors are counted, if metrics are kept.
+     */
+    private static ValidationHandler meter(final ValidationMetrics metrics, final ValidationHandler handler) {
+        return metrics != null ? new RecordingValidationHandler(handler, metrics) : handler;
+    }
+
+    /**
+     * Gets the scratch space of the current thread, unless it is already
+     * in use, e.g. by a ValidationHandler which itself validates something.
+     */
+    private static Scratch acquireScratch() {
+        Scratch s = SCRATCH.get();
+        if (s.inUse) {
+            s = new Scratch();
+        }
+        s.inUse = true;
+        s.state.reset();
+        s.timed = false;
+        return s;
+    }
+
+    private static void releaseScratch(final Scratch s) {
+        s.inUse = false;
+    }
+
+    /**
+     * The buffers and ValidationState of a thread, which are reused for
+     * each of its validations, by whichever Utf8Validator makes them.
+     * A buffer is only allocated again for a validator with another bufferSize.
+     */
+    private static final class Scratch {
+        final ValidationState state = new ValidationState();
+        private byte[] buffer = null;
+        private ByteBuffer directBuffer = null;
+        boolean inUse = false;
+
+        // the timing of the current validation, for metrics
+        boolean timed = false;
+        private boolean complete = false;
+        private long start;
+        private long clock;
+        private long readNanos;
+        private long validateNanos;
+
+        byte[] buffer(final int bufferSize) {
+            if (buffer == null || buffer.length != bufferSize) {
+                buffer = new byte[bufferSize];
+            }
+            return buffer;
+        }
+
+        ByteBuffer directBuffer(final int bufferSize) {
+            if (directBuffer == null || directBuffer.capacity() != bufferSize) {
+                directBuffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+            return directBuffer;
+        }
+
+        /**
+         * Starts timing a validation, if there are metrics to count it in.
+         */
+        void startClock(final ValidationMetrics metrics) {
+            timed = metrics != null;
+            complete = false;
+            if (!timed) {
+                return;
+            }
+            start = System.nanoTime();
+            clock = start;
+            readNanos = 0;
+            validateNanos = 0;
+        }
+
+        /**
+         * Notes that a chunk has been read, since the previous chunk was validated.
+         */
+        void read() {
+            if (!timed) {
+                return;
+            }
+            final long now = System.nanoTime();
+            readNanos += now - clock;
+            clock = now;
+        }
+
+        /**
+         * Notes that a chunk has been validated, since it was read.
+         */
+        void validated() {
+            if (!timed) {
+                return;
+            }
+            final long now = System.nanoTime();
+            validateNanos += now - clock;
+            clock = now;
+        }
+
+        /**
+         * Notes that the current validation completed, rather than threw.
+         */
+        void completed() {
+            complete = true;
+        }
+
+        /**
+         * Counts the current validation in the metrics, if it was timed,
+         * with the bytes which were validated before it completed or failed.
+         */
+        void record(final ValidationMetrics metrics) {
+            if (timed) {
+                metrics.validated(state.read, System.nanoTime() - start, readNanos, validateNanos);
+                if (!complete) {
+                    metrics.failed();
                 }
+            }
+        }
+    }
 
-            } else if ((b & 0x80) == 0) {
-                // One byte Sequence (MSB of a single byte character must be 0)
-                continue;
+    /**
+     * Passes errors on to another ValidationHandler, counting
+     * them and noting the offset of the first of them, and
+     * counting them in the metrics, if there are any.
+     */
+    private static class RecordingValidationHandler implements PositionValidationHandler, ZipValidationHandler, StoppingValidationHandler {
+        private final ValidationHandler handler;
+        private final ValidationMetrics metrics;
+        long errors = 0;
+        long firstByteOffset = -1;
 
-            } else if ((b & FOUR_BYTE_CHAR) == FOUR_BYTE_CHAR) {
-                //Four byte Sequence
-                multiByteLen = 4;
-                multiBytesRemain = 3;
+        RecordingValidationHandler(final ValidationHandler handler, final ValidationMetrics metrics) {
+            this.handler = handler;
+            this.metrics = metrics;
+        }
 
-            } else if((b & THREE_BYTE_CHAR) == THREE_BYTE_CHAR) {
-                //Three byte Sequence
-                multiByteLen = 3;
-                multiBytesRemain = 2;
+        @Override
+        public void error(final String message, final long byteOffset) throws ValidationException {
+            record(null, byteOffset);
+            handler.error(message, byteOffset);
+        }
 
-            } else if((b & TWO_BYTE_CHAR) == TWO_BYTE_CHAR) {
-                //Two byte Sequence
-                multiByteLen = 2;
-                multiBytesRemain = 1;
+        @Override
+        public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) throws ValidationException {
+            record(kind, byteOffset);
+            handler.error(kind, sequenceLength, sequencePosition, byteOffset);
+        }
 
-            } else {
-                handler.error("Invalid single byte UTF-8 character ", read);
+        @Override
+        public void error(final String message, final long byteOffset, final long line, final long column) throws ValidationException {
+            record(null, byteOffset);
+            PositionTracker.passOn(handler, message, byteOffset, line, column);
+        }
+
+        @Override
+        public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset, final long line, final long column) throws ValidationException {
+            record(kind, byteOffset);
+            PositionTracker.passOn(handler, kind, sequenceLength, sequencePosition, byteOffset, line, column);
+        }
+
+        @Override
+        public long getErrorLimit() {
+            return CollectingValidationHandler.errorLimit(handler);
+        }
+
+        @Override
+        public void startEntry(final String name) throws ValidationException {
+            ZipValidation.startEntry(handler, name);
+        }
+
+        @Override
+        public void endEntry(final String name, final ValidationResult result) throws ValidationException {
+            ZipValidation.endEntry(handler, name, result);
+        }
+
+        private void record(final ErrorKind kind, final long byteOffset) {
+            if (errors++ == 0) {
+                firstByteOffset = byteOffset;
+            }
+            if (metrics != null) {
+                metrics.error(kind);
             }
         }
+    }
+
+    /**
+     * @return the content of a File which is validated, for the ValidationCache
+     */
+    private String cacheContent() {
+        return decompress ? ValidationCache.CONTENT_DECOMPRESSED : ValidationCache.CONTENT_BYTES;
+    }
+
+    private void resetStatistics() {
+        if (statistics != null) {
+            statistics.reset();
+        }
+    }
+
+    /**
+     * Starts a validation to which the input is
+     * pushed a piece at a time, using the engine
+     * and handler of this validator.
+     *
+     * @return A new validation session
+     */
+    public Utf8ValidationSession newSession() {
+        return new Utf8ValidationSession(engine, handler);
+    }
+
+    /**
+     * Determines whether a byte array is valid UTF-8.
+     *
+     * The rules of RFC 3629 are enforced by the fastest engine, see
+     * {@link ValidationEngines#fastest()}, and no exception is thrown for
+     * invalid input, the validation simply stops at the first error.
+     *
+     * @param data The bytes for UTF-8 validation
+     *
+     * @return true if the bytes are valid UTF-8
+     */
+    public static boolean isValid(final byte[] data) {
+        return firstInvalidOffset(data, 0, data.length) == -1;
+    }
+
+    /**
+     * Determines whether a region of a byte array is valid UTF-8.
+     *
+     * @param data The bytes for UTF-8 validation
+     * @param off The offset of the first byte in data to validate
+     * @param len The number of bytes from data to validate
+     *
+     * @return true if the bytes are valid UTF-8
+     *
+     * @see #isValid(byte[])
+     */
+    public static boolean isValid(final byte[] data, final int off, final int len) {
+        return firstInvalidOffset(data, off, len) == -1;
+    }
+
+    /**
+     * Determines whether the remaining bytes of a Byte Buffer are valid UTF-8.
+     * The position of the buffer is unchanged.
+     *
+     * @param buf Byte Buffer for UTF-8 validation
+     *
+     * @return true if the bytes are valid UTF-8
+     *
+     * @see #isValid(byte[])
+     */
+    public static boolean isValid(final ByteBuffer buf) {
+        return firstInvalidOffset(buf) == -1;
+    }
+
+    /**
+     * Determines whether a file is valid UTF-8.
+     *
+     * @param path The file for UTF-8 validation
+     *
+     * @return true if the file is valid UTF-8
+     *
+     * @throws IOException Exception is thrown if the file cannot be read
+     *
+     * @see #isValid(byte[])
+     */
+    public static boolean isValid(final Path path) throws IOException {
+        return firstInvalidOffset(path) == -1;
+    }
+
+    /**
+     * Finds the first error in a byte array.
+     *
+     * @param data The bytes for UTF-8 validation
+     *
+     * The result is a zero-based index into data, which is one less than
+     * the byte offset a {@link ValidationHandler} would have been told of for the
+     * same error. For a multi-byte sequence cut short by the end of the input,
+     * it is the index of the last byte of that sequence.
+     *
+     * @return The zero-based index of the first invalid byte,
+     * or -1 if the bytes are valid UTF-8
+     *
+     * @see #isValid(byte[])
+     */
+    public static long firstInvalidOffset(final byte[] data) {
+        return firstInvalidOffset(data, 0, data.length);
+    }
 
-        if (multiBytesRemain > 0) {
-            handler.error("Invalid UTF-8 Sequence, expecting: " + multiBytesRemain + " more bytes in " + multiByteLen + " byte sequence. End of File!", read);
+    /**
+     * Finds the first error in a region of a byte array.
+     *
+     * @param data The bytes for UTF-8 validation
+     * @param off The offset of the first byte in data to validate
+     * @param len The number of bytes from data to validate
+     *
+     * @return The zero-based index, relative to off, of the first invalid byte,
+     * or -1 if the bytes are valid UTF-8
+     *
+     * @see #firstInvalidOffset(byte[])
+     */
+    public static long firstInvalidOffset(final byte[] data, final int off, final int len) {
+        if(off < 0 || len < 0 || len > data.length - off) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", data.length: " + data.length);
+        }
+        return firstInvalidOffset(ByteBuffer.wrap(data), off, off + len);
+    }
+
+    /**
+     * Finds the first error in the remaining bytes of a Byte Buffer.
+     * The position of the buffer is unchanged.
+     *
+     * @param buf Byte Buffer for UTF-8 validation
+     *
+     * @return The zero-based index, relative to the position of buf, of the first
+     * invalid byte, or -1 if the bytes are valid UTF-8
+     *
+     * @see #firstInvalidOffset(byte[])
+     */
+    public static long firstInvalidOffset(final ByteBuffer buf) {
+        return firstInvalidOffset(buf, buf.position(), buf.limit());
+    }
+
+    private static long firstInvalidOffset(final ByteBuffer buf, final int from, final int to) {
+        final ValidationState state = new ValidationState();
+        final long offset = firstError(state, buf, from, to);
+        if (offset != -1) {
+            return offset - 1;
+        }
+        return state.multiBytesRemain > 0 ? state.read - 1 : -1;
+    }
+
+    /**
+     * Validates the bytes from index from to index to of buf with the fastest
+     * engine, stopping soon after the first error, which is not reported.
+     * The position of buf is unchanged.
+     *
+     * The dfa engine stops at the first error by itself. The vector engine only
+     * reports errors to a handler, and would otherwise have to throw to stop, so
+     * it validates a block of {@link #QUERY_BLOCK_SIZE} bytes at a time, and
+     * stops after the block which has the first error.
+     *
+     * @return the byte offset at which the first error would have been reported
+     * to a ValidationHandler, or -1 if there is no error, in which case state
+     * is updated so that validation may continue with the next bytes
+     */
+    private static long firstError(final ValidationState state, final ByteBuffer buf, final int from, final int to) {
+        if (!ValidationEngines.isVectorAvailable()) {
+            return DfaValidationEngine.firstError(state, buf, from, to);
+        }
+
+        final ValidationEngine engine = ValidationEngines.fastest();
+        final FirstErrorHandler first = new FirstErrorHandler();
+        final ByteBuffer block = buf.duplicate();
+        for (int blockStart = from; blockStart < to; blockStart += QUERY_BLOCK_SIZE) {
+            block.limit(Math.min(to, blockStart + QUERY_BLOCK_SIZE));
+            block.position(blockStart);
+            try {
+                engine.validate(state, block, first);
+            } catch (final ValidationException ve) {
+                // cannot happen, as a FirstErrorHandler does not throw them
+            }
+            if (first.byteOffset != -1) {
+                return first.byteOffset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first error in a file.
+     *
+     * @param path The file for UTF-8 validation
+     *
+     * @return The zero-based index of the first invalid byte in the file,
+     * or -1 if the file is valid UTF-8
+     *
+     * @throws IOException Exception is thrown if the file cannot be read
+     *
+     * @see #firstInvalidOffset(byte[])
+     */
+    public static long firstInvalidOffset(final Path path) throws IOException {
+        final Scratch s = acquireScratch();
+        try (final FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer buf = ByteBuffer.wrap(s.buffer(DEFAULT_BUFFER_SIZE));
+            while (fc.read(buf) > -1) {
+                final long offset = firstError(s.state, buf, 0, buf.position());
+                if (offset != -1) {
+                    return offset - 1;
+                }
+                buf.clear();
+            }
+            return s.state.multiBytesRemain > 0 ? s.state.read - 1 : -1;
+        } finally {
+            releaseScratch(s);
+        }
+    }
+
+    /**
+     * Notes the offset of the first error which it receives, and ignores the rest.
+     */
+    private static final class FirstErrorHandler implements ValidationHandler {
+        long byteOffset = -1;
+
+        @Override
+        public void error(final String message, final long byteOffset) {
+            error(byteOffset);
+        }
+
+        @Override
+        public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+            error(byteOffset);
+        }
+
+        private void error(final long byteOffset) {
+            if (this.byteOffset == -1) {
+                this.byteOffset = byteOffset;
+            }
         }
     }
 }
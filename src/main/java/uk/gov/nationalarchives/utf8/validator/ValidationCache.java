@@ -0,0 +1,272 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent cache of the outcome of validating files, so that a file
+ * which has not changed since it was last validated need not be read again.
+ *
+ * A file is identified by its absolute path, size, last modified time and,
+ * where the file system has one, its file key (e.g. device and inode), by
+ * the ValidationEngine it was validated with, and by the content of it which
+ * was validated, i.e. its bytes, its decompressed content, or the entries of a
+ * zip archive which match a glob. If any of these has changed then the outcome
+ * of the earlier validation is not used. An outcome is held for each path, and
+ * when the cache holds maxEntries outcomes, the least recently used is evicted,
+ * so maxEntries should be more than the number of files which are validated
+ * each time, else each file is evicted before it is validated again.
+ *
+ * The cache is loaded from its file when it is created, and is written back
+ * to it by {@link #save()}. A file written by an earlier version, which did
+ * not record the content, is not loaded. It may be used by many threads at
+ * the same time.
+ *
+ * @author agent <agent@local>
+ */
+public class ValidationCache {
+
+    private static final int MAGIC = 0x55544638;    // "UTF8"
+    private static final int VERSION = 2;
+
+    /**
+     * The content of a file which is validated, when it is validated as it is.
+     */
+    static final String CONTENT_BYTES = "bytes";
+
+    /**
+     * The content of a file which is validated, when a compressed file is decompressed.
+     */
+    static final String CONTENT_DECOMPRESSED = "decompressed";
+
+    private final Path file;
+    private final Map<String, Entry> entries;
+
+    /**
+     * @param file The file which holds the cache, it is
+     * loaded if it exists, else the cache starts empty
+     * @param maxEntries The most outcomes to hold
+     *
+     * @throws IOException Exception is thrown if the file cannot be read,
+     * or does not hold a cache
+     */
+    public ValidationCache(final Path file, final int maxEntries) throws IOException {
+        this.file = file;
+        this.entries = new LruMap(maxEntries);
+        load();
+    }
+
+    /**
+     * Gets the outcome of validating the bytes of a
+     * file, if it has not changed since then.
+     *
+     * @param f The file
+     * @param engine The ValidationEngine which the file is to be validated with
+     *
+     * @return The outcome, or null if the file has not been validated since it changed
+     *
+     * @throws IOException Exception is thrown if the attributes of the file cannot be read
+     */
+    public Entry get(final File f, final ValidationEngine engine) throws IOException {
+        return get(identify(f, engine, CONTENT_BYTES));
+    }
+
+    /**
+     * @return the number of outcomes held
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the cache to its file, replacing the file atomically.
+     *
+     * @throws IOException Exception is thrown if the file cannot be written
+     */
+    public void save() throws IOException {
+        final Path parent = file.toAbsolutePath().getParent();
+        final Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+                synchronized (this) {
+                    os.writeInt(entries.size());
+                    // least recently used first, so that loading restores the order
+                    for (final Entry entry : entries.values()) {
+                        os.writeUTF(entry.path);
+                        os.writeLong(entry.size);
+                        os.writeLong(entry.lastModified);
+                        os.writeUTF(entry.fileKey);
+                        os.writeUTF(entry.engine);
+                        os.writeUTF(entry.content);
+                        os.writeLong(entry.firstErrorOffset);
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void load() throws IOException {
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (is.readInt() != MAGIC) {
+                throw new IOException("Not a validation cache: " + file);
+            }
+            if (is.readInt() != VERSION) {
+                return;     // its outcomes do not say what content was validated
+            }
+            final int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                final Entry entry = new Entry(is.readUTF(), is.readLong(), is.readLong(), is.readUTF(), is.readUTF(), is.readUTF(), is.readLong());
+                entries.put(entry.path, entry);
+            }
+        } catch (final NoSuchFileException nsfe) {
+            // a new cache
+        }
+    }
+
+    /**
+     * Identifies a file as it is now, the outcome
+     * of the entry is that the file is valid.
+     *
+     * @param content The content of the file which is validated, e.g. {@link #CONTENT_BYTES}
+     */
+    Entry identify(final File f, final ValidationEngine engine, final String content) throws IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        final Object fileKey = attrs.fileKey();
+        return new Entry(f.getAbsolutePath(), attrs.size(), attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS),
+                fileKey == null ? "" : fileKey.toString(), engine.getClass().getName(), content, -1);
+    }
+
+    /**
+     * The content of a file which is validated, when the
+     * entries of a zip archive which match a glob are.
+     *
+     * @param glob The glob, or null for every entry
+     */
+    static String zipEntries(final String glob) {
+        return glob == null ? "zip-entries" : "zip-entries:" + glob;
+    }
+
+    /**
+     * Gets the outcome for a file, if it has not changed.
+     */
+    synchronized Entry get(final Entry identity) {
+        final Entry entry = entries.get(identity.path);
+        return entry != null && entry.isSameFile(identity) ? entry : null;
+    }
+
+    /**
+     * Puts the outcome for a file, as it was identified before it was validated.
+     */
+    synchronized void put(final Entry identity, final long firstErrorOffset) {
+        entries.put(identity.path, new Entry(identity.path, identity.size, identity.lastModified, identity.fileKey, identity.engine, identity.content, firstErrorOffset));
+    }
+
+    /**
+     * The outcome of validating a file.
+     */
+    public static final class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final String fileKey;
+        private final String engine;
+        private final String content;
+        private final long firstErrorOffset;
+
+        private Entry(final String path, final long size, final long lastModified, final String fileKey, final String engine, final String content, final long firstErrorOffset) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.engine = engine;
+            this.content = content;
+            this.firstErrorOffset = firstErrorOffset;
+        }
+
+        /**
+         * @return true if the file was valid
+         */
+        public boolean isValid() {
+            return firstErrorOffset == -1;
+        }
+
+        /**
+         * @return the offset reported with the first error, or -1 if the file was valid
+         */
+        public long getFirstErrorOffset() {
+            return firstErrorOffset;
+        }
+
+        private boolean isSameFile(final Entry other) {
+            return size == other.size
+                    && lastModified == other.lastModified
+                    && fileKey.equals(other.fileKey)
+                    && engine.equals(other.engine)
+                    && content.equals(other.content);
+        }
+    }
+
+    /**
+     * Outcomes by path, which are ordered from the least to the most
+     * recently used, and which evicts the least recently used once it
+     * holds more than its maximum.
+     */
+    private static final class LruMap extends LinkedHashMap<String, ValidationCache.Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        LruMap(final int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, ValidationCache.Entry> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
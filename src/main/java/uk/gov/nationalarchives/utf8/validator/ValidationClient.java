@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A client of a ValidationServer, which asks the
+ * server to validate files on its behalf.
+ *
+ * Connections to the server are kept alive and reused by
+ * the JDK, so a client may be used by several threads. The token
+ * which the server asks for is read from the file which it wrote,
+ * so the client must be run by the same user as the server.
+ *
+ * @author agent <agent@local>
+ */
+final class ValidationClient {
+
+    private final int port;
+    private final String token;
+
+    /**
+     * @param port The port which the ValidationServer listens on
+     *
+     * @throws IOException if the token of the server cannot be read from the home directory of the user
+     */
+    ValidationClient(final int port) throws IOException {
+        this(ValidationServer.defaultTokenDirectory(), port);
+    }
+
+    /**
+     * @param tokenDirectory The directory which the server wrote its token to
+     * @param port The port which the ValidationServer listens on
+     *
+     * @throws IOException if the token of the server cannot be read
+     */
+    ValidationClient(final Path tokenDirectory, final int port) throws IOException {
+        this.port = port;
+        final Path tokenFile = ValidationServer.tokenFile(tokenDirectory, port);
+        try {
+            this.token = new String(Files.readAllBytes(tokenFile), StandardCharsets.US_ASCII).trim();
+        } catch (final IOException ioe) {
+            throw new IOException("Could not read the token of the validation server from: " + tokenFile + ", is it running? " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Asks the server to validate a File.
+     *
+     * @param f The file to UTF-8 validate, which must be readable by the server
+     * @param out Receives the output of the validation
+     *
+     * @return the ExitCode of the validation
+     *
+     * @throws IOException if the server cannot be reached, or does not respond with an ExitCode
+     */
+    ExitCode validate(final File f, final ByteArrayOutputStream out) throws IOException {
+        final URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port,
+                ValidationServer.CONTEXT + "?path=" + URLEncoder.encode(f.getAbsolutePath(), "UTF-8"));
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty(ValidationServer.TOKEN_HEADER, token);
+        final int status = connection.getResponseCode();
+        final String exitCode = connection.getHeaderField(ValidationServer.EXIT_CODE_HEADER);
+        if (status != HttpURLConnection.HTTP_OK || exitCode == null) {
+            connection.disconnect();
+            throw new IOException("Unexpected response from the validation server: " + status + " " + connection.getResponseMessage());
+        }
+
+        // the body must be read to its end for the connection to be reused
+        try (final InputStream is = connection.getInputStream()) {
+            final byte[] buf = new byte[4096];
+            int len = -1;
+            while ((len = is.read(buf)) > -1) {
+                out.write(buf, 0, len);
+            }
+        }
+
+        try {
+            return ExitCode.forCode(Integer.parseInt(exitCode));
+        } catch (final IllegalArgumentException iae) {
+            throw new IOException("Unexpected exit code from the validation server: " + exitCode, iae);
+        }
+    }
+}
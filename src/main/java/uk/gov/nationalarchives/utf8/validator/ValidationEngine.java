@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for Validation Engines
+ * A strategy used by the Utf8Validator
+ * to validate chunks of bytes
+ *
+ * An engine holds no state of its own, so a single
+ * engine may be shared by many validations. Everything
+ * that has to be carried from one chunk to the
+ * next is kept in the ValidationState. An engine must
+ * count every byte it validates in the state, and keep the
+ * bytes remaining of a multi-byte sequence up to date, as
+ * they are relied on by the Utf8Validator to skip ASCII bytes
+ * and to report where a validation ended.
+ *
+ * @author agent <agent@local>
+ */
+public interface ValidationEngine {
+
+    /**
+     * Validates a chunk of bytes, continuing from
+     * the state left by any previous chunk.
+     *
+     * @param state The state of the validation in progress
+     * @param data The bytes for UTF-8 validation
+     * @param off The offset of the first byte in data to validate
+     * @param len The number of bytes from data to validate
+     * @param handler A ValidationHandler that receives errors
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    void validate(final ValidationState state, final byte[] data, final int off, final int len, final ValidationHandler handler) throws ValidationException;
+
+    /**
+     * Validates the remaining bytes of a buffer, continuing
+     * from the state left by any previous chunk.
+     * On return the position of the buffer is its limit.
+     *
+     * @param state The state of the validation in progress
+     * @param buf The bytes for UTF-8 validation
+     * @param handler A ValidationHandler that receives errors
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    void validate(final ValidationState state, final ByteBuffer buf, final ValidationHandler handler) throws ValidationException;
+
+    /**
+     * Completes a validation, reporting any multi-byte
+     * sequence which was left incomplete by the end of the input.
+     *
+     * @param state The state of the validation in progress
+     * @param handler A ValidationHandler that receives errors
+     *
+     * @throws ValidationException thrown if the ValidationHandler determines
+     * that an error causes an exception
+     */
+    void end(final ValidationState state, final ValidationHandler handler) throws ValidationException;
+}
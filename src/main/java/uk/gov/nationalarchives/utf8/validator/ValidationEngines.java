@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+/**
+ * Finds the ValidationEngines which are available
+ *
+ * The vector engine lives in the separate utf8-validator-vector
+ * module, as it needs Java 17 and the jdk.incubator.vector module.
+ * When it is not on the classpath, or the JVM was not started with
+ * "--add-modules jdk.incubator.vector", the scalar DFA engine,
+ * which reports exactly the same errors, is used in its place.
+ *
+ * @author agent <agent@local>
+ */
+public final class ValidationEngines {
+
+    private static final String VECTOR_ENGINE_CLASS = "uk.gov.nationalarchives.utf8.validator.VectorValidationEngine";
+
+    private static final ValidationEngine VECTOR = loadVectorEngine();
+
+    private ValidationEngines() {
+    }
+
+    /**
+     * Gets a ValidationEngine by its name.
+     *
+     * @param name One of "mask", "dfa" or "vector"
+     *
+     * @return The engine, or if the vector engine is requested but
+     * is not available, the dfa engine
+     *
+     * @throws IllegalArgumentException if there is no engine with the name
+     */
+    public static ValidationEngine forName(final String name) {
+        if(name.equals("mask")) {
+            return new MaskValidationEngine();
+        } else if(name.equals("dfa")) {
+            return new DfaValidationEngine();
+        } else if(name.equals("vector")) {
+            return fastest();
+        } else {
+            throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+
+    /**
+     * Gets the fastest ValidationEngine which enforces all of RFC 3629.
+     *
+     * @return The vector engine if it is available, else the dfa engine
+     */
+    public static ValidationEngine fastest() {
+        return VECTOR != null ? VECTOR : new DfaValidationEngine();
+    }
+
+    /**
+     * @return true if the vector engine is available
+     */
+    public static boolean isVectorAvailable() {
+        return VECTOR != null;
+    }
+
+    private static ValidationEngine loadVectorEngine() {
+        try {
+            return (ValidationEngine) Class.forName(VECTOR_ENGINE_CLASS).getConstructor().newInstance();
+        } catch(final ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -32,6 +32,11 @@ package uk.gov.nationalarchives.utf8.validator;
  * @author Adam Retter <adam.retter@googlemail.com>
  */
 public class ValidationException extends Exception {
+
+   private final ErrorKind kind;
+   private final int sequenceLength;
+   private final int sequencePosition;
+   private final long byteOffset;
  
    /**
     * @param message Description of the validation error
@@ -39,6 +44,10 @@ public class ValidationException extends Exception {
     */
    public ValidationException(final String message, final long byteOffset) {
        super(message + " @ byte position: " + byteOffset);
+       this.kind = null;
+       this.sequenceLength = 0;
+       this.sequencePosition = 0;
+       this.byteOffset = byteOffset;
    } 
 
    /**
@@ -48,5 +57,47 @@ public class ValidationException extends Exception {
     */
    public ValidationException(final String message, final long byteOffset, final Throwable cause) {
        super(message + " @ byte position: " + byteOffset, cause);
+       this.kind = null;
+       this.sequenceLength = 0;
+       this.sequencePosition = 0;
+       this.byteOffset = byteOffset;
+   }
+
+   /**
+    * The message is only formatted if it is asked for.
+    *
+    * @param kind The kind of validation error
+    * @param sequenceLength the length of the sequence in which the error occurred
+    * @param sequencePosition the position within the sequence of the error
+    * @param byteOffset offset in the underlying data that failed validation
+    */
+   public ValidationException(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+       super();
+       this.kind = kind;
+       this.sequenceLength = sequenceLength;
+       this.sequencePosition = sequencePosition;
+       this.byteOffset = byteOffset;
+   }
+
+   @Override
+   public String getMessage() {
+       if(kind != null) {
+           return kind.message(sequenceLength, sequencePosition) + " @ byte position: " + byteOffset;
+       }
+       return super.getMessage();
+   }
+
+   /**
+    * @return The kind of validation error, or null if it was created from a message
+    */
+   public ErrorKind getErrorKind() {
+       return kind;
+   }
+
+   /**
+    * @return offset in the underlying data that failed validation
+    */
+   public long getByteOffset() {
+       return byteOffset;
    }
 }
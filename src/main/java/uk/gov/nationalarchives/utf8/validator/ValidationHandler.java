@@ -46,4 +46,25 @@ public interface ValidationHandler {
     * stops the Utf8Validator
     */
     void error(final String message, final long byteOffset) throws ValidationException;
+
+   /**
+    * Error handler, called when a Validation Error occurs
+    *
+    * This is what the Utf8Validator calls, by default it formats
+    * a message and calls {@link #error(String, long)}. An implementation
+    * which overrides it can avoid creating a message for every error.
+    *
+    * @param kind The kind of validation error
+    * @param sequenceLength the length of the sequence in which the error occurred
+    * @param sequencePosition the position (starting from 1) within the sequence of
+    * the invalid byte, or for a truncated sequence the number of bytes which were read
+    * @param byteOffset offset in the underlying data that failed validation
+    *
+    * @throws ValidationException, an implementation may choose to throw a
+    * ValidationException on receipt of an error. Throwing a ValidationException
+    * stops the Utf8Validator
+    */
+    default void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) throws ValidationException {
+        error(kind.message(sequenceLength, sequencePosition), byteOffset);
+    }
 }
@@ -0,0 +1,340 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Metrics of the validations of one or more Utf8Validators,
+ * e.g. the number of bytes and errors, and the latency of each
+ * validation, which may be exposed over JMX.
+ *
+ * The metrics are LongAdders, so they may be updated by many threads
+ * with little contention. The latency of each validation is counted in
+ * a histogram for the size of its input, whose buckets are powers of two
+ * of microseconds. A validation which reads its input a chunk at a time also
+ * splits its time between waiting for each chunk to be read and validating it,
+ * so that slow storage may be told apart from slow validation. The throughput
+ * is measured over the time elapsed from the start of the first validation to
+ * the end of the last, as several validations may run at once.
+ *
+ * @author agent <agent@local>
+ *
+ * @see Utf8Validator#setMetrics(ValidationMetrics)
+ */
+public final class ValidationMetrics implements ValidationMetricsMXBean {
+
+    private static final long[] SIZE_BUCKET_LIMITS = { 4L * 1024, 64L * 1024, 1024L * 1024, 16L * 1024 * 1024, 256L * 1024 * 1024 };
+    private static final String[] SIZE_BUCKET_NAMES = { "<4KB", "<64KB", "<1MB", "<16MB", "<256MB", ">=256MB" };
+    private static final int LATENCY_BUCKETS = 32;     // the last is of latencies of 2^30 microseconds, ~18 minutes, or more
+
+    private static final String OTHER_ERRORS = "OTHER";
+
+    private final LongAdder validations = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder[] errorsByKind = adders(ErrorKind.values().length + 1);   // the last are errors reported with only a message
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder validateNanos = new LongAdder();
+    private final LongAccumulator firstStart = new LongAccumulator(new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(final long left, final long right) {
+            return Math.min(left, right);
+        }
+    }, Long.MAX_VALUE);
+    private final LongAccumulator lastEnd = new LongAccumulator(new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(final long left, final long right) {
+            return Math.max(left, right);
+        }
+    }, Long.MIN_VALUE);
+    private final LongAdder[][] latencies = new LongAdder[SIZE_BUCKET_NAMES.length][];
+
+    public ValidationMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = adders(LATENCY_BUCKETS);
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBeanServer, so
+     * that they may be read over JMX, e.g. by JConsole.
+     *
+     * @param name The name of these metrics, which distinguishes
+     * them from those of any other Utf8Validators
+     *
+     * @return the name which the MBean is registered with
+     *
+     * @throws JMException if the MBean cannot be registered, e.g.
+     * because the name is already registered
+     */
+    public ObjectName register(final String name) throws JMException {
+        final ObjectName objectName = new ObjectName("uk.gov.nationalarchives.utf8.validator:type=ValidationMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Counts a validation.
+     *
+     * @param bytes The number of bytes which were validated
+     * @param nanos The time which the validation took, up until now
+     * @param readNanos The time spent waiting for the input to be read, or zero if it is not known
+     * @param validateNanos The time spent validating the input, or zero if it is not known
+     */
+    void validated(final long bytes, final long nanos, final long readNanos, final long validateNanos) {
+        validations.increment();
+        this.bytes.add(bytes);
+        totalNanos.add(nanos);
+        this.readNanos.add(readNanos);
+        this.validateNanos.add(validateNanos);
+        final long end = System.nanoTime();
+        firstStart.accumulate(end - nanos);
+        lastEnd.accumulate(end);
+        latencies[sizeBucket(bytes)][latencyBucket(nanos)].increment();
+    }
+
+    /**
+     * Counts a validation which did not complete, which
+     * is also counted by {@link #validated(long, long, long, long)}.
+     */
+    void failed() {
+        failures.increment();
+    }
+
+    /**
+     * Counts an error.
+     *
+     * @param kind The kind of the error, or null if it was reported with only a message
+     */
+    void error(final ErrorKind kind) {
+        errors.increment();
+        errorsByKind[kind != null ? kind.ordinal() : errorsByKind.length - 1].increment();
+    }
+
+    @Override
+    public long getValidations() {
+        return validations.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrorsByKind() {
+        final Map<String, Long> byKind = new LinkedHashMap<>();
+        for (final ErrorKind kind : ErrorKind.values()) {
+            byKind.put(kind.name(), errorsByKind[kind.ordinal()].sum());
+        }
+        byKind.put(OTHER_ERRORS, errorsByKind[errorsByKind.length - 1].sum());
+        return byKind;
+    }
+
+    @Override
+    public long getTotalTimeNanos() {
+        return totalNanos.sum();
+    }
+
+    @Override
+    public long getReadTimeNanos() {
+        return readNanos.sum();
+    }
+
+    @Override
+    public long getValidateTimeNanos() {
+        return validateNanos.sum();
+    }
+
+    @Override
+    public long getElapsedTimeNanos() {
+        final long start = firstStart.get();
+        final long end = lastEnd.get();
+        return start <= end ? end - start : 0;
+    }
+
+    @Override
+    public double getMegabytesPerSecond() {
+        final long nanos = getElapsedTimeNanos();
+        return nanos > 0 ? (bytes.sum() / (1024.0 * 1024.0)) / (nanos / 1e9) : 0;
+    }
+
+    @Override
+    public Map<String, long[]> getLatencyHistograms() {
+        final Map<String, long[]> histograms = new LinkedHashMap<>();
+        for (int i = 0; i < latencies.length; i++) {
+            histograms.put(SIZE_BUCKET_NAMES[i], sums(latencies[i]));
+        }
+        return histograms;
+    }
+
+    @Override
+    public void reset() {
+        validations.reset();
+        failures.reset();
+        bytes.reset();
+        errors.reset();
+        resetAll(errorsByKind);
+        totalNanos.reset();
+        readNanos.reset();
+        validateNanos.reset();
+        firstStart.reset();
+        lastEnd.reset();
+        for (final LongAdder[] histogram : latencies) {
+            resetAll(histogram);
+        }
+    }
+
+    /**
+     * A summary of the metrics, with a line for the totals,
+     * and a line for each bucket of input size which has
+     * been validated with the percentiles of its latency.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder()
+                .append("validations: ").append(getValidations())
+                .append(", failures: ").append(getFailures())
+                .append(", bytes: ").append(getBytes())
+                .append(", MB/s: ").append(String.format("%.2f", getMegabytesPerSecond()))
+                .append(", elapsed: ").append(millis(getElapsedTimeNanos()))
+                .append(", time: ").append(millis(getTotalTimeNanos()))
+                .append(", read time: ").append(millis(getReadTimeNanos()))
+                .append(", validate time: ").append(millis(getValidateTimeNanos()))
+                .append(", errors: ").append(getErrors());
+        for (final Map.Entry<String, Long> kind : getErrorsByKind().entrySet()) {
+            builder.append(", ").append(kind.getKey()).append(": ").append(kind.getValue());
+        }
+
+        for (int i = 0; i < latencies.length; i++) {
+            final long[] histogram = sums(latencies[i]);
+            long count = 0;
+            for (final long c : histogram) {
+                count += c;
+            }
+            if (count > 0) {
+                builder.append(System.lineSeparator())
+                        .append("latency of ").append(SIZE_BUCKET_NAMES[i]).append(" (").append(count).append("):")
+                        .append(" p50 ").append(percentile(histogram, count, 0.5))
+                        .append(", p90 ").append(percentile(histogram, count, 0.9))
+                        .append(", p99 ").append(percentile(histogram, count, 0.99))
+                        .append(", max ").append(percentile(histogram, count, 1.0));
+            }
+        }
+        return builder.toString();
+    }
+
+    static int sizeBucket(final long bytes) {
+        int bucket = 0;
+        while (bucket < SIZE_BUCKET_LIMITS.length && bytes >= SIZE_BUCKET_LIMITS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * @return the bucket of a latency, the bucket i being of latencies of less than 2^i microseconds
+     */
+    static int latencyBucket(final long nanos) {
+        final long micros = nanos / 1000;
+        return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * @return the upper bound of the bucket which holds the percentile, e.g. "<64us"
+     */
+    private static String percentile(final long[] histogram, final long count, final double percentile) {
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile));
+        long seen = 0;
+        int bucket = 0;
+        for (; bucket < histogram.length - 1; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank) {
+                break;
+            }
+        }
+        if (bucket == histogram.length - 1) {
+            return ">=" + micros(1L << (bucket - 1));
+        }
+        return "<" + micros(1L << bucket);
+    }
+
+    private static String micros(final long micros) {
+        if (micros < 1000) {
+            return micros + "us";
+        } else if (micros < 1000 * 1000) {
+            return (micros / 1000) + "ms";
+        }
+        return (micros / (1000 * 1000)) + "s";
+    }
+
+    private static String millis(final long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    private static LongAdder[] adders(final int count) {
+        final LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static long[] sums(final LongAdder[] adders) {
+        final long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    private static void resetAll(final LongAdder[] adders) {
+        for (final LongAdder adder : adders) {
+            adder.reset();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link ValidationMetrics},
+ * by which they are exposed over JMX.
+ *
+ * @author agent <agent@local>
+ */
+public interface ValidationMetricsMXBean {
+
+    /**
+     * @return the number of validations, e.g. of files or of entries of zip archives
+     */
+    long getValidations();
+
+    /**
+     * @return the number of validations which did not complete, as their input
+     * could not be read or their ValidationHandler stopped them, which are also
+     * counted in the validations with the bytes which they validated
+     */
+    long getFailures();
+
+    /**
+     * @return the number of bytes which have been validated
+     */
+    long getBytes();
+
+    /**
+     * @return the number of errors which have been reported
+     */
+    long getErrors();
+
+    /**
+     * @return the number of errors which have been reported of each ErrorKind, and
+     * as "OTHER" the number which were reported with only a message
+     */
+    Map<String, Long> getErrorsByKind();
+
+    /**
+     * @return the total time of the validations, which is longer than
+     * the time that has elapsed if validations ran concurrently
+     */
+    long getTotalTimeNanos();
+
+    /**
+     * @return the time that has elapsed from the start of the first
+     * validation to the end of the last, including any time between
+     * validations when none was running
+     */
+    long getElapsedTimeNanos();
+
+    /**
+     * @return the time spent waiting for input to be read, by
+     * those validations which read their input a chunk at a time
+     */
+    long getReadTimeNanos();
+
+    /**
+     * @return the time spent validating input which had been read, by
+     * those validations which read their input a chunk at a time
+     */
+    long getValidateTimeNanos();
+
+    /**
+     * @return the number of megabytes validated per second of the elapsed time, so that
+     * validations which ran concurrently are not each counted as taking their own time
+     */
+    double getMegabytesPerSecond();
+
+    /**
+     * @return for each bucket of input size, e.g. "<64KB", the number of
+     * validations whose latency is in each bucket of latency, where the bucket
+     * at index i is of latencies of less than 2^i microseconds
+     */
+    Map<String, long[]> getLatencyHistograms();
+
+    /**
+     * Sets all of the metrics to zero.
+     */
+    void reset();
+}
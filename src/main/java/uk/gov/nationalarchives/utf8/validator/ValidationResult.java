@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+/**
+ * The result of a validation.
+ *
+ * @author agent <agent@local>
+ */
+public final class ValidationResult {
+    private final long byteCount;
+    private final long errorCount;
+    private final long firstErrorOffset;
+
+    ValidationResult(final long byteCount, final long errorCount, final long firstErrorOffset) {
+        this.byteCount = byteCount;
+        this.errorCount = errorCount;
+        this.firstErrorOffset = firstErrorOffset;
+    }
+
+    /**
+     * @return true if no errors were reported
+     */
+    public boolean isValid() {
+        return errorCount == 0;
+    }
+
+    /**
+     * @return the number of bytes which were validated
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the number of errors which were reported to the ValidationHandler
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * @return the offset reported with the first error, or -1 if there were no errors
+     */
+    public long getFirstErrorOffset() {
+        return firstErrorOffset;
+    }
+
+    @Override
+    public String toString() {
+        return isValid() ? "Valid (" + byteCount + " bytes)"
+                : "Invalid (" + byteCount + " bytes, " + errorCount + " errors, first @ " + firstErrorOffset + ")";
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * A server which validates files, or the bodies of requests, over
+ * HTTP on the loopback interface, so that a single JVM whose validators
+ * have been compiled by the JIT may be used by many short lived clients.
+ *
+ * A request of "GET /validate?path=..." validates the file at that path,
+ * which is read by the server, and a request of "POST /validate?name=..."
+ * validates the body of the request. The response is the output of the
+ * validation, i.e. what the command line would print, and its
+ * {@value #EXIT_CODE_HEADER} header is the ExitCode of the validation.
+ * Each thread of the server reuses its own RequestValidator.
+ *
+ * The server is only bound to the loopback interface, but it will read
+ * any file which a client asks for, with the permissions of the user who
+ * runs the server. So that only that user may ask, the server writes a
+ * random token to a file which only they may read, see
+ * {@link #tokenFile(Path, int)}, and rejects a request which does not
+ * send it in the {@value #TOKEN_HEADER} header. So that a web page cannot
+ * ask by resolving its own host name to the loopback address, a request
+ * whose Host header is not the loopback address or localhost is rejected.
+ *
+ * Each response is written as its headers and then its body, so unless
+ * the JVM-wide property {@code sun.net.httpserver.nodelay} is true, each
+ * waits for the delayed ACK of the client. The server does not set it, as
+ * it is not the only user of the JVM; the command line, whose server
+ * does own the JVM, does.
+ *
+ * @author agent <agent@local>
+ */
+final class ValidationServer {
+
+    static final String CONTEXT = "/validate";
+    static final String EXIT_CODE_HEADER = "X-Exit-Code";
+    static final String TOKEN_HEADER = "X-Validation-Token";
+
+    private static final int TOKEN_BYTES = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Validates the input of a request.
+     */
+    interface RequestValidator {
+
+        /**
+         * Validates a File, writing the output of the validation to out.
+         */
+        ExitCode validate(File f, OutputStream out) throws IOException;
+
+        /**
+         * Validates a stream, writing the output of the validation to out.
+         *
+         * @param name The name of the stream, which is used in the output
+         */
+        ExitCode validate(String name, InputStream is, OutputStream out) throws IOException;
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Path tokenDirectory;
+    private final String token;
+    private Path tokenFile = null;
+
+    /**
+     * The token is written to a file in the home directory of the user.
+     *
+     * @param port The port to listen on, or zero for any free port
+     * @param threads The number of requests to validate at the same time
+     * @param validators Creates the RequestValidator of each thread
+     */
+    ValidationServer(final int port, final int threads, final Supplier<? extends RequestValidator> validators) throws IOException {
+        this(defaultTokenDirectory(), port, threads, validators);
+    }
+
+    /**
+     * @param tokenDirectory The directory to write the token to
+     * @param port The port to listen on, or zero for any free port
+     * @param threads The number of requests to validate at the same time
+     * @param validators Creates the RequestValidator of each thread
+     */
+    ValidationServer(final Path tokenDirectory, final int port, final int threads, final Supplier<? extends RequestValidator> validators) throws IOException {
+        this.tokenDirectory = tokenDirectory;
+        this.token = newToken();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newFixedThreadPool(threads);
+        final ThreadLocal<RequestValidator> threadValidators = new ThreadLocal<RequestValidator>() {
+            @Override
+            protected RequestValidator initialValue() {
+                return validators.get();
+            }
+        };
+        server.createContext(CONTEXT, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    if (!isLoopback(exchange.getRequestHeaders().getFirst("Host"), getPort())) {
+                        exchange.sendResponseHeaders(403, -1);
+                    } else if (!isToken(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+                        exchange.sendResponseHeaders(401, -1);
+                    } else {
+                        ValidationServer.handle(exchange, threadValidators.get());
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Writes the token to its file, and starts the server.
+     *
+     * @throws IOException if the token cannot be written
+     */
+    void start() throws IOException {
+        tokenFile = writeToken(tokenFile(tokenDirectory, getPort()), token);
+        server.start();
+    }
+
+    /**
+     * @return the port which the server listens on
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server, waiting for up to delaySeconds for requests to complete.
+     */
+    void stop(final int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        if (tokenFile != null) {
+            try {
+                Files.deleteIfExists(tokenFile);
+            } catch (final IOException ioe) {
+                // the token is of no use once the server has stopped
+            }
+        }
+    }
+
+    /**
+     * @return the home directory of the user, which the token is written to by default
+     */
+    static Path defaultTokenDirectory() {
+        return Paths.get(System.getProperty("user.home"));
+    }
+
+    /**
+     * Gets the file which the token of the server on a port is written
+     * to, from which a client reads it. Only the user may read it.
+     *
+     * @param directory The directory of the file
+     * @param port The port which the server listens on
+     */
+    static Path tokenFile(final Path directory, final int port) {
+        return directory.resolve(".utf8-validator-" + port + ".token");
+    }
+
+    private static String newToken() {
+        final byte[] bytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(bytes);
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Writes the token to a new file, which only the user may read, replacing
+     * any file left by an earlier server, whose permissions may differ.
+     */
+    private static Path writeToken(final Path file, final String token) throws IOException {
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (final UnsupportedOperationException uoe) {
+            // not a POSIX file system
+            Files.createFile(file);
+            final File f = file.toFile();
+            if (!(f.setReadable(false, false) && f.setReadable(true, true) && f.setWritable(false, false) && f.setWritable(true, true))) {
+                Files.delete(file);
+                throw new IOException("Could not restrict the permissions of: " + file);
+            }
+        } catch (final FileAlreadyExistsException faee) {
+            throw new IOException("Another process created the token file: " + file, faee);
+        }
+        Files.write(file, token.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private boolean isToken(final String value) {
+        return value != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.US_ASCII), value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return true if the Host header is of the loopback address, or localhost, and the port
+     */
+    static boolean isLoopback(final String host, final int port) {
+        if (host == null || !host.endsWith(":" + port)) {
+            return false;
+        }
+        final String name = host.substring(0, host.length() - (":" + port).length()).toLowerCase(Locale.ROOT);
+        return name.equals("localhost") || name.equals("127.0.0.1") || name.equals("[::1]") || name.equals("[0:0:0:0:0:0:0:1]");
+    }
+
+    private static void handle(final HttpExchange exchange, final RequestValidator validator) throws IOException {
+        final Map<String, String> params = query(exchange.getRequestURI().getRawQuery());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final ExitCode result;
+        if (exchange.getRequestMethod().equals("GET")) {
+            final String path = params.get("path");
+            if (path == null) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            final File f = new File(path);
+            if (!f.isFile()) {
+                out.write(("File: " + path + " does not exist!\n").getBytes(StandardCharsets.UTF_8));
+                result = ExitCode.INVALID_ARGS;
+            } else {
+                result = validator.validate(f, out);
+            }
+        } else if (exchange.getRequestMethod().equals("POST")) {
+            final String name = params.get("name");
+            result = validator.validate(name != null ? name : "-", exchange.getRequestBody(), out);
+        } else {
+            exchange.getResponseHeaders().set("Allow", "GET, POST");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.getResponseHeaders().set(EXIT_CODE_HEADER, Integer.toString(result.getCode()));
+        exchange.sendResponseHeaders(200, out.size() == 0 ? -1 : out.size());
+        if (out.size() > 0) {
+            out.writeTo(exchange.getResponseBody());
+        }
+    }
+
+    private static Map<String, String> query(final String rawQuery) throws UnsupportedEncodingException {
+        final Map<String, String> params = new HashMap<>();
+        if (rawQuery != null) {
+            for (final String param : rawQuery.split("&")) {
+                final int eq = param.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+}
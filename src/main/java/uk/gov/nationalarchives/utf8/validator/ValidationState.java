@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The state of a validation which is in progress.
+ *
+ * Holds everything that must be carried between chunks
+ * of input, so that a multi-byte sequence which is split
+ * across a chunk boundary is still validated correctly.
+ * It is created by the Utf8Validator and passed to
+ * a ValidationEngine for each chunk. An engine implemented
+ * outside of this package reads and updates it through its
+ * accessors, and may create one to validate with directly.
+ *
+ * @author agent <agent@local>
+ */
+public final class ValidationState {
+    long read = 0;                  // total bytes read
+    int multiByteLen = 0;           // length of multi-byte character sequence (or zero if a single byte character)
+    int multiBytesRemain = 0;       // bytes remaining to read of multi-byte character sequence (or zero if a single byte character)
+    int engineState = 0;            // any further state private to the ValidationEngine, e.g. the state of a DFA
+
+    /**
+     * Creates the state of a validation
+     * which has not yet read any bytes.
+     */
+    public ValidationState() {
+    }
+
+    /**
+     * Resets the state, so that it may be
+     * reused for another validation.
+     */
+    public void reset() {
+        read = 0;
+        multiByteLen = 0;
+        multiBytesRemain = 0;
+        engineState = 0;
+    }
+
+    /**
+     * Gets the total number of bytes which have been validated.
+     *
+     * @return The number of bytes read
+     */
+    public long getRead() {
+        return read;
+    }
+
+    /**
+     * Sets the total number of bytes which have been validated.
+     *
+     * @param read The number of bytes read
+     */
+    public void setRead(final long read) {
+        this.read = read;
+    }
+
+    /**
+     * Gets the length of the multi-byte sequence being validated.
+     *
+     * @return The length of the sequence, or zero if a single byte character
+     */
+    public int getMultiByteLen() {
+        return multiByteLen;
+    }
+
+    /**
+     * Sets the length of the multi-byte sequence being validated.
+     *
+     * @param multiByteLen The length of the sequence, or zero if a single byte character
+     */
+    public void setMultiByteLen(final int multiByteLen) {
+        this.multiByteLen = multiByteLen;
+    }
+
+    /**
+     * Gets the number of bytes of the multi-byte
+     * sequence which remain to be read.
+     *
+     * @return The bytes remaining, or zero if not within a multi-byte sequence
+     */
+    public int getMultiBytesRemain() {
+        return multiBytesRemain;
+    }
+
+    /**
+     * Sets the number of bytes of the multi-byte
+     * sequence which remain to be read.
+     *
+     * @param multiBytesRemain The bytes remaining, or zero if not within a multi-byte sequence
+     */
+    public void setMultiBytesRemain(final int multiBytesRemain) {
+        this.multiBytesRemain = multiBytesRemain;
+    }
+
+    /**
+     * Gets any further state which is private to
+     * the ValidationEngine, e.g. the state of a DFA.
+     *
+     * @return The state of the engine, zero initially
+     */
+    public int getEngineState() {
+        return engineState;
+    }
+
+    /**
+     * Sets any further state which is private to
+     * the ValidationEngine, e.g. the state of a DFA.
+     *
+     * @param engineState The state of the engine
+     */
+    public void setEngineState(final int engineState) {
+        this.engineState = engineState;
+    }
+
+    /**
+     * Gets a view of a chunk through which
+     * 8 bytes at a time may be read as a long.
+     *
+     * A new view is made by each call, and is not held on to, nor is
+     * the chunk. It should be kept in a local variable which does not
+     * escape the method that reads through it, so that once that method
+     * is compiled its allocation is eliminated.
+     *
+     * @param data The array holding the chunk
+     *
+     * @return A view of the data
+     */
+    public static ByteBuffer words(final byte[] data) {
+        return ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Validates the entries of a zip (or jar) archive in parallel,
+ * each entry being validated by a task on a ForkJoinPool.
+ *
+ * The archive is opened once, and each task inflates and validates
+ * its entry, collecting its errors. The errors are then reported in the
+ * order of the entries in the archive, so the ValidationHandler receives
+ * the same errors, in the same order, whatever the number of threads.
+ * Should the task of the entry whose errors are to be reported next not
+ * have started, the calling thread validates that entry itself, passing
+ * its errors straight on to the ValidationHandler.
+ * Directories are skipped, and so are any entries whose names do not
+ * match the glob. Only a few entries are validated ahead of those whose
+ * errors are being reported, and an entry collects no more than
+ * {@link CollectingValidationHandler#MAX_COLLECTED_ERRORS} errors, nor
+ * more than the limit of a {@link StoppingValidationHandler}; it then
+ * stops, and is validated again by the calling thread once its errors are
+ * to be reported. Once an entry has as many errors as the handler will
+ * receive, the entries after it are cancelled. The pool is shared with
+ * {@link ParallelValidation}.
+ *
+ * @author agent <agent@local>
+ */
+final class ZipValidation {
+
+    private static final int ENTRIES_AHEAD_PER_THREAD = 2;
+
+    private final ValidationEngine engine;
+    private final int bufferSize;
+    private final boolean trackPositions;
+    private final ValidationMetrics metrics;
+
+    /**
+     * @param metrics The metrics to count the validation of each entry in, or null
+     */
+    ZipValidation(final ValidationEngine engine, final int bufferSize, final boolean trackPositions, final ValidationMetrics metrics) {
+        this.engine = engine;
+        this.bufferSize = bufferSize;
+        this.trackPositions = trackPositions;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Validates the entries of a zip archive as UTF-8.
+     *
+     * @param zip The zip archive
+     * @param glob A glob which the names of the entries to validate
+     * must match, e.g. "**.txt", or null to validate every entry
+     * @param threads The number of threads to validate with
+     * @param handler A ValidationHandler that receives errors, which is
+     * told the name of each entry if it is a ZipValidationHandler
+     *
+     * @return the result of each entry which was validated, by name,
+     * in the order of the entries in the archive
+     */
+    Map<String, ValidationResult> validate(final Path zip, final String glob, final int threads, final ValidationHandler handler) throws IOException, ValidationException {
+        final long limit = CollectingValidationHandler.errorLimit(handler);
+        final ForkJoinPool pool = ParallelValidation.pool(threads);
+        final int ahead = Math.max(1, threads) * ENTRIES_AHEAD_PER_THREAD;
+        final List<Future<Entry>> futures = new ArrayList<>();
+        ParallelValidation.Cancellation cancellation = null;
+        try(final ZipFile zipFile = new ZipFile(zip.toFile())) {
+            final List<ZipEntry> zipEntries = entries(zipFile, glob);
+            cancellation = new ParallelValidation.Cancellation(zipEntries.size());
+            final AtomicBoolean[] claims = new AtomicBoolean[zipEntries.size()];     // whether each entry is being validated
+            for (int i = 0; i < claims.length; i++) {
+                claims[i] = new AtomicBoolean();
+            }
+
+            final Map<String, ValidationResult> results = new LinkedHashMap<>();
+            for (int i = 0; i < zipEntries.size(); i++) {
+                while (futures.size() < zipEntries.size() && futures.size() <= i + ahead) {
+                    futures.add(submit(pool, zipFile, zipEntries.get(futures.size()), futures.size(), claims[futures.size()], limit, cancellation));
+                }
+
+                final ZipEntry zipEntry = zipEntries.get(i);
+                Entry entry = claims[i].compareAndSet(false, true) ? null : ParallelValidation.get(futures.get(i));
+                futures.set(i, null);
+                startEntry(handler, zipEntry.getName());
+                if (entry == null || !entry.complete) {
+                    if (entry != null && cancellation.isCancelled(0)) {
+                        rethrowFailure(futures, i + 1);
+                    }
+                    entry = validateEntry(zipFile, zipEntry, new CollectingValidationHandler(handler), 0, i, null);
+                } else {
+                    entry.errors.replay(handler);
+                }
+                final ValidationResult result = new ValidationResult(entry.bytes, entry.errors.getErrorCount(), entry.errors.getFirstByteOffset());
+                endEntry(handler, entry.name, result);
+                results.put(entry.name, result);
+            }
+            return results;
+        } finally {
+            if (cancellation != null) {
+                cancellation.cancel();
+            }
+            for (final Future<Entry> future : futures) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the results of the entries of a zip archive which are
+     * known to be valid, without validating them. The handler is told
+     * of each entry, as it would be were the entries validated.
+     *
+     * @param zip The zip archive
+     * @param glob A glob which the names of the entries
+     * must match, or null for every entry
+     * @param handler A ValidationHandler, which is told the
+     * name of each entry if it is a ZipValidationHandler
+     *
+     * @return the result of each entry, by name, in the order of the entries in the archive
+     */
+    static Map<String, ValidationResult> validEntries(final Path zip, final String glob, final ValidationHandler handler) throws IOException, ValidationException {
+        try(final ZipFile zipFile = new ZipFile(zip.toFile())) {
+            final Map<String, ValidationResult> results = new LinkedHashMap<>();
+            for (final ZipEntry entry : entries(zipFile, glob)) {
+                final ValidationResult result = new ValidationResult(entry.getSize(), 0, -1);
+                startEntry(handler, entry.getName());
+                endEntry(handler, entry.getName(), result);
+                results.put(entry.getName(), result);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Gets the entries of a zip archive, other than
+     * directories, whose names match a glob.
+     */
+    private static List<ZipEntry> entries(final ZipFile zipFile, final String glob) {
+        final PathMatcher matcher = glob == null ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        final List<ZipEntry> zipEntries = new ArrayList<>();
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory() || (matcher != null && !matcher.matches(Paths.get(entry.getName())))) {
+                continue;
+            }
+            zipEntries.add(entry);
+        }
+        return zipEntries;
+    }
+
+    private Future<Entry> submit(final ForkJoinPool pool, final ZipFile zipFile, final ZipEntry zipEntry, final int index, final AtomicBoolean claim, final long limit, final ParallelValidation.Cancellation cancellation) {
+        return pool.submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException, ValidationException {
+                if (!claim.compareAndSet(false, true)) {
+                    return null;    // the calling thread is validating the entry
+                }
+                try {
+                    return validateEntry(zipFile, zipEntry, new CollectingValidationHandler(CollectingValidationHandler.collectLimit(limit)), limit, index, cancellation);
+                } catch(final Throwable t) {
+                    cancellation.cancel();
+                    throw t;
+                }
+            }
+        });
+    }
+
+    /**
+     * Rethrows the exception of the entry which failed, and cancelled
+     * the others, from those from an index.
+     */
+    private static void rethrowFailure(final List<Future<Entry>> futures, final int index) throws IOException, ValidationException {
+        for (int i = index; i < futures.size(); i++) {
+            ParallelValidation.get(futures.get(i));
+        }
+    }
+
+    /**
+     * Validates the uncompressed content of an entry, until the
+     * limit of errors is collected or the validation is cancelled.
+     * An entry which is validated by the calling thread, whose errors
+     * are passed straight on, has no cancellation and is never stopped.
+     * Only an entry which is validated to its end, or which fails, is
+     * counted in the metrics, as one which is stopped is either validated
+     * again or not needed.
+     */
+    private Entry validateEntry(final ZipFile zipFile, final ZipEntry zipEntry, final CollectingValidationHandler errors, final long limit, final int index, final ParallelValidation.Cancellation cancellation) throws IOException, ValidationException {
+        final Entry entry = new Entry(zipEntry.getName(), errors);
+        final ValidationState state = new ValidationState();
+        final PositionTracker tracker = trackPositions ? new PositionTracker(errors) : null;
+        final byte[] buf = new byte[bufferSize];
+        final long start = System.nanoTime();
+        long validateNanos = 0;
+        boolean stopped = false;
+
+        try(final InputStream is = zipFile.getInputStream(zipEntry)) {
+            int len = -1;
+            while (!(stopped = (cancellation != null && cancellation.isCancelled(index)) || errors.isFull())
+                    && (len = is.read(buf, 0, buf.length)) > -1) {
+                final long read = metrics != null ? System.nanoTime() : 0;
+                if (tracker != null) {
+                    tracker.chunk(state.read, buf, 0, len);
+                    engine.validate(state, buf, 0, len, tracker);
+                    tracker.chunkValidated();
+                } else {
+                    engine.validate(state, buf, 0, len, errors);
+                }
+                if (metrics != null) {
+                    validateNanos += System.nanoTime() - read;
+                }
+            }
+            if (stopped) {
+                if (limit > 0 && errors.getErrorCount() >= limit) {
+                    cancellation.cancelAfter(index);
+                }
+            } else {
+                engine.end(state, tracker != null ? tracker : errors);
+                entry.complete = true;
+            }
+        } finally {
+            if (metrics != null && !stopped) {
+                final long nanos = System.nanoTime() - start;
+                metrics.validated(state.read, nanos, nanos - validateNanos, validateNanos);
+                if (!entry.complete) {
+                    metrics.failed();
+                }
+            }
+        }
+
+        entry.bytes = state.read;
+        return entry;
+    }
+
+    /**
+     * Tells a handler that the errors of an entry
+     * follow, if the handler is a ZipValidationHandler.
+     */
+    static void startEntry(final ValidationHandler handler, final String name) throws ValidationException {
+        if (handler instanceof ZipValidationHandler) {
+            ((ZipValidationHandler) handler).startEntry(name);
+        }
+    }
+
+    /**
+     * Tells a handler that the errors of an entry have
+     * been reported, if the handler is a ZipValidationHandler.
+     */
+    static void endEntry(final ValidationHandler handler, final String name, final ValidationResult result) throws ValidationException {
+        if (handler instanceof ZipValidationHandler) {
+            ((ZipValidationHandler) handler).endEntry(name, result);
+        }
+    }
+
+    private static final class Entry {
+        final String name;
+        final CollectingValidationHandler errors;
+        long bytes;
+        boolean complete = false;   // false if the entry stopped before its end
+
+        Entry(final String name, final CollectingValidationHandler errors) {
+            this.name = name;
+            this.errors = errors;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+/**
+ * A ValidationHandler which is also told which entry of
+ * a zip archive the errors that it receives belong to.
+ *
+ * The entries are validated in parallel, but their errors are
+ * reported in the order of the entries in the archive, each between
+ * a call to {@link #startEntry(String)} and a call to
+ * {@link #endEntry(String, ValidationResult)}. The byte offset of
+ * an error is within the uncompressed content of its entry.
+ *
+ * @author agent <agent@local>
+ *
+ * @see Utf8Validator#validateZip(java.nio.file.Path)
+ */
+public interface ZipValidationHandler extends ValidationHandler {
+
+   /**
+    * Called before the errors of an entry are reported,
+    * by default it does nothing.
+    *
+    * @param name The name of the entry in the archive
+    *
+    * @throws ValidationException, an implementation may choose to throw a
+    * ValidationException, which stops the Utf8Validator
+    */
+    default void startEntry(final String name) throws ValidationException {
+    }
+
+   /**
+    * Called after the errors of an entry have been reported,
+    * by default it does nothing.
+    *
+    * @param name The name of the entry in the archive
+    * @param result The result of validating the entry
+    *
+    * @throws ValidationException, an implementation may choose to throw a
+    * ValidationException, which stops the Utf8Validator
+    */
+    default void endEntry(final String name, final ValidationResult result) throws ValidationException {
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author agent <agent@local>
+ */
+public class AsyncValidationTest {
+
+    private static final byte[][] FRAGMENTS = {
+            {0x78}, {(byte)0xC2, (byte)0xA9}, {(byte)0xE2, (byte)0x82, (byte)0xAC},
+            {(byte)0xF0, (byte)0x9F, (byte)0x80, (byte)0xB0}
+    };
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void sameErrorsAsSequential() throws IOException, ValidationException, InterruptedException, ExecutionException {
+        final Random random = new Random(2011);
+        for (int n = 0; n < 50; n++) {
+            final File f = randomFile(random, random.nextInt(3000), n % 2 == 0 ? 0 : 1 + random.nextInt(300));
+            final int bufferSize = 1 + random.nextInt(100);
+            for (final ValidationEngine engine : new ValidationEngine[] { new MaskValidationEngine(), new DfaValidationEngine() }) {
+                final List<String> expected = new ArrayList<>();
+                new Utf8Validator(engine, false, bufferSize, collect(expected)).validate(f);
+
+                final List<String> actual = new ArrayList<>();
+                final ValidationResult result = new Utf8Validator(engine, false, bufferSize, collect(actual)).validateAsync(f).get();
+                assertEquals(expected, actual);
+                assertEquals(f.length(), result.getByteCount());
+                assertEquals(expected.size(), result.getErrorCount());
+                assertEquals(expected.isEmpty(), result.isValid());
+            }
+        }
+    }
+
+    @Test
+    public void concurrentValidations() throws IOException, ValidationException, InterruptedException, ExecutionException {
+        final Random random = new Random(2011);
+        final Utf8Validator validator = new Utf8Validator(64, new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+            }
+        });
+
+        final List<File> files = new ArrayList<>();
+        final List<CompletableFuture<ValidationResult>> results = new ArrayList<>();
+        for (int n = 0; n < 8; n++) {
+            final File f = randomFile(random, 5000 + random.nextInt(5000), 1 + random.nextInt(300));
+            files.add(f);
+            results.add(validator.validateAsync(f));
+        }
+
+        for (int n = 0; n < files.size(); n++) {
+            final List<String> expected = new ArrayList<>();
+            new Utf8Validator(64, collect(expected)).validate(files.get(n));
+
+            final ValidationResult result = results.get(n).get();
+            assertEquals(files.get(n).length(), result.getByteCount());
+            assertEquals(expected.size(), result.getErrorCount());
+        }
+    }
+
+    @Test
+    public void emptyFile() throws IOException, InterruptedException, ExecutionException {
+        final ValidationResult result = new Utf8Validator(new PrintingValidationHandler(true, System.out)).validateAsync(tempFolder.newFile()).get();
+        assertTrue(result.isValid());
+        assertEquals(0, result.getByteCount());
+    }
+
+    @Test
+    public void failFast() throws IOException, InterruptedException {
+        final File f = randomFile(new Random(2011), 10000, 100);
+        try {
+            new Utf8Validator(16, new PrintingValidationHandler(true, System.out)).validateAsync(f).get();
+            fail("Expected ExecutionException");
+        } catch (final ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof ValidationException);
+        }
+    }
+
+    @Test
+    public void missingFile() throws InterruptedException {
+        try {
+            new Utf8Validator(new PrintingValidationHandler(true, System.out)).validateAsync(new File(tempFolder.getRoot(), "missing")).get();
+            fail("Expected ExecutionException");
+        } catch (final ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IOException);
+        }
+    }
+
+    private File randomFile(final Random random, final int len, final int invalidOneIn) throws IOException {
+        final File f = tempFolder.newFile();
+        try (final OutputStream os = new FileOutputStream(f)) {
+            for (int i = 0; i < len; i++) {
+                if (invalidOneIn > 0 && random.nextInt(invalidOneIn) == 0) {
+                    os.write(random.nextInt(256));
+                } else {
+                    os.write(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+                }
+            }
+        }
+        return f;
+    }
+
+    private static ValidationHandler collect(final List<String> errors) {
+        return new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset + ": " + message);
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author agent <agent@local>
+ */
+public class BoundedValidationHandlerTest {
+
+    @Test
+    public void consecutiveErrorsAreMergedIntoRuns() throws ValidationException {
+        final byte[] data = { 0x61, (byte)0x80, (byte)0x81, (byte)0x82, 0x62, (byte)0x83, 0x63, (byte)0xFF, (byte)0xFE };
+        final List<String> errors = new ArrayList<>();
+        final BoundedValidationHandler bounded = new BoundedValidationHandler(collect(errors), 0);
+
+        new Utf8Validator(new DfaValidationEngine(), bounded).validate(data, 0, data.length);
+        assertEquals(2, errors.size());
+        bounded.flush();
+
+        assertEquals(Arrays.asList(
+                "2: Invalid run of 3 bytes",
+                "6: " + ErrorKind.INVALID_SINGLE_BYTE.message(1, 1),
+                "8: Invalid run of 2 bytes"), errors);
+        assertEquals(6, bounded.getErrorCount());
+    }
+
+    @Test
+    public void runsHavePositionOfFirstError() throws ValidationException {
+        //"a\nb", 3 stray continuation bytes
+        final byte[] data = { 0x61, 0x0A, 0x62, (byte)0x80, (byte)0x81, (byte)0x82 };
+        final List<String> errors = new ArrayList<>();
+        final BoundedValidationHandler bounded = new BoundedValidationHandler(new PositionValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset + ": " + message);
+            }
+
+            @Override
+            public void error(final String message, final long byteOffset, final long line, final long column) {
+                errors.add(byteOffset + " " + line + ":" + column + ": " + message);
+            }
+        }, 0);
+
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), bounded);
+        validator.setTrackPositions(true);
+        validator.validate(data, 0, data.length);
+        bounded.flush();
+
+        assertEquals(Arrays.asList("4 2:2: Invalid run of 3 bytes"), errors);
+    }
+
+    @Test
+    public void stopsAfterMaxErrors() {
+        final byte[] data = new byte[1000];
+        Arrays.fill(data, (byte)0xFF);
+        data[10] = 0x61;
+        final List<String> errors = new ArrayList<>();
+        final BoundedValidationHandler bounded = new BoundedValidationHandler(collect(errors), 50);
+
+        try {
+            new Utf8Validator(new DfaValidationEngine(), bounded).validate(data, 0, data.length);
+            fail("Expected ValidationException");
+        } catch (final ValidationException ve) {
+            assertEquals(51L, ve.getByteOffset());
+        }
+        assertEquals(Arrays.asList("1: Invalid run of 10 bytes", "12: Invalid run of 40 bytes"), errors);
+        assertEquals(50, bounded.getErrorCount());
+
+        bounded.reset();
+        assertEquals(0, bounded.getErrorCount());
+    }
+
+    private static ValidationHandler collect(final List<String> errors) {
+        return new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset + ": " + message);
+            }
+        };
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent <agent@local>
+ */
+public class CharacterStatisticsTest {
+
+    private static final String TEXT = "\uFEFFline one\r\nline two ©\rline three €\n😀\r\n\n";
+
+    @Test
+    public void countsText() throws IOException, ValidationException {
+        final byte[] data = TEXT.getBytes(StandardCharsets.UTF_8);
+        for (int bufferSize = 1; bufferSize <= data.length; bufferSize++) {
+            final CharacterStatistics statistics = statistics(data, bufferSize);
+            assertEquals(data.length, statistics.getByteCount());
+            assertEquals(35, statistics.getSequenceCount(1));
+            assertEquals(1, statistics.getSequenceCount(2));
+            assertEquals(2, statistics.getSequenceCount(3));
+            assertEquals(1, statistics.getSequenceCount(4));
+            assertEquals(5, statistics.getLineTerminatorCount());
+            assertTrue(statistics.hasBom());
+            assertFalse(statistics.isAscii());
+        }
+    }
+
+    @Test
+    public void ascii() throws IOException, ValidationException {
+        final byte[] data = "plain\nASCII\r\ntext without a BOM\r".getBytes(StandardCharsets.US_ASCII);
+        final CharacterStatistics statistics = statistics(data, 8192);
+        assertTrue(statistics.isAscii());
+        assertFalse(statistics.hasBom());
+        assertEquals(3, statistics.getLineTerminatorCount());
+    }
+
+    @Test
+    public void sameInAnyChunks() throws IOException, ValidationException {
+        final Random random = new Random(2011);
+        final byte[] choices = { 0x0A, 0x0D, 0x61, (byte)0xC3, (byte)0xA9, (byte)0xE2, (byte)0xF0, (byte)0xFF };
+        for (int n = 0; n < 100; n++) {
+            final byte[] data = new byte[random.nextInt(200)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = choices[random.nextInt(choices.length)];
+            }
+
+            final CharacterStatistics whole = new CharacterStatistics();
+            whole.count(ByteBuffer.wrap(data));
+            assertEquals(whole.toString(), statistics(data, 1 + random.nextInt(20)).toString());
+            assertEquals(naiveLineTerminatorCount(data), whole.getLineTerminatorCount());
+        }
+    }
+
+    private static CharacterStatistics statistics(final byte[] data, final int bufferSize) throws IOException, ValidationException {
+        final CharacterStatistics statistics = new CharacterStatistics();
+        final Utf8Validator validator = new Utf8Validator(bufferSize, new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+            }
+        });
+        validator.setCharacterStatistics(statistics);
+        validator.validate(new ByteArrayInputStream(data));
+        return statistics;
+    }
+
+    private static long naiveLineTerminatorCount(final byte[] data) {
+        long count = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n' || (data[i] == '\r' && (i + 1 == data.length || data[i + 1] != '\n'))) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
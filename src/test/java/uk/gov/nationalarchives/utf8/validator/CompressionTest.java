@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author agent <agent@local>
+ */
+public class CompressionTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void detect() throws IOException {
+        assertEquals(Compression.GZIP, detect(gzip(new byte[0])));
+        assertEquals(Compression.ZLIB, detect(zlib(new byte[0])));
+        assertEquals(Compression.ZIP, detect(new byte[] { 0x50, 0x4B, 0x03, 0x04, 0x14, 0x00 }));
+        assertEquals(Compression.BZIP2, detect("BZh91AY&SY....".getBytes("US-ASCII")));
+        assertEquals(Compression.ZSTD, detect(new byte[] { 0x28, (byte)0xB5, 0x2F, (byte)0xFD, 0x00 }));
+        assertEquals(Compression.XZ, detect(new byte[] { (byte)0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00, 0x00 }));
+    }
+
+    @Test
+    public void textIsNotCompressed() throws IOException {
+        assertEquals(Compression.NONE, detect("x^2 + y^2".getBytes("US-ASCII")));
+        assertEquals(Compression.NONE, detect("BZh is not bzip2".getBytes("US-ASCII")));
+        assertEquals(Compression.NONE, detect("PK".getBytes("US-ASCII")));
+        assertEquals(Compression.NONE, detect(new byte[0]));
+        assertEquals(Compression.NONE, detect(new byte[] { 0x78, (byte)0x9D }));     // bad checksum
+        assertEquals(Compression.NONE, detect(new byte[] { 0x78, (byte)0xBB }));     // preset dictionary
+    }
+
+    @Test
+    public void textWhichStartsLikeZlib() throws IOException, ValidationException {
+        // "x" then U+0680, whose UTF-8 encoding is DA 80
+        final byte[] data = "x\u0680 is valid UTF-8 text, not a zlib stream".getBytes("UTF-8");
+        assertEquals(Compression.ZLIB, detect(data));
+
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), data);
+        assertEquals(Compression.NONE, Compression.detect(f));
+
+        final List<Long> errors = new ArrayList<>();
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), collect(errors));
+        validator.setDecompress(true);
+        validator.validate(f);
+        assertTrue(errors.isEmpty());
+
+        // a longer file whose deflated data is not valid
+        final byte[] longer = new byte[200000];
+        Arrays.fill(longer, (byte)'x');
+        System.arraycopy(data, 0, longer, 0, data.length);
+        Files.write(f.toPath(), longer);
+        assertEquals(Compression.NONE, Compression.detect(f));
+    }
+
+    @Test
+    public void detectsZlibFile() throws IOException {
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), zlib(content()));
+        assertEquals(Compression.ZLIB, Compression.detect(f));
+
+        Files.write(f.toPath(), zlib(new byte[0]));
+        assertEquals(Compression.ZLIB, Compression.detect(f));
+
+        // longer than is inflated to detect it
+        final byte[] random = new byte[300000];
+        new Random(2011).nextBytes(random);
+        Files.write(f.toPath(), zlib(random));
+        assertEquals(Compression.ZLIB, Compression.detect(f));
+    }
+
+    @Test
+    public void validatesDecompressedContent() throws IOException, ValidationException {
+        final byte[] data = content();
+        final List<Long> expected = errors(data, null);
+
+        assertEquals(expected, errors(gzip(data), Compression.GZIP));
+        assertEquals(expected, errors(zlib(data), Compression.ZLIB));
+
+        // concatenated gzip members, as written by e.g. pigz or appending with cat
+        final ByteArrayOutputStream members = new ByteArrayOutputStream();
+        members.write(gzip(Arrays.copyOf(data, 100000)));
+        members.write(gzip(Arrays.copyOfRange(data, 100000, data.length)));
+        assertEquals(expected, errors(members.toByteArray(), Compression.GZIP));
+    }
+
+    @Test
+    public void notDecompressedByDefault() throws IOException, ValidationException {
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), gzip("valid".getBytes("UTF-8")));
+        final List<Long> errors = new ArrayList<>();
+        new Utf8Validator(new DfaValidationEngine(), collect(errors)).validate(f);
+        assertTrue(!errors.isEmpty());
+    }
+
+    @Test
+    public void unsupportedFormat() throws IOException, ValidationException {
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), "BZh91AY&SY....".getBytes("US-ASCII"));
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), collect(new ArrayList<Long>()));
+        validator.setDecompress(true);
+        try {
+            validator.validate(f);
+            fail("Expected IOException");
+        } catch (final IOException ioe) {
+            assertTrue(ioe.getMessage().contains("BZIP2"));
+        }
+    }
+
+    @Test
+    public void corruptInput() throws IOException, ValidationException {
+        final byte[] gzip = gzip(content());
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), Arrays.copyOf(gzip, gzip.length / 2));
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), collect(new ArrayList<Long>()));
+        validator.setDecompress(true);
+        try {
+            validator.validate(f);
+            fail("Expected IOException");
+        } catch (final IOException ioe) {
+            // truncated gzip
+        }
+    }
+
+    @Test
+    public void async() throws IOException, InterruptedException, ExecutionException {
+        final byte[] data = content();
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), gzip(data));
+        final List<Long> errors = new ArrayList<>();
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), collect(errors));
+        validator.setDecompress(true);
+
+        final ValidationResult result = validator.validateAsync(f).get();
+        assertEquals(data.length, result.getByteCount());
+        assertEquals(2, result.getErrorCount());
+        assertEquals(errors.get(0).longValue(), result.getFirstErrorOffset());
+    }
+
+    /**
+     * 'x' repeated, with a stray continuation byte in
+     * each of the first and the last read ahead buffers
+     */
+    private static byte[] content() {
+        final byte[] data = new byte[300000];
+        Arrays.fill(data, (byte)0x78);
+        data[1000] = (byte)0xA9;
+        data[299000] = (byte)0xA9;
+        return data;
+    }
+
+    private List<Long> errors(final byte[] data, final Compression expected) throws IOException, ValidationException {
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), data);
+        assertEquals(expected == null ? Compression.NONE : expected, Compression.detect(f));
+
+        final List<Long> errors = new ArrayList<>();
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), collect(errors));
+        validator.setDecompress(true);
+        validator.validate(f);
+        return errors;
+    }
+
+    private static Compression detect(final byte[] data) {
+        return Compression.detect(data, Math.min(data.length, Compression.HEADER_SIZE));
+    }
+
+    private static byte[] gzip(final byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream os = new GZIPOutputStream(bytes)) {
+            os.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] zlib(final byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream os = new DeflaterOutputStream(bytes)) {
+            os.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ValidationHandler collect(final List<Long> errors) {
+        return new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset);
+            }
+        };
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author agent <agent@local>
+ */
+public class DfaValidationEngineTest {
+
+    @Test
+    public void overlongTwoByteChar() {
+        //'x' encoded in two bytes
+        assertEquals(1L, firstError(0xC1, 0xB8));
+    }
+
+    @Test
+    public void overlongThreeByteChar() {
+        //'copyright symbol' encoded in three bytes
+        assertEquals(2L, firstError(0xE0, 0x82, 0xA9));
+    }
+
+    @Test
+    public void overlongFourByteChar() {
+        //'euro symbol' encoded in four bytes
+        assertEquals(2L, firstError(0xF0, 0x82, 0x82, 0xAC));
+    }
+
+    @Test
+    public void surrogate() {
+        //high surrogate U+D800
+        assertEquals(2L, firstError(0xED, 0xA0, 0x80));
+    }
+
+    @Test
+    public void aboveMaximumCodePoint() {
+        //U+110000
+        assertEquals(2L, firstError(0xF4, 0x90, 0x80, 0x80));
+    }
+
+    @Test
+    public void maximumCodePoint() {
+        //U+10FFFF
+        assertEquals(-1L, firstError(0xF4, 0x8F, 0xBF, 0xBF));
+    }
+
+    @Test
+    public void brokenSequenceRestartsAtOffendingByte() {
+        //first byte from 'euro symbol' followed by 'copyright symbol'
+        assertEquals(Arrays.asList(2L), errors(0xE2, 0xC2, 0xA9));
+    }
+
+    @Test
+    public void agreesWithJdkDecoder() {
+        final Random random = new Random(20111);
+        final byte[] fragments[] = {
+                {0x78}, {(byte)0xC2, (byte)0xA9}, {(byte)0xE2, (byte)0x82, (byte)0xAC},
+                {(byte)0xF0, (byte)0x9F, (byte)0x80, (byte)0xB0}, {(byte)0xED, (byte)0x9F, (byte)0xBF}
+        };
+
+        for (int n = 0; n < 10000; n++) {
+            final ByteBuffer buf = ByteBuffer.allocate(64);
+            while (buf.remaining() >= 4) {
+                if (random.nextInt(16) == 0) {
+                    buf.put((byte) random.nextInt(256));
+                } else {
+                    buf.put(fragments[random.nextInt(fragments.length)]);
+                }
+            }
+            final byte[] data = new byte[buf.position()];
+            buf.flip();
+            buf.get(data);
+
+            assertEquals(jdkValid(data), errors(data).isEmpty());
+        }
+    }
+
+    private static boolean jdkValid(final byte[] data) {
+        try {
+            Charset.forName("UTF-8").newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(data));
+            return true;
+        } catch (final CharacterCodingException cce) {
+            return false;
+        }
+    }
+
+    private static long firstError(final int... bytes) {
+        final List<Long> errorOffsets = errors(bytes);
+        return errorOffsets.isEmpty() ? -1 : errorOffsets.get(0);
+    }
+
+    private static List<Long> errors(final int... bytes) {
+        final byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return errors(data);
+    }
+
+    private static List<Long> errors(final byte[] data) {
+        final List<Long> errorOffsets = new ArrayList<Long>();
+        try {
+            new Utf8Validator(new DfaValidationEngine(), new ValidationHandler() {
+                @Override
+                public void error(final String message, final long byteOffset) {
+                    errorOffsets.add(byteOffset);
+                }
+            }).validate(data, 0, data.length);
+        } catch (final ValidationException ve) {
+            throw new IllegalStateException(ve);
+        }
+        return errorOffsets;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent <agent@local>
+ */
+public class JsonLinesValidationHandlerTest {
+
+    @Test
+    public void recordsForErrorsAndFile() throws ValidationException {
+        final byte[] data = { 0x61, (byte)0xC3, 0x62, (byte)0xE2, (byte)0x82 };
+        final StringWriter output = new StringWriter();
+        final JsonLinesValidationHandler handler = new JsonLinesValidationHandler(false, output);
+
+        handler.startFile("dir/\"quoted\"\\name\t.txt");
+        new Utf8Validator(new DfaValidationEngine(), handler).validate(data, 0, data.length);
+        handler.endFile(data.length, 2000000, null);
+
+        final String[] lines = output.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("{\"type\":\"error\",\"path\":\"dir/\\\"quoted\\\"\\\\name\\t.txt\",\"offset\":3,\"kind\":\"INVALID_SEQUENCE\",\"sequenceLength\":2,\"sequencePosition\":2,"
+                + "\"message\":\"" + ErrorKind.INVALID_SEQUENCE.message(2, 2) + "\"}", lines[0]);
+        assertTrue(lines[1].startsWith("{\"type\":\"error\",\"path\":\"dir/\\\"quoted\\\"\\\\name\\t.txt\",\"offset\":5,\"kind\":\"TRUNCATED_SEQUENCE\","));
+        assertTrue(lines[2].startsWith("{\"type\":\"file\",\"path\":\"dir/\\\"quoted\\\"\\\\name\\t.txt\",\"valid\":false,\"errors\":2,\"bytes\":5,\"durationMs\":2.0,\"mibPerSecond\":"));
+    }
+
+    @Test
+    public void validFileWithStatistics() throws ValidationException {
+        final byte[] data = { 0x61, 0x0A };
+        final StringWriter output = new StringWriter();
+        final JsonLinesValidationHandler handler = new JsonLinesValidationHandler(false, output);
+        final CharacterStatistics statistics = new CharacterStatistics();
+        final Utf8Validator validator = new Utf8Validator(handler);
+        validator.setCharacterStatistics(statistics);
+
+        handler.startFile("a.txt");
+        validator.validate(data, 0, data.length);
+        handler.endFile(data.length, 0, statistics);
+
+        assertEquals("{\"type\":\"file\",\"path\":\"a.txt\",\"valid\":true,\"errors\":0,\"bytes\":2,\"durationMs\":0.0,\"mibPerSecond\":0,"
+                + "\"sequences\":[2,0,0,0],\"lineTerminators\":1,\"bom\":false,\"ascii\":true}\n", output.toString());
+    }
+
+    @Test
+    public void errorPositions() throws ValidationException {
+        //"a\n", 'e acute', stray continuation byte
+        final byte[] data = { 0x61, 0x0A, (byte)0xC3, (byte)0xA9, (byte)0xA9 };
+        final StringWriter output = new StringWriter();
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), new JsonLinesValidationHandler(false, output));
+        validator.setTrackPositions(true);
+        validator.validate(data, 0, data.length);
+
+        assertTrue(output.toString().startsWith("{\"type\":\"error\",\"offset\":5,\"line\":2,\"column\":2,\"kind\":\"INVALID_SINGLE_BYTE\","));
+    }
+
+    @Test
+    public void errorEntries() throws ValidationException {
+        final StringWriter output = new StringWriter();
+        final JsonLinesValidationHandler handler = new JsonLinesValidationHandler(false, output);
+
+        handler.startFile("a.zip");
+        handler.startEntry("dir/b.txt");
+        handler.error(ErrorKind.INVALID_SINGLE_BYTE, 1, 1, 7);
+        handler.endEntry("dir/b.txt", new ValidationResult(10, 1, 7));
+        handler.error("Not in an entry", 1);
+
+        final String[] lines = output.toString().split("\n");
+        assertTrue(lines[0].startsWith("{\"type\":\"error\",\"path\":\"a.zip\",\"entry\":\"dir/b.txt\",\"offset\":7,"));
+        assertTrue(lines[1].startsWith("{\"type\":\"error\",\"path\":\"a.zip\",\"offset\":1,"));
+    }
+
+    @Test(expected = ValidationException.class)
+    public void failFast() throws ValidationException {
+        final byte[] data = { (byte)0xFF };
+        new Utf8Validator(new JsonLinesValidationHandler(true, new StringWriter())).validate(data, 0, data.length);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author agent <agent@local>
+ */
+public class ParallelValidationTest {
+
+    private static final byte[][] FRAGMENTS = {
+            {0x78}, {0x0D}, {0x0A}, {(byte)0xC2, (byte)0xA9}, {(byte)0xE2, (byte)0x82, (byte)0xAC},
+            {(byte)0xF0, (byte)0x9F, (byte)0x80, (byte)0xB0}
+    };
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void sameErrorsAsSequentialOnValidFile() throws IOException, ValidationException {
+        sameErrorsAsSequential(0);
+    }
+
+    @Test
+    public void sameErrorsAsSequentialOnSparselyInvalidFile() throws IOException, ValidationException {
+        sameErrorsAsSequential(300);
+    }
+
+    @Test
+    public void sameErrorsAsSequentialOnDenselyInvalidFile() throws IOException, ValidationException {
+        sameErrorsAsSequential(3);
+    }
+
+    @Test(expected = ValidationException.class)
+    public void failFast() throws IOException, ValidationException {
+        final File f = randomFile(new Random(2011), 10000, 100);
+        new ParallelValidation(new MaskValidationEngine(), 64)
+                .validate(f, 4, 8, new PrintingValidationHandler(true, System.out), null);
+    }
+
+    @Test
+    public void boundedSameErrorsAsSequential() throws IOException, ValidationException {
+        final File f = randomFile(new Random(2011), 100000, 10);
+        for (final long maxErrors : new long[] { 1, 7, 100, 1000000 }) {
+            final List<String> expected = new ArrayList<>();
+            String expectedStop = null;
+            try {
+                new Utf8Validator(new DfaValidationEngine(), false, 64, null).validate(f, new BoundedValidationHandler(collect(expected), maxErrors));
+            } catch (final ValidationException ve) {
+                expectedStop = ve.getMessage();
+            }
+
+            final List<String> actual = new ArrayList<>();
+            String actualStop = null;
+            try {
+                new ParallelValidation(new DfaValidationEngine(), 64).validate(f, 4, 8, new BoundedValidationHandler(collect(actual), maxErrors), null);
+            } catch (final ValidationException ve) {
+                actualStop = ve.getMessage();
+            }
+            assertEquals(expected, actual);
+            assertEquals(expectedStop, actualStop);
+        }
+    }
+
+    @Test
+    public void handlerWhichDoesNotStop() throws IOException, ValidationException {
+        final File f = randomFile(new Random(2011), 10000, 10);
+        final List<String> expected = new ArrayList<>();
+        new Utf8Validator(new DfaValidationEngine(), false, 64, null).validate(f, collect(expected));
+
+        final List<String> actual = new ArrayList<>();
+        final ValidationHandler collector = collect(actual);
+        new ParallelValidation(new DfaValidationEngine(), 64).validate(f, 4, 8, new StoppingValidationHandler() {
+            @Override
+            public long getErrorLimit() {
+                return 3;
+            }
+
+            @Override
+            public void error(final String message, final long byteOffset) throws ValidationException {
+                collector.error(message, byteOffset);
+            }
+        }, null);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void moreErrorsThanARegionCollects() throws IOException, ValidationException {
+        final File f = tempFolder.newFile();
+        final byte[] data = new byte[(int) CollectingValidationHandler.MAX_COLLECTED_ERRORS * 20];
+        Arrays.fill(data, (byte)0xFF);
+        Files.write(f.toPath(), data);
+
+        final List<String> expected = new ArrayList<>();
+        new Utf8Validator(new DfaValidationEngine(), false, 1024, null).validate(f, collect(expected));
+
+        final List<String> actual = new ArrayList<>();
+        new ParallelValidation(new DfaValidationEngine(), 1024).validate(f, 4, 8, collect(actual), null);
+        assertEquals(data.length, actual.size());
+        assertEquals(expected, actual);
+    }
+
+    @Test(expected = InternalError.class)
+    public void errorIsRethrown() throws IOException, ValidationException {
+        final File f = randomFile(new Random(2011), 10000, 0);
+        final ValidationEngine engine = new MaskValidationEngine();
+        new ParallelValidation(new ValidationEngine() {
+            @Override
+            public void validate(final ValidationState state, final byte[] buf, final int off, final int len, final ValidationHandler handler) throws ValidationException {
+                if (state.read > 5000) {
+                    throw new InternalError();
+                }
+                engine.validate(state, buf, off, len, handler);
+            }
+
+            @Override
+            public void validate(final ValidationState state, final ByteBuffer buf, final ValidationHandler handler) throws ValidationException {
+                engine.validate(state, buf, handler);
+            }
+
+            @Override
+            public void end(final ValidationState state, final ValidationHandler handler) throws ValidationException {
+                engine.end(state, handler);
+            }
+        }, 64).validate(f, 4, 8, collect(new ArrayList<String>()), null);
+    }
+
+    private void sameErrorsAsSequential(final int invalidOneIn) throws IOException, ValidationException {
+        final Random random = new Random(2011 + invalidOneIn);
+        for (int n = 0; n < 50; n++) {
+            final File f = randomFile(random, random.nextInt(5000), invalidOneIn);
+            final int bufferSize = 1 + random.nextInt(100);
+            for (final ValidationEngine engine : new ValidationEngine[] { new MaskValidationEngine(), new DfaValidationEngine() }) {
+                final List<String> expected = new ArrayList<>();
+                final CharacterStatistics expectedStatistics = new CharacterStatistics();
+                final Utf8Validator validator = new Utf8Validator(engine, false, bufferSize, collect(expected));
+                validator.setCharacterStatistics(expectedStatistics);
+                validator.validate(f);
+
+                for (final int regions : new int[] { 2, 3, 7, 64 }) {
+                    final List<String> actual = new ArrayList<>();
+                    final CharacterStatistics actualStatistics = new CharacterStatistics();
+                    new ParallelValidation(engine, bufferSize).validate(f, 4, regions, collect(actual), actualStatistics);
+                    assertEquals(expected, actual);
+                    assertEquals(expectedStatistics.toString(), actualStatistics.toString());
+                }
+            }
+        }
+    }
+
+    private File randomFile(final Random random, final int len, final int invalidOneIn) throws IOException {
+        final File f = tempFolder.newFile();
+        try (final OutputStream os = new FileOutputStream(f)) {
+            for (int i = 0; i < len; i++) {
+                if (invalidOneIn > 0 && random.nextInt(invalidOneIn) == 0) {
+                    os.write(random.nextInt(256));
+                } else {
+                    os.write(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+                }
+            }
+        }
+        return f;
+    }
+
+    private static ValidationHandler collect(final List<String> errors) {
+        return new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset + ": " + message);
+            }
+        };
+    }
+}
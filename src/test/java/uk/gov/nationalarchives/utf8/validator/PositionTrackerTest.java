@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author agent <agent@local>
+ */
+public class PositionTrackerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void lineAndColumn() throws IOException, ValidationException {
+        //"ab\n", "x©", stray continuation byte, "\n\n", 'euro symbol' truncated by 'x'
+        final byte[] data = { 0x61, 0x62, 0x0A, 0x78, (byte)0xC2, (byte)0xA9, (byte)0xA9, 0x0A, 0x0A, (byte)0xE2, (byte)0x82, 0x78 };
+        final List<String> errors = new ArrayList<>();
+        validator(1, errors).validate(data, 0, data.length);
+
+        final List<String> expected = new ArrayList<>();
+        expected.add("7 2:3");
+        expected.add("12 4:2");
+        assertEquals(expected, errors);
+    }
+
+    @Test
+    public void truncatedAtEnd() throws IOException, ValidationException {
+        //"a\nbc", first two bytes from 'euro symbol'
+        final byte[] data = { 0x61, 0x0A, 0x62, 0x63, (byte)0xE2, (byte)0x82 };
+        final List<String> errors = new ArrayList<>();
+        validator(4, errors).validate(new ByteArrayInputStream(data));
+        assertEquals("6 2:4", errors.get(0));
+    }
+
+    @Test
+    public void sameAsCounting() throws IOException, ValidationException {
+        final Random random = new Random(42);
+        final byte[] chars = "abc\né€😀\n".getBytes("UTF-8");
+        for (int n = 0; n < 200; n++) {
+            final byte[] data = new byte[random.nextInt(200)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = random.nextInt(50) == 0 ? (byte) random.nextInt(256) : chars[random.nextInt(chars.length)];
+            }
+            final List<String> expected = counted(data);
+
+            for (final int bufferSize : new int[] { 1, 7, 64, 8192 }) {
+                final List<String> errors = new ArrayList<>();
+                final Utf8Validator validator = validator(bufferSize, errors);
+
+                validator.validate(data, 0, data.length);
+                assertEquals(expected, errors);
+
+                errors.clear();
+                validator.validate(new ByteArrayInputStream(data));
+                assertEquals(expected, errors);
+
+                errors.clear();
+                final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+                direct.put(data).flip();
+                validator.validate(direct);
+                assertEquals(expected, errors);
+            }
+        }
+    }
+
+    @Test
+    public void file() throws Exception {
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 80 == 79 ? '\n' : 'x');
+        }
+        data[54321] = (byte)0xFF;
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), data);
+        final List<String> expected = counted(data);
+
+        final List<String> errors = new ArrayList<>();
+        final Utf8Validator validator = validator(1000, errors);
+        validator.validate(f, 4);
+        assertEquals(expected, errors);
+
+        errors.clear();
+        validator.validateAsync(f).get();
+        assertEquals(expected, errors);
+    }
+
+    private static Utf8Validator validator(final int bufferSize, final List<String> errors) {
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), IoMode.CHANNEL, bufferSize, new PositionValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset + " ?:?");
+            }
+
+            @Override
+            public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset, final long line, final long column) {
+                errors.add(byteOffset + " " + line + ":" + column);
+            }
+        });
+        validator.setTrackPositions(true);
+        return validator;
+    }
+
+    /**
+     * The errors, with the positions of them counted a byte at a time.
+     */
+    private static List<String> counted(final byte[] data) throws ValidationException {
+        final List<String> errors = new ArrayList<>();
+        new Utf8Validator(new DfaValidationEngine(), new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+            }
+
+            @Override
+            public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+                // a truncated sequence is at the end of the input
+                final int index = kind == ErrorKind.TRUNCATED_SEQUENCE ? data.length : (int) byteOffset - 1;
+                long line = 1;
+                long column = 1;
+                for (int i = 0; i < index; i++) {
+                    if (data[i] == '\n') {
+                        line++;
+                        column = 1;
+                    } else if ((data[i] & 0xC0) != 0x80) {
+                        column++;
+                    }
+                }
+                errors.add(byteOffset + " " + line + ":" + column);
+            }
+        }).validate(data, 0, data.length);
+        return errors;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author agent <agent@local>
+ */
+public class ReadAheadInputStreamTest {
+
+    @Test
+    public void readsEverything() throws IOException {
+        final byte[] data = new byte[100003];
+        new Random(42).nextBytes(data);
+
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try (final ReadAheadInputStream is = new ReadAheadInputStream(new ByteArrayInputStream(data), 2, 1000)) {
+            final byte[] buf = new byte[777];
+            int len;
+            while ((len = is.read(buf)) > -1) {
+                read.write(buf, 0, len);
+            }
+            assertEquals(-1, is.read());
+            assertEquals(data.length, is.getByteCount());
+        }
+        assertArrayEquals(data, read.toByteArray());
+    }
+
+    @Test
+    public void empty() throws IOException {
+        try (final ReadAheadInputStream is = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), 2, 1000)) {
+            assertEquals(-1, is.read());
+        }
+    }
+
+    @Test
+    public void errorIsThrownToReader() throws IOException {
+        final InputStream failing = new InputStream() {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ >= 2500) {
+                    throw new IOException("Read failed");
+                }
+                return 'x';
+            }
+        };
+
+        try (final ReadAheadInputStream is = new ReadAheadInputStream(failing, 2, 1000)) {
+            int count = 0;
+            try {
+                while (is.read() > -1) {
+                    count++;
+                }
+                fail("Expected IOException");
+            } catch (final IOException ioe) {
+                assertEquals("Read failed", ioe.getMessage());
+            }
+            // the full buffers which were read before the error
+            assertEquals(2000, count);
+        }
+    }
+
+    @Test
+    public void closeStopsReading() throws IOException, InterruptedException {
+        final boolean[] closed = { false };
+        final InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 'x';
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+
+        final ReadAheadInputStream is = new ReadAheadInputStream(endless, 2, 1000);
+        assertEquals('x', is.read());
+        is.close();
+        assertTrue(closed[0]);
+    }
+}
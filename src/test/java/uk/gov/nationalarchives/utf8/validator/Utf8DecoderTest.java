@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author agent <agent@local>
+ */
+public class Utf8DecoderTest {
+
+    private static final String TEXT = "x©€😀 plain ASCII text of more than eight bytes";
+
+    @Test
+    public void decodesValidText() throws ValidationException {
+        final byte[] data = TEXT.getBytes(StandardCharsets.UTF_8);
+        final char[] out = new char[Utf8Decoder.maxChars(data.length)];
+        final Utf8Decoder decoder = new Utf8Decoder(new PrintingValidationHandler(true, System.out));
+
+        int len = decoder.decode(data, 0, data.length, out, 0);
+        len += decoder.end(out, len);
+        assertEquals(TEXT, new String(out, 0, len));
+    }
+
+    @Test
+    public void surrogateDecodedAsReplacements() throws ValidationException {
+        final byte[] data = { (byte)0xED, (byte)0xA0, (byte)0x80, 0x78, (byte)0xED, (byte)0xA0 };
+        final List<String> errors = new ArrayList<>();
+        assertEquals("\uFFFD\uFFFD\uFFFDx\uFFFD\uFFFD", decode(data, errors));
+        assertEquals(3, errors.size());
+
+        assertEquals("\uFFFD\uFFFDa", decode(new byte[] { (byte)0xED, (byte)0xA0, 0x61 }, errors));
+        assertEquals("\uFFFD\uFFFD\uFFFD\uFFFD", decode(new byte[] { (byte)0xED, (byte)0xBF, (byte)0xBF, (byte)0xC0 }, errors));
+        assertEquals("\uFFFDa", decode(new byte[] { (byte)0xED, 0x61 }, errors));
+        assertEquals("\uFFFD", decode(new byte[] { (byte)0xED, (byte)0x9F }, errors));
+    }
+
+    @Test
+    public void sameAsJdkAndDfaValidationEngine() throws ValidationException {
+        final Random random = new Random(2011);
+        for (int n = 0; n < 500; n++) {
+            final byte[] data = randomBytes(random, random.nextInt(300));
+            final String expected = expected(data);
+            final List<String> expectedErrors = new ArrayList<>();
+            new Utf8Validator(new DfaValidationEngine(), collect(expectedErrors)).validate(data, 0, data.length);
+
+            // decode into arrays a chunk at a time
+            final List<String> errors = new ArrayList<>();
+            final Utf8Decoder decoder = new Utf8Decoder(collect(errors));
+            final StringBuilder actual = new StringBuilder();
+            final char[] out = new char[Utf8Decoder.maxChars(data.length)];
+            for (int off = 0; off < data.length; ) {
+                final int len = Math.min(data.length - off, random.nextInt(20));
+                actual.append(out, 0, decoder.decode(data, off, len, out, 0));
+                off += len;
+            }
+            actual.append(out, 0, decoder.end(out, 0));
+            assertEquals(expected, actual.toString());
+            assertEquals(expectedErrors, errors);
+
+            // decode into a small CharBuffer, reusing the decoder
+            errors.clear();
+            decoder.reset();
+            actual.setLength(0);
+            final ByteBuffer in = ByteBuffer.wrap(data);
+            final CharBuffer chars = CharBuffer.allocate(2 + random.nextInt(16));
+            while (in.hasRemaining()) {
+                decoder.decode(in, chars);
+                actual.append(chars.flip());
+                chars.clear();
+            }
+            decoder.end(chars);
+            actual.append(chars.flip());
+            assertEquals(expected, actual.toString());
+            assertEquals(expectedErrors, errors);
+        }
+    }
+
+    private static byte[] randomBytes(final Random random, final int len) {
+        final byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    data[i] = (byte)random.nextInt(256);
+                    break;
+                case 1:
+                    data[i] = (byte)(0x80 | random.nextInt(0x40));
+                    break;
+                case 2:
+                    data[i] = (byte)(0xC0 | random.nextInt(0x40));
+                    break;
+                case 3:
+                    data[i] = (byte)0xED;   // a surrogate, when followed by A0..BF
+                    break;
+                default:
+                    data[i] = (byte)random.nextInt(0x80);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Decodes as the JDK does, other than a surrogate (ED A0..BF),
+     * whose ED is a U+FFFD of its own, as are the continuation bytes
+     * which follow it, rather than the JDK's single U+FFFD.
+     */
+    private static String expected(final byte[] data) {
+        final StringBuilder expected = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < data.length - 1; i++) {
+            if (data[i] == (byte)0xED && (data[i + 1] & 0xE0) == 0xA0) {
+                expected.append(new String(data, start, i - start, StandardCharsets.UTF_8)).append('\uFFFD');
+                start = i + 1;  // the continuation bytes which follow are each decoded as U+FFFD
+            }
+        }
+        return expected.append(new String(data, start, data.length - start, StandardCharsets.UTF_8)).toString();
+    }
+
+    private static String decode(final byte[] data, final List<String> errors) throws ValidationException {
+        final char[] out = new char[Utf8Decoder.maxChars(data.length)];
+        final Utf8Decoder decoder = new Utf8Decoder(collect(errors));
+        int len = decoder.decode(data, 0, data.length, out, 0);
+        len += decoder.end(out, len);
+        return new String(out, 0, len);
+    }
+
+    private static ValidationHandler collect(final List<String> errors) {
+        return new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset + ": " + message);
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author agent <agent@local>
+ */
+public class Utf8ValidatingChannelTest {
+
+    private static final byte[] DATA = { 0x61, (byte)0xC3, (byte)0xA9, (byte)0xFF, (byte)0xE2, (byte)0x82, (byte)0xAC, 0x62, (byte)0xF0, (byte)0x9F };
+
+    @Test
+    public void validatesWhatIsRead() throws IOException {
+        final List<Long> errors = new ArrayList<>();
+        final ByteBuffer dst = ByteBuffer.allocate(DATA.length + 2);
+        dst.put((byte)0xFF);    // already in the buffer, so not validated
+
+        try (final Utf8ValidatingChannel channel = new Utf8ValidatingChannel(Channels.newChannel(new ByteArrayInputStream(DATA)), new DfaValidationEngine(), collect(errors))) {
+            dst.limit(6);
+            assertEquals(5, channel.read(dst));
+            assertEquals(6, dst.position());
+            dst.limit(dst.capacity());
+            while (channel.read(dst) > -1) {
+            }
+            assertEquals(DATA.length, channel.getByteCount());
+            assertEquals(2, errors.size());
+        }
+
+        assertEquals(4L, (long)errors.get(0));
+        assertEquals(2, errors.size());
+        dst.flip().position(1);
+        assertEquals(ByteBuffer.wrap(DATA), dst);
+    }
+
+    @Test
+    public void truncatedSequenceReportedOnClose() throws IOException {
+        final List<Long> errors = new ArrayList<>();
+        final Utf8ValidatingChannel channel = new Utf8ValidatingChannel(Channels.newChannel(new ByteArrayInputStream(DATA)), new DfaValidationEngine(), collect(errors));
+        channel.read(ByteBuffer.allocate(5));
+        assertEquals(1, errors.size());
+        channel.close();
+        assertEquals(2, errors.size());
+    }
+
+    private static ValidationHandler collect(final List<Long> errors) {
+        return new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset);
+            }
+        };
+    }
+}
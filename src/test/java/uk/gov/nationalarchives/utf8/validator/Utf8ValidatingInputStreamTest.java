@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author agent <agent@local>
+ */
+public class Utf8ValidatingInputStreamTest {
+
+    private static final byte[] DATA = { 0x61, (byte)0xC3, (byte)0xA9, (byte)0xFF, (byte)0xE2, (byte)0x82, (byte)0xAC, 0x62 };
+
+    @Test
+    public void validatesWhatIsRead() throws IOException {
+        final List<Long> errors = new ArrayList<>();
+        final byte[] read = new byte[DATA.length];
+        try (final InputStream is = new Utf8ValidatingInputStream(new ByteArrayInputStream(DATA), new DfaValidationEngine(), collect(errors))) {
+            read[0] = (byte)is.read();
+            assertEquals(2, is.read(read, 1, 2));
+            assertEquals(1, is.skip(1));
+            read[3] = DATA[3];
+            int len;
+            int off = 4;
+            while ((len = is.read(read, off, read.length - off)) > 0) {
+                off += len;
+            }
+            assertEquals(-1, is.read());
+        }
+
+        assertArrayEquals(DATA, read);
+        assertEquals(1, errors.size());
+        assertEquals(4L, (long)errors.get(0));
+    }
+
+    @Test
+    public void truncatedSequenceReportedAtEnd() throws IOException {
+        final List<Long> errors = new ArrayList<>();
+        try (final InputStream is = new Utf8ValidatingInputStream(new ByteArrayInputStream(DATA, 0, 6), collect(errors))) {
+            while (is.read(new byte[4]) > -1) {
+            }
+            assertEquals(2, errors.size());
+        }
+        assertEquals(2, errors.size());
+    }
+
+    @Test
+    public void truncatedSequenceReportedOnClose() throws IOException {
+        final List<Long> errors = new ArrayList<>();
+        final InputStream is = new Utf8ValidatingInputStream(new ByteArrayInputStream(DATA), collect(errors));
+        assertEquals(5, is.read(new byte[5]));
+        assertEquals(1, errors.size());
+        is.close();
+        assertEquals(2, errors.size());
+    }
+
+    @Test
+    public void validationExceptionIsCauseOfIOException() throws IOException {
+        try (final InputStream is = new Utf8ValidatingInputStream(new ByteArrayInputStream(DATA), new DfaValidationEngine(), new PrintingValidationHandler(true, System.out))) {
+            while (is.read() > -1) {
+            }
+            fail("Expected IOException");
+        } catch (final IOException ioe) {
+            assertTrue(ioe.getCause() instanceof ValidationException);
+        }
+    }
+
+    private static ValidationHandler collect(final List<Long> errors) {
+        return new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset);
+            }
+        };
+    }
+}
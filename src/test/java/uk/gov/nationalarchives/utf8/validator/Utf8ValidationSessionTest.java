@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent <agent@local>
+ */
+public class Utf8ValidationSessionTest {
+
+    @Test
+    public void sameErrorsAsWholeInputWhenFedInPieces() throws ValidationException {
+        final Random random = new Random(2011);
+        for (int n = 0; n < 200; n++) {
+            final byte[] data = new byte[random.nextInt(2000)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = random.nextInt(8) == 0 ? (byte)random.nextInt(256) : (byte)(0x80 | random.nextInt(0x40));
+                if (random.nextInt(4) == 0) {
+                    data[i] = (byte)(0xC2 + random.nextInt(0x33));
+                }
+            }
+
+            for (final ValidationEngine engine : new ValidationEngine[] { new MaskValidationEngine(), new DfaValidationEngine() }) {
+                final List<String> expected = new ArrayList<>();
+                new Utf8Validator(engine, collect(expected)).validate(data, 0, data.length);
+
+                final List<String> actual = new ArrayList<>();
+                final Utf8ValidationSession session = new Utf8ValidationSession(engine, collect(actual));
+                for (int off = 0; off < data.length; ) {
+                    final int len = Math.min(data.length - off, random.nextInt(20));
+                    if (random.nextInt(3) == 0) {
+                        session.feed(data, off, len);
+                    } else {
+                        final ByteBuffer piece = random.nextBoolean() ? ByteBuffer.allocateDirect(len) : ByteBuffer.allocate(len);
+                        piece.put(data, off, len).flip();
+                        session.feed(piece);
+                        assertEquals(0, piece.remaining());
+                    }
+                    off += len;
+                }
+                assertEquals(data.length, session.getByteCount());
+                session.finish();
+
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void sameErrorsAsWholeInputWhenFedAByteAtATime() throws ValidationException {
+        final Random random = new Random(2012);
+        for (int n = 0; n < 200; n++) {
+            final byte[] data = new byte[random.nextInt(200)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = random.nextBoolean() ? (byte)random.nextInt(0x80) : (byte)random.nextInt(256);
+            }
+
+            for (final ValidationEngine engine : new ValidationEngine[] { new MaskValidationEngine(), new DfaValidationEngine() }) {
+                final List<String> expected = new ArrayList<>();
+                new Utf8Validator(engine, collect(expected)).validate(data, 0, data.length);
+
+                final List<String> actual = new ArrayList<>();
+                final Utf8ValidationSession session = new Utf8ValidationSession(engine, collect(actual));
+                for (final byte b : data) {
+                    session.feed(b);
+                }
+                assertEquals(data.length, session.getByteCount());
+                session.finish();
+
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void truncatedSequenceReportedOnFinish() throws ValidationException {
+        final List<String> errors = new ArrayList<>();
+        final Utf8ValidationSession session = new Utf8Validator(collect(errors)).newSession();
+        session.feed(new byte[] { 0x61, (byte)0xE2, (byte)0x82 }, 0, 3);
+        assertTrue(session.isInSequence());
+        assertTrue(errors.isEmpty());
+
+        session.finish();
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void completedSequence() throws ValidationException {
+        final Utf8ValidationSession session = new Utf8Validator(new PrintingValidationHandler(true, System.out)).newSession();
+        session.feed(ByteBuffer.wrap(new byte[] { (byte)0xE2, (byte)0x82 }));
+        session.feed(ByteBuffer.wrap(new byte[] { (byte)0xAC }));
+        assertFalse(session.isInSequence());
+        session.finish();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void feedAfterFinish() throws ValidationException {
+        final Utf8ValidationSession session = new Utf8Validator(new PrintingValidationHandler(true, System.out)).newSession();
+        session.finish();
+        session.feed(ByteBuffer.allocate(1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void feedOutsideOfTheArray() throws ValidationException {
+        final Utf8ValidationSession session = new Utf8Validator(new PrintingValidationHandler(true, System.out)).newSession();
+        session.feed(new byte[4], 2, 3);
+    }
+
+    private static ValidationHandler collect(final List<String> errors) {
+        return new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset + ": " + message);
+            }
+        };
+    }
+}
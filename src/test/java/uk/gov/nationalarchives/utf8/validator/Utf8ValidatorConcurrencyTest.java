@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent <agent@local>
+ */
+public class Utf8ValidatorConcurrencyTest {
+
+    private static final byte[] DATA = { 0x61, (byte)0xC3, (byte)0xA9, (byte)0xFF, (byte)0xE2, (byte)0x82, (byte)0xAC, 0x62, (byte)0xE2, (byte)0x82 };
+
+    @Test
+    public void sharedBetweenThreads() throws Exception {
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), false, 3, null);
+        final List<Long> expected = validateMany(validator, 1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<List<Long>>() {
+                    @Override
+                    public List<Long> call() throws IOException, ValidationException {
+                        return validateMany(validator, 1000);
+                    }
+                }));
+            }
+            for (final Future<List<Long>> future : futures) {
+                assertEquals(expected, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void reentrantFromHandler() throws IOException, ValidationException {
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), false, 3, null);
+        final List<Long> inner = new ArrayList<>();
+        final List<Long> outer = new ArrayList<>();
+        validator.validate(new ByteArrayInputStream(DATA), new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) throws ValidationException {
+                outer.add(byteOffset);
+                validator.validate(DATA, 0, DATA.length, collect(inner));
+            }
+        });
+
+        assertEquals(expected(), outer);
+        assertEquals(outer.size() * expected().size(), inner.size());
+    }
+
+    @Test
+    public void stateIsNotCarriedBetweenValidations() throws IOException, ValidationException {
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), false, 3, null);
+        final List<Long> errors = new ArrayList<>();
+        validator.validate(DATA, 0, DATA.length, collect(errors));
+        validator.validate(DATA, 0, 1, collect(errors));
+        assertEquals(expected(), errors);
+    }
+
+    @Test
+    public void validatorIsNotKeptReachableByItsThread() throws IOException, ValidationException, InterruptedException {
+        Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), false, 3, null);
+        validator.validate(new ByteArrayInputStream(DATA), collect(new ArrayList<Long>()));
+        final WeakReference<Utf8Validator> reference = new WeakReference<>(validator);
+        validator = null;
+
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+    }
+
+    @Test
+    public void manyValidatorsOnOneThread() throws IOException, ValidationException {
+        final int bufferSize = 256 * 1024;
+        final Runtime runtime = Runtime.getRuntime();
+        final long before = usedMemory(runtime);
+        for (int i = 0; i < 2000; i++) {
+            final List<Long> errors = new ArrayList<>();
+            new Utf8Validator(new DfaValidationEngine(), false, bufferSize, null).validate(new ByteArrayInputStream(DATA), collect(errors));
+            assertEquals(expected(), errors);
+        }
+
+        // 2000 buffers would be 500 MB, if each validator kept its own
+        assertTrue(usedMemory(runtime) - before < 64 * 1024 * 1024);
+    }
+
+    private static long usedMemory(final Runtime runtime) {
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static List<Long> validateMany(final Utf8Validator validator, final int times) throws IOException, ValidationException {
+        final Random random = new Random();
+        final List<Long> errors = new ArrayList<>();
+        for (int i = 0; i < times; i++) {
+            final List<Long> each = new ArrayList<>();
+            if (random.nextBoolean()) {
+                validator.validate(DATA, 0, DATA.length, collect(each));
+            } else {
+                validator.validate(new ByteArrayInputStream(DATA), collect(each));
+            }
+            if (i == 0) {
+                errors.addAll(each);
+            } else {
+                assertEquals(errors, each);
+            }
+        }
+        return errors;
+    }
+
+    private static List<Long> expected() {
+        final List<Long> expected = new ArrayList<>();
+        expected.add(4L);
+        expected.add(10L);
+        return expected;
+    }
+
+    private static ValidationHandler collect(final List<Long> errors) {
+        return new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset);
+            }
+        };
+    }
+}
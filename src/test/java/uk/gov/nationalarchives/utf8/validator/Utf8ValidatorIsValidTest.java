@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent <agent@local>
+ */
+public class Utf8ValidatorIsValidTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void valid() throws IOException {
+        final byte[] data = "x©€😀x".getBytes("UTF-8");
+        assertTrue(Utf8Validator.isValid(data));
+        assertTrue(Utf8Validator.isValid(ByteBuffer.wrap(data)));
+        assertEquals(-1, Utf8Validator.firstInvalidOffset(data));
+        assertTrue(Utf8Validator.isValid(new byte[0]));
+    }
+
+    @Test
+    public void invalid() {
+        //'x', stray continuation byte, 'x'
+        final byte[] data = { 0x78, (byte)0xA9, 0x78 };
+        assertFalse(Utf8Validator.isValid(data));
+        assertEquals(1, Utf8Validator.firstInvalidOffset(data));
+        assertTrue(Utf8Validator.isValid(data, 2, 1));
+        assertEquals(0, Utf8Validator.firstInvalidOffset(data, 1, 2));
+    }
+
+    @Test
+    public void invalidFirstByte() {
+        final byte[] data = { (byte)0xFF, 0x78 };
+        assertEquals(0, Utf8Validator.firstInvalidOffset(data));
+        assertEquals(0, Utf8Validator.firstInvalidOffset(ByteBuffer.wrap(data)));
+        assertEquals(-1, Utf8Validator.firstInvalidOffset(data, 1, 1));
+    }
+
+    @Test
+    public void rfc3629() {
+        assertFalse(Utf8Validator.isValid(new byte[] { (byte)0xC0, (byte)0x80 }));                          // overlong
+        assertFalse(Utf8Validator.isValid(new byte[] { (byte)0xED, (byte)0xA0, (byte)0x80 }));              // surrogate
+        assertFalse(Utf8Validator.isValid(new byte[] { (byte)0xF4, (byte)0x90, (byte)0x80, (byte)0x80 }));  // above U+10FFFF
+    }
+
+    @Test
+    public void truncated() {
+        //'x', first two bytes from 'euro symbol'
+        final byte[] data = { 0x78, (byte)0xE2, (byte)0x82 };
+        assertEquals(2, Utf8Validator.firstInvalidOffset(data));
+    }
+
+    @Test
+    public void byteBufferPositionUnchanged() {
+        final byte[] data = { 0x78, 0x78, (byte)0xA9, 0x78 };
+        final ByteBuffer heap = ByteBuffer.wrap(data);
+        heap.position(1);
+        assertEquals(1, Utf8Validator.firstInvalidOffset(heap));
+        assertEquals(1, heap.position());
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertEquals(2, Utf8Validator.firstInvalidOffset(direct));
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void sameAsDfaEngine() throws IOException {
+        final Random random = new Random(42);
+        for (int n = 0; n < 2000; n++) {
+            final byte[] data = "x©€😀x0123456789abcdef".getBytes("UTF-8");
+            final byte[] mutated = Arrays.copyOf(data, random.nextInt(data.length + 1));
+            if (mutated.length > 0 && random.nextBoolean()) {
+                mutated[random.nextInt(mutated.length)] = (byte) random.nextInt(256);
+            }
+            final long reported = firstReported(mutated);
+            assertEquals(reported == -1 ? -1 : reported - 1, Utf8Validator.firstInvalidOffset(mutated));
+        }
+    }
+
+    @Test
+    public void path() throws IOException {
+        // an error in the second of the chunks which the file is read in
+        final byte[] data = new byte[200000];
+        Arrays.fill(data, (byte)0x78);
+        data[70000] = (byte)0xE2;
+        data[70001] = (byte)0x82;
+        data[70002] = (byte)0xAC;
+        data[150000] = (byte)0xFF;
+
+        final Path file = tempFolder.newFile().toPath();
+        Files.write(file, data);
+        assertFalse(Utf8Validator.isValid(file));
+        assertEquals(150000, Utf8Validator.firstInvalidOffset(file));
+
+        data[150000] = 0x78;
+        // a sequence which spans the first two chunks
+        data[65535] = (byte)0xC2;
+        data[65536] = (byte)0xA9;
+        Files.write(file, data);
+        assertTrue(Utf8Validator.isValid(file));
+    }
+
+    private static long firstReported(final byte[] data) {
+        final long[] first = { -1 };
+        try {
+            new Utf8Validator(new DfaValidationEngine(), new ValidationHandler() {
+                @Override
+                public void error(final String message, final long byteOffset) throws ValidationException {
+                    first[0] = byteOffset;
+                    throw new ValidationException(message, byteOffset);
+                }
+            }).validate(data, 0, data.length);
+        } catch (final ValidationException ve) {
+            // stopped at the first error
+        }
+        return first[0];
+    }
+}
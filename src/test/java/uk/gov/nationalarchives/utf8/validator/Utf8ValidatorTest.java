@@ -30,12 +30,21 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
 /**
  * @author Adam Retter <adam.retter@googlemail.com>
  */
@@ -44,108 +53,254 @@ public class Utf8ValidatorTest {
     @Parameterized.Parameters(name = "{0}")
     public static java.util.Collection<Object[]> data() {
         return Arrays.asList(new Object[][]{
-                {"classic", false},
-                {"memory-mapped", true}
+                {"classic", IoMode.STREAM, 8192, new MaskValidationEngine()},
+                {"classic-one-byte-buffer", IoMode.STREAM, 1, new MaskValidationEngine()},
+                {"memory-mapped", IoMode.MAPPED, 8192, new MaskValidationEngine()},
+                {"memory-mapped-one-byte-buffer", IoMode.MAPPED, 1, new MaskValidationEngine()},
+                {"channel", IoMode.CHANNEL, 8192, new MaskValidationEngine()},
+                {"channel-one-byte-buffer", IoMode.CHANNEL, 1, new MaskValidationEngine()},
+                {"dfa-classic", IoMode.STREAM, 8192, new DfaValidationEngine()},
+                {"dfa-classic-one-byte-buffer", IoMode.STREAM, 1, new DfaValidationEngine()},
+                {"dfa-memory-mapped", IoMode.MAPPED, 8192, new DfaValidationEngine()},
+                {"dfa-memory-mapped-one-byte-buffer", IoMode.MAPPED, 1, new DfaValidationEngine()},
+                {"dfa-channel", IoMode.CHANNEL, 8192, new DfaValidationEngine()},
+                {"dfa-channel-one-byte-buffer", IoMode.CHANNEL, 1, new DfaValidationEngine()}
         });
     }
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Parameterized.Parameter(value = 0)
     public String name;
 
     @Parameterized.Parameter(value = 1)
-    public boolean memoryMappedIo;
+    public IoMode ioMode;
+
+    @Parameterized.Parameter(value = 2)
+    public int bufferSize;
+
+    @Parameterized.Parameter(value = 3)
+    public ValidationEngine engine;
 
     @Test
     public void validOneByteChar() throws IOException, ValidationException, URISyntaxException {
         //character 'x'
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("valid-one-byte-char.bin"));
     }
 
     @Test(expected = ValidationException.class)
     public void invalidOneByteChar() throws IOException, ValidationException, URISyntaxException {
         //first byte from 'e accute' two byte character
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("invalid-one-byte-char.bin"));
     }
 
     @Test
     public void validTwoByteChar() throws IOException, ValidationException, URISyntaxException {
         //character 'copyright symbol'
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("valid-two-byte-char.bin"));
     }
 
     @Test(expected = ValidationException.class)
     public void invalidTwoByteChar() throws IOException, ValidationException, URISyntaxException {
         //first byte from 'copyright symbol' and then byte from 'x' character
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("invalid-two-byte-char.bin"));
     }
 
     @Test(expected = ValidationException.class)
     public void invalidTwoByteChar2() throws IOException, ValidationException, URISyntaxException {
         //first byte from 'x' character and then first byte from  'copyright symbol'
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("invalid-two-byte-char-2.bin"));
     }
 
     @Test
     public void validThreeByteChar() throws IOException, ValidationException, URISyntaxException {
         //character 'euro symbol'
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("valid-three-byte-char.bin"));
     }
 
     @Test(expected = ValidationException.class)
     public void invalidThreeByteChar() throws IOException, ValidationException, URISyntaxException {
         //first two bytes from 'euro symbol' and then byte from 'x' character
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("invalid-three-byte-char.bin"));
     }
 
     @Test(expected = ValidationException.class)
     public void invalidThreeByteChar2() throws IOException, ValidationException, URISyntaxException {
         //first byte from 'euro symbol', then byte from 'x' character, then second byte from 'euro symbol'
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("invalid-three-byte-char-2.bin"));
     }
 
     @Test(expected = ValidationException.class)
     public void invalidThreeByteChar3() throws IOException, ValidationException, URISyntaxException {
         //byte from character 'x' and the first two bytes from 'euro symbol'
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("invalid-three-byte-char-3.bin"));
     }
 
     @Test
     public void validFourByteChar() throws IOException, ValidationException, URISyntaxException {
         //character 'domino tile horizontal black'
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("valid-four-byte-char.bin"));
     }
 
     @Test(expected = ValidationException.class)
     public void invalidFourByteChar() throws IOException, ValidationException, URISyntaxException {
         //first three bytes from character 'domino tile horizontal black', then the byte from character(x)
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("invalid-four-byte-char.bin"));
     }
 
     @Test(expected = ValidationException.class)
     public void oneInvalidOneByteChar_followedByTwoValidOneByteChars() throws IOException, ValidationException, URISyntaxException {
         //characters: invalid char, 'comma', 'c'
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("invalid-mixed-1.bin"));
     }
 
     @Test(expected = ValidationException.class)
     public void oneValidOneByteChar_oneInvalidOneByteChar_followedByOneValidOneByteChar() throws IOException, ValidationException, URISyntaxException {
         //characters: 'comma', invalid char, 'c'
-        new Utf8Validator(memoryMappedIo, new PrintingValidationHandler(true, System.out))
+        validator(new PrintingValidationHandler(true, System.out))
                 .validate(testResource("invalid-mixed-2.bin"));
     }
 
+    @Test
+    public void validByteArrayRegion() throws ValidationException {
+        //'x', 'euro symbol', 'x' surrounded by bytes which are outside of the region
+        final byte[] data = {(byte)0x92, 0x78, (byte)0xE2, (byte)0x82, (byte)0xAC, 0x78, (byte)0xC3};
+        validator(new PrintingValidationHandler(true, System.out))
+                .validate(data, 1, 5);
+    }
+
+    @Test(expected = ValidationException.class)
+    public void invalidByteArrayRegion() throws ValidationException {
+        //first two bytes from 'euro symbol'
+        final byte[] data = {0x78, (byte)0xE2, (byte)0x82, (byte)0xAC};
+        validator(new PrintingValidationHandler(true, System.out))
+                .validate(data, 1, 2);
+    }
+
+    @Test
+    public void errorOffsetsAfterAsciiRuns() throws ValidationException {
+        //20 x 'x', 'euro symbol', 20 x 'x', invalid char, 10 x 'x'
+        final byte[] data = new byte[54];
+        Arrays.fill(data, (byte)0x78);
+        data[20] = (byte)0xE2;
+        data[21] = (byte)0x82;
+        data[22] = (byte)0xAC;
+        data[43] = (byte)0x92;
+
+        final List<Long> errorOffsets = new ArrayList<Long>();
+        validator(new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errorOffsets.add(byteOffset);
+            }
+        }).validate(data, 0, data.length);
+
+        assertEquals(Arrays.asList(44L), errorOffsets);
+    }
+
+    @Test
+    public void fileErrorOffsetsAcrossBuffersAndWindows() throws IOException, ValidationException {
+        //20 x 'x', 'euro symbol', 20 x 'x', invalid char, 10 x 'x'
+        final byte[] data = new byte[54];
+        Arrays.fill(data, (byte)0x78);
+        data[20] = (byte)0xE2;
+        data[21] = (byte)0x82;
+        data[22] = (byte)0xAC;
+        data[43] = (byte)0x92;
+
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), data);
+
+        final List<Long> errorOffsets = new ArrayList<Long>();
+        validator(new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errorOffsets.add(byteOffset);
+            }
+        }).validate(f);
+
+        assertEquals(Arrays.asList(44L), errorOffsets);
+    }
+
+    @Test
+    public void byteBufferErrorOffsets() throws ValidationException {
+        //'x', 20 x 'x', 'euro symbol', 20 x 'x', invalid char, 10 x 'x', 'x'
+        final byte[] data = new byte[56];
+        Arrays.fill(data, (byte)0x78);
+        data[21] = (byte)0xE2;
+        data[22] = (byte)0x82;
+        data[23] = (byte)0xAC;
+        data[44] = (byte)0x92;
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        final ByteBuffer slice = ByteBuffer.wrap(data, 1, 54).slice();     // has an array offset of 1
+        for (final ByteBuffer buf : Arrays.asList(ByteBuffer.wrap(data, 1, 54), slice, (ByteBuffer) direct.position(1).limit(55))) {
+            final List<Long> errorOffsets = new ArrayList<Long>();
+            validator(new ValidationHandler() {
+                @Override
+                public void error(final String message, final long byteOffset) {
+                    errorOffsets.add(byteOffset);
+                }
+            }).validate(buf);
+
+            assertEquals(Arrays.asList(44L), errorOffsets);
+            assertEquals(buf.limit(), buf.position());
+        }
+    }
+
+    @Test
+    public void errorKind() throws IOException, ValidationException, URISyntaxException {
+        //first two bytes from 'euro symbol' and then byte from 'x' character
+        final List<String> errors = new ArrayList<String>();
+        validator(new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(message);
+            }
+
+            @Override
+            public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+                errors.add(kind + " " + sequencePosition + "/" + sequenceLength + " @ " + byteOffset);
+            }
+        }).validate(testResource("invalid-three-byte-char.bin"));
+
+        assertEquals(Arrays.asList("INVALID_SEQUENCE 3/3 @ 3"), errors);
+    }
+
+    @Test
+    public void errorMessage() throws IOException, URISyntaxException {
+        //first two bytes from 'euro symbol' and then byte from 'x' character
+        try {
+            validator(new PrintingValidationHandler(true, System.out))
+                    .validate(testResource("invalid-three-byte-char.bin"));
+            fail("Expected a ValidationException");
+        } catch(final ValidationException ve) {
+            assertEquals("Invalid UTF-8 sequence, byte 3 of 3 byte sequence. @ byte position: 3", ve.getMessage());
+            assertEquals(ErrorKind.INVALID_SEQUENCE, ve.getErrorKind());
+        }
+    }
+
+    private Utf8Validator validator(final ValidationHandler handler) {
+        final Utf8Validator validator = new Utf8Validator(engine, ioMode, bufferSize, handler);
+        // map as small a window as is buffered, so that sequences span windows
+        validator.setMappedWindowSize(bufferSize);
+        return validator;
+    }
+
     private File testResource(final String filename) throws URISyntaxException {
         final URL resource = getClass().getResource(filename);
         return new File(resource.toURI());
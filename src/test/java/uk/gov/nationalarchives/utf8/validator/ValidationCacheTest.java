@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent <agent@local>
+ */
+public class ValidationCacheTest {
+
+    private static final byte[] VALID = { 0x61, (byte)0xC3, (byte)0xA9, 0x62 };
+    private static final byte[] INVALID = { 0x61, 0x62, (byte)0xA9, 0x62 };
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void unchangedValidFileIsSkipped() throws IOException, ValidationException {
+        final File f = write(tempFolder.newFile(), VALID);
+        final ValidationCache cache = new ValidationCache(tempFolder.getRoot().toPath().resolve("cache"), 100);
+        final List<Long> errors = new ArrayList<>();
+        final Utf8Validator validator = validator(cache, errors);
+
+        validator.validate(f);
+        assertTrue(cache.get(f, new MaskValidationEngine()).isValid());
+
+        // make the file invalid, but with the same size and last modified time
+        final FileTime lastModified = Files.getLastModifiedTime(f.toPath());
+        write(f, INVALID);
+        Files.setLastModifiedTime(f.toPath(), lastModified);
+        validator.validate(f);
+        assertTrue(errors.isEmpty());
+
+        // a different engine does not use the outcome
+        assertNull(cache.get(f, new DfaValidationEngine()));
+
+        // the file changed
+        Files.setLastModifiedTime(f.toPath(), FileTime.fromMillis(lastModified.toMillis() + 2000));
+        assertNull(cache.get(f, new MaskValidationEngine()));
+        validator.validate(f);
+        assertEquals(1, errors.size());
+        assertEquals(3L, cache.get(f, new MaskValidationEngine()).getFirstErrorOffset());
+    }
+
+    @Test
+    public void invalidFileIsValidatedAgain() throws IOException, ValidationException {
+        final File f = write(tempFolder.newFile(), INVALID);
+        final ValidationCache cache = new ValidationCache(tempFolder.getRoot().toPath().resolve("cache"), 100);
+        final List<Long> errors = new ArrayList<>();
+        final Utf8Validator validator = validator(cache, errors);
+
+        validator.validate(f);
+        validator.validate(f, 2);
+        assertEquals(2, errors.size());
+        assertFalse(cache.get(f, new MaskValidationEngine()).isValid());
+    }
+
+    @Test
+    public void savedAndLoaded() throws IOException, ValidationException {
+        final Path cacheFile = tempFolder.getRoot().toPath().resolve("cache");
+        final File valid = write(tempFolder.newFile(), VALID);
+        final File invalid = write(tempFolder.newFile(), INVALID);
+
+        final ValidationCache cache = new ValidationCache(cacheFile, 100);
+        final Utf8Validator validator = validator(cache, new ArrayList<Long>());
+        validator.validate(valid);
+        validator.validate(invalid);
+        cache.save();
+
+        final ValidationCache loaded = new ValidationCache(cacheFile, 100);
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.get(valid, new MaskValidationEngine()).isValid());
+        assertEquals(3L, loaded.get(invalid, new MaskValidationEngine()).getFirstErrorOffset());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException, ValidationException {
+        final ValidationCache cache = new ValidationCache(tempFolder.getRoot().toPath().resolve("cache"), 2);
+        final Utf8Validator validator = validator(cache, new ArrayList<Long>());
+        final File first = write(tempFolder.newFile(), VALID);
+        final File second = write(tempFolder.newFile(), VALID);
+        final File third = write(tempFolder.newFile(), VALID);
+
+        validator.validate(first);
+        validator.validate(second);
+        cache.get(first, new MaskValidationEngine());
+        validator.validate(third);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.get(first, new MaskValidationEngine()).isValid());
+        assertNull(cache.get(second, new MaskValidationEngine()));
+    }
+
+    @Test
+    public void decompressedContentIsCachedApart() throws IOException, ValidationException {
+        final File f = tempFolder.newFile();
+        try (final OutputStream os = new GZIPOutputStream(new FileOutputStream(f))) {
+            os.write(VALID);
+        }
+        final ValidationCache cache = new ValidationCache(tempFolder.getRoot().toPath().resolve("cache"), 100);
+        final List<Long> errors = new ArrayList<>();
+
+        final Utf8Validator decompressing = validator(cache, errors);
+        decompressing.setDecompress(true);
+        decompressing.validate(f);
+        assertTrue(errors.isEmpty());
+        assertNull(cache.get(f, new MaskValidationEngine()));
+
+        // the bytes of the file are not valid, whatever its content
+        validator(cache, errors).validate(f);
+        assertFalse(errors.isEmpty());
+    }
+
+    @Test
+    public void zipEntriesAreCachedByGlob() throws IOException, ValidationException {
+        final File zip = tempFolder.newFile();
+        try (final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+            zos.putNextEntry(new ZipEntry("a.txt"));
+            zos.write(VALID);
+            zos.putNextEntry(new ZipEntry("b.bin"));
+            zos.write(INVALID);
+        }
+        final ValidationCache cache = new ValidationCache(tempFolder.getRoot().toPath().resolve("cache"), 100);
+        final List<Long> errors = new ArrayList<>();
+        final Utf8Validator validator = validator(cache, errors);
+
+        validator.validateZip(zip.toPath(), "*.txt", 2);
+        final Map<String, ValidationResult> cached = validator.validateZip(zip.toPath(), "*.txt", 2);
+        assertTrue(errors.isEmpty());
+        assertEquals(1, cached.size());
+        assertEquals(VALID.length, cached.get("a.txt").getByteCount());
+
+        // another glob does not use the outcome
+        validator.validateZip(zip.toPath(), null, 2);
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void earlierVersionIsNotLoaded() throws IOException {
+        final Path cacheFile = tempFolder.getRoot().toPath().resolve("cache");
+        Files.write(cacheFile, new byte[] { 0x55, 0x54, 0x46, 0x38, 0, 0, 0, 1, 0, 0, 0, 1 });
+        assertEquals(0, new ValidationCache(cacheFile, 100).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void notACache() throws IOException {
+        new ValidationCache(write(tempFolder.newFile(), VALID).toPath(), 100);
+    }
+
+    private static Utf8Validator validator(final ValidationCache cache, final List<Long> errors) {
+        final Utf8Validator validator = new Utf8Validator(new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(byteOffset);
+            }
+        });
+        validator.setCache(cache);
+        return validator;
+    }
+
+    private static File write(final File f, final byte[] data) throws IOException {
+        Files.write(f.toPath(), data);
+        return f;
+    }
+}
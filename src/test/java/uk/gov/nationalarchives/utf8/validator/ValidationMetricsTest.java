@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent <agent@local>
+ */
+public class ValidationMetricsTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void sizeBuckets() {
+        assertEquals(0, ValidationMetrics.sizeBucket(0));
+        assertEquals(0, ValidationMetrics.sizeBucket(4095));
+        assertEquals(1, ValidationMetrics.sizeBucket(4096));
+        assertEquals(4, ValidationMetrics.sizeBucket(256L * 1024 * 1024 - 1));
+        assertEquals(5, ValidationMetrics.sizeBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void latencyBuckets() {
+        assertEquals(0, ValidationMetrics.latencyBucket(999));
+        assertEquals(1, ValidationMetrics.latencyBucket(1000));
+        assertEquals(2, ValidationMetrics.latencyBucket(2000));
+        assertEquals(2, ValidationMetrics.latencyBucket(3999));
+        assertEquals(31, ValidationMetrics.latencyBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void countsEachKindOfValidation() throws IOException, ValidationException {
+        final ValidationMetrics metrics = new ValidationMetrics();
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), IoMode.CHANNEL, 4, new IgnoringHandler());
+        validator.setMetrics(metrics);
+
+        final byte[] data = { 'a', 'b', (byte)0xFF, 'c', 'd', (byte)0xC3 };
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), data);
+
+        validator.validate(data, 0, data.length);
+        validator.validate(ByteBuffer.wrap(data));
+        validator.validate(new ByteArrayInputStream(data));
+        validator.validate(f);
+
+        assertEquals(4, metrics.getValidations());
+        assertEquals(0, metrics.getFailures());
+        assertEquals(4 * data.length, metrics.getBytes());
+        assertEquals(8, metrics.getErrors());
+        assertEquals(Long.valueOf(4), metrics.getErrorsByKind().get(ErrorKind.INVALID_SINGLE_BYTE.name()));
+        assertEquals(Long.valueOf(4), metrics.getErrorsByKind().get(ErrorKind.TRUNCATED_SEQUENCE.name()));
+        assertEquals(Long.valueOf(0), metrics.getErrorsByKind().get("OTHER"));
+        assertEquals(4, count(metrics.getLatencyHistograms().get("<4KB")));
+        assertTrue(metrics.getTotalTimeNanos() >= metrics.getReadTimeNanos() + metrics.getValidateTimeNanos());
+
+        metrics.reset();
+        assertEquals(0, metrics.getValidations());
+        assertEquals(0, metrics.getErrors());
+        assertEquals(0, count(metrics.getLatencyHistograms().get("<4KB")));
+    }
+
+    @Test
+    public void countsAValidationStoppedByAnError() {
+        final ValidationMetrics metrics = new ValidationMetrics();
+        final Utf8Validator validator = new Utf8Validator(new PrintingValidationHandler(true, System.out));
+        validator.setMetrics(metrics);
+
+        final byte[] data = { (byte)0xFF, 'a' };
+        try {
+            validator.validate(data, 0, data.length);
+        } catch (final ValidationException ve) {
+            // expected
+        }
+
+        assertEquals(1, metrics.getValidations());
+        assertEquals(1, metrics.getFailures());
+        assertEquals(1, metrics.getErrors());
+    }
+
+    @Test
+    public void countsOnlyTheBytesOfAParallelValidationWhichWereValidated() throws IOException {
+        final ValidationMetrics metrics = new ValidationMetrics();
+        final Utf8Validator validator = new Utf8Validator(new PrintingValidationHandler(true, System.out));
+        validator.setMetrics(metrics);
+
+        final byte[] data = new byte[4 * 1024 * 1024];
+        Arrays.fill(data, (byte)'a');
+        data[100] = (byte)0xFF;
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), data);
+        try {
+            validator.validate(f, 4);
+        } catch (final ValidationException ve) {
+            // expected
+        }
+
+        assertEquals(1, metrics.getValidations());
+        assertEquals(1, metrics.getFailures());
+        assertTrue(String.valueOf(metrics.getBytes()), metrics.getBytes() > 100 && metrics.getBytes() < data.length);
+    }
+
+    @Test
+    public void timesTheReadsAndValidationOfAnAsynchronousValidation() throws IOException, InterruptedException, ExecutionException {
+        final ValidationMetrics metrics = new ValidationMetrics();
+        final Utf8Validator validator = new Utf8Validator(64 * 1024, new IgnoringHandler());
+        validator.setMetrics(metrics);
+
+        final byte[] data = new byte[4 * 1024 * 1024];
+        Arrays.fill(data, (byte)'a');
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), data);
+        validator.validateAsync(f).get();
+
+        assertEquals(1, metrics.getValidations());
+        assertEquals(data.length, metrics.getBytes());
+        assertTrue(metrics.getReadTimeNanos() > 0);
+        assertTrue(metrics.getValidateTimeNanos() > 0);
+        assertTrue(metrics.getTotalTimeNanos() >= metrics.getReadTimeNanos() + metrics.getValidateTimeNanos());
+    }
+
+    @Test
+    public void exposedOverJmx() throws JMException {
+        final ValidationMetrics metrics = new ValidationMetrics();
+        metrics.validated(1024, 5000, 1000, 4000);
+        metrics.error(ErrorKind.INVALID_SEQUENCE);
+
+        final ObjectName name = metrics.register("test");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertEquals(1L, server.getAttribute(name, "Validations"));
+            assertEquals(1024L, server.getAttribute(name, "Bytes"));
+            assertEquals(1L, server.getAttribute(name, "Errors"));
+            assertTrue(server.getAttribute(name, "ErrorsByKind") instanceof TabularData);
+            assertTrue(server.getAttribute(name, "LatencyHistograms") instanceof TabularData);
+
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "Validations"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void throughputOfConcurrentValidations() {
+        final ValidationMetrics metrics = new ValidationMetrics();
+        // two validations of 1MB which each took 1s, and ended just now, so ran at the same time
+        metrics.validated(1024 * 1024, 1000000000L, 0, 0);
+        metrics.validated(1024 * 1024, 1000000000L, 0, 0);
+
+        assertEquals(2000000000L, metrics.getTotalTimeNanos());
+        assertEquals(1000000000L, metrics.getElapsedTimeNanos(), 100000000L);
+        assertEquals(2.0, metrics.getMegabytesPerSecond(), 0.2);
+
+        metrics.reset();
+        assertEquals(0, metrics.getElapsedTimeNanos());
+        assertEquals(0.0, metrics.getMegabytesPerSecond(), 0.0);
+    }
+
+    @Test
+    public void summary() {
+        final ValidationMetrics metrics = new ValidationMetrics();
+        for (int i = 0; i < 99; i++) {
+            metrics.validated(100, 10000, 0, 0);      // 10us
+        }
+        metrics.validated(100, 1000000, 0, 0);        // 1ms
+
+        final String[] lines = metrics.toString().split(System.lineSeparator());
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("validations: 100, failures: 0, bytes: 10000, "));
+        assertEquals("latency of <4KB (100): p50 <16us, p90 <16us, p99 <16us, max <1ms", lines[1]);
+    }
+
+    private static long count(final long[] histogram) {
+        long count = 0;
+        for (final long c : histogram) {
+            count += c;
+        }
+        return count;
+    }
+
+    private static class IgnoringHandler implements ValidationHandler {
+        @Override
+        public void error(final String message, final long byteOffset) {
+        }
+    }
+}
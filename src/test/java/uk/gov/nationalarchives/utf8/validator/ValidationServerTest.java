@@ -0,0 +1,239 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author agent <agent@local>
+ */
+public class ValidationServerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ValidationServer server;
+    private ValidationClient client;
+
+    @Before
+    public void start() throws IOException {
+        server = new ValidationServer(tempFolder.getRoot().toPath(), 0, 2, new Supplier<ValidationServer.RequestValidator>() {
+            @Override
+            public ValidationServer.RequestValidator get() {
+                return new PrintingRequestValidator();
+            }
+        });
+        server.start();
+        client = new ValidationClient(tempFolder.getRoot().toPath(), server.getPort());
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    public void validFile() throws IOException {
+        final File f = file(new byte[] { 'a', 'b', 'c' });
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(ExitCode.OK, client.validate(f, out));
+        assertEquals("Validating: " + f.getPath() + System.lineSeparator(), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void invalidFile() throws IOException {
+        final File f = file(new byte[] { 'a', (byte)0xFF });
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(ExitCode.VALIDATION_ERROR, client.validate(f, out));
+        assertEquals("Validating: " + f.getPath() + System.lineSeparator()
+                + "[ERROR] " + ErrorKind.INVALID_SINGLE_BYTE.message(1, 1) + " @ byte position: 2" + System.lineSeparator(), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void missingFile() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(ExitCode.INVALID_ARGS, client.validate(new File(tempFolder.getRoot(), "missing.txt"), out));
+    }
+
+    @Test
+    public void manyRequestsReuseTheServer() throws IOException {
+        final File valid = file(new byte[] { 'a' });
+        final File invalid = file(new byte[] { (byte)0xC0 });
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0 ? ExitCode.OK : ExitCode.VALIDATION_ERROR, client.validate(i % 2 == 0 ? valid : invalid, new ByteArrayOutputStream()));
+        }
+    }
+
+    @Test
+    public void postedBody() throws IOException {
+        final URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), ValidationServer.CONTEXT + "?name=body.txt");
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty(ValidationServer.TOKEN_HEADER, token());
+        connection.setDoOutput(true);
+        try (final OutputStream os = connection.getOutputStream()) {
+            os.write(new byte[] { 'x', (byte)0xFF });
+        }
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(String.valueOf(ExitCode.VALIDATION_ERROR.getCode()), connection.getHeaderField(ValidationServer.EXIT_CODE_HEADER));
+        connection.disconnect();
+    }
+
+    @Test
+    public void requestWithoutTheTokenIsRejected() throws IOException {
+        final File f = file(new byte[] { 'a' });
+        final URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), ValidationServer.CONTEXT + "?path=" + f.getAbsolutePath());
+
+        final HttpURLConnection none = (HttpURLConnection) url.openConnection();
+        assertEquals(401, none.getResponseCode());
+        none.disconnect();
+
+        final HttpURLConnection wrong = (HttpURLConnection) url.openConnection();
+        wrong.setRequestProperty(ValidationServer.TOKEN_HEADER, token().replace(token().charAt(0), token().charAt(0) == 'a' ? 'b' : 'a'));
+        assertEquals(401, wrong.getResponseCode());
+        wrong.disconnect();
+    }
+
+    @Test
+    public void requestForAnotherHostIsRejected() throws IOException {
+        assertEquals("HTTP/1.1 403", statusLine("attacker.example:" + server.getPort()));
+        assertEquals("HTTP/1.1 403", statusLine("127.0.0.1:" + (server.getPort() + 1)));
+        assertEquals("HTTP/1.1 200", statusLine("localhost:" + server.getPort()));
+    }
+
+    @Test
+    public void hostIsLoopback() {
+        assertTrue(ValidationServer.isLoopback("127.0.0.1:8765", 8765));
+        assertTrue(ValidationServer.isLoopback("LocalHost:8765", 8765));
+        assertTrue(ValidationServer.isLoopback("[::1]:8765", 8765));
+        assertFalse(ValidationServer.isLoopback("127.0.0.1", 8765));
+        assertFalse(ValidationServer.isLoopback("localhost.attacker.example:8765", 8765));
+        assertFalse(ValidationServer.isLoopback(null, 8765));
+    }
+
+    @Test
+    public void tokenIsOnlyReadableByTheUser() throws IOException {
+        final Path tokenFile = ValidationServer.tokenFile(tempFolder.getRoot().toPath(), server.getPort());
+        assumeTrue(tokenFile.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile)));
+
+        server.stop(0);
+        assertFalse(Files.exists(tokenFile));
+    }
+
+    @Test(expected = IOException.class)
+    public void noServer() throws IOException {
+        final File f = file(new byte[] { 'a' });
+        server.stop(0);
+        client.validate(f, new ByteArrayOutputStream());
+    }
+
+    private String token() throws IOException {
+        return new String(Files.readAllBytes(ValidationServer.tokenFile(tempFolder.getRoot().toPath(), server.getPort())), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Sends a request with a Host header, which HttpURLConnection does not allow to be set.
+     */
+    private String statusLine(final String host) throws IOException {
+        try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            final String request = "GET " + ValidationServer.CONTEXT + "?path=" + file(new byte[] { 'a' }).getAbsolutePath() + " HTTP/1.1\r\n"
+                    + "Host: " + host + "\r\n"
+                    + ValidationServer.TOKEN_HEADER + ": " + token() + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            final byte[] status = new byte[12];
+            int len = 0;
+            int read;
+            while (len < status.length && (read = socket.getInputStream().read(status, len, status.length - len)) > -1) {
+                len += read;
+            }
+            return new String(status, 0, len, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private File file(final byte[] content) throws IOException {
+        final File f = tempFolder.newFile();
+        Files.write(f.toPath(), content);
+        return f;
+    }
+
+    private static class PrintingRequestValidator implements ValidationServer.RequestValidator {
+        @Override
+        public ExitCode validate(final File f, final OutputStream out) throws IOException {
+            final PrintStream output = new PrintStream(out, true, "UTF-8");
+            output.println("Validating: " + f.getPath());
+            final PrintingValidationHandler handler = new PrintingValidationHandler(false, output);
+            try {
+                new Utf8Validator(new DfaValidationEngine(), handler).validate(f);
+            } catch (final ValidationException ve) {
+                return ExitCode.VALIDATION_ERROR;
+            }
+            return handler.isErrored() ? ExitCode.VALIDATION_ERROR : ExitCode.OK;
+        }
+
+        @Override
+        public ExitCode validate(final String name, final InputStream is, final OutputStream out) throws IOException {
+            final PrintingValidationHandler handler = new PrintingValidationHandler(false, new PrintStream(out, true, "UTF-8"));
+            try {
+                new Utf8Validator(new DfaValidationEngine(), handler).validate(is);
+            } catch (final ValidationException ve) {
+                return ExitCode.VALIDATION_ERROR;
+            }
+            return handler.isErrored() ? ExitCode.VALIDATION_ERROR : ExitCode.OK;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author agent <agent@local>
+ */
+public class ValidationStateTest {
+
+    @Test
+    public void engineUsingOnlyTheAccessors() throws ValidationException {
+        final List<String> errors = new ArrayList<>();
+        final Utf8ValidationSession session = new Utf8ValidationSession(new AsciiValidationEngine(), new ValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                errors.add(message + " @ " + byteOffset);
+            }
+        });
+
+        session.feed(new byte[] { 'a', (byte)0xC3 }, 0, 2);
+        session.feed(ByteBuffer.wrap(new byte[] { (byte)0xA9, 'b' }));
+        session.feed((byte)'c');
+        session.finish();
+        assertEquals(5, session.getByteCount());
+        assertEquals(2, errors.size());
+        assertEquals("not ASCII @ 2", errors.get(0));
+        assertEquals("not ASCII @ 3", errors.get(1));
+    }
+
+    @Test
+    public void reset() {
+        final ValidationState state = new ValidationState();
+        state.setRead(10);
+        state.setMultiByteLen(3);
+        state.setMultiBytesRemain(1);
+        state.setEngineState(7);
+
+        state.reset();
+        assertEquals(0, state.getRead());
+        assertEquals(0, state.getMultiByteLen());
+        assertEquals(0, state.getMultiBytesRemain());
+        assertEquals(0, state.getEngineState());
+    }
+
+    /**
+     * An engine such as might be implemented outside of this
+     * package, which counts the bytes that are not ASCII.
+     */
+    private static class AsciiValidationEngine implements ValidationEngine {
+        @Override
+        public void validate(final ValidationState state, final byte[] data, final int off, final int len, final ValidationHandler handler) throws ValidationException {
+            validate(state, ByteBuffer.wrap(data, off, len), handler);
+        }
+
+        @Override
+        public void validate(final ValidationState state, final ByteBuffer buf, final ValidationHandler handler) throws ValidationException {
+            while (buf.hasRemaining()) {
+                state.setRead(state.getRead() + 1);
+                if (buf.get() < 0) {
+                    handler.error("not ASCII", state.getRead());
+                }
+            }
+        }
+
+        @Override
+        public void end(final ValidationState state, final ValidationHandler handler) {
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author agent <agent@local>
+ */
+public class ZipValidationTest {
+
+    private static final byte[] VALID = "line 1\nline 2 ©\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INVALID = {'a', 'b', '\n', 'c', (byte)0xFF, 'd'};
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void errorsAreReportedByEntryInArchiveOrder() throws IOException, ValidationException {
+        final File zip = zip("a.txt", VALID, "dir/", null, "dir/b.txt", INVALID, "c.bin", INVALID);
+        final EventHandler handler = new EventHandler();
+
+        final Map<String, ValidationResult> results = new Utf8Validator(new DfaValidationEngine(), handler).validateZip(zip.toPath(), null, 4);
+
+        assertEquals(Arrays.asList(
+                "start a.txt", "end a.txt 0",
+                "start dir/b.txt", "error 5", "end dir/b.txt 1",
+                "start c.bin", "error 5", "end c.bin 1"), handler.events);
+        assertEquals(Arrays.asList("a.txt", "dir/b.txt", "c.bin"), new ArrayList<>(results.keySet()));
+        assertTrue(results.get("a.txt").isValid());
+        assertEquals(VALID.length, results.get("a.txt").getByteCount());
+        assertEquals(5, results.get("c.bin").getFirstErrorOffset());
+    }
+
+    @Test
+    public void onlyEntriesMatchingTheGlobAreValidated() throws IOException, ValidationException {
+        final File zip = zip("a.txt", VALID, "dir/b.txt", INVALID, "c.bin", INVALID);
+        final EventHandler handler = new EventHandler();
+
+        final Map<String, ValidationResult> results = new Utf8Validator(handler).validateZip(zip.toPath(), "**.txt", 2);
+        assertEquals(Arrays.asList("a.txt", "dir/b.txt"), new ArrayList<>(results.keySet()));
+
+        final Map<String, ValidationResult> topLevel = new Utf8Validator(handler).validateZip(zip.toPath(), "*.txt", 2);
+        assertEquals(Arrays.asList("a.txt"), new ArrayList<>(topLevel.keySet()));
+    }
+
+    @Test
+    public void sameErrorsWhateverTheNumberOfThreads() throws IOException, ValidationException {
+        final File zip = randomZip(new Random(2011));
+
+        final EventHandler sequential = new EventHandler();
+        new Utf8Validator(sequential).validateZip(zip.toPath(), null, 1);
+        final EventHandler parallel = new EventHandler();
+        new Utf8Validator(parallel).validateZip(zip.toPath(), null, 8);
+
+        assertEquals(sequential.events, parallel.events);
+    }
+
+    @Test
+    public void boundedSameErrorsAsWithoutALimit() throws IOException {
+        final File zip = randomZip(new Random(2012));
+        for (final long maxErrors : new long[] { 1, 50, 1000 }) {
+            // not a StoppingValidationHandler, so every error of each entry is collected
+            final EventHandler unlimited = new EventHandler();
+            final BoundedValidationHandler unlimitedBounded = new BoundedValidationHandler(unlimited, maxErrors);
+            final String unlimitedStop = stopped(zip, 8, new ZipValidationHandler() {
+                @Override
+                public void error(final String message, final long byteOffset) throws ValidationException {
+                    unlimitedBounded.error(message, byteOffset);
+                }
+
+                @Override
+                public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) throws ValidationException {
+                    unlimitedBounded.error(kind, sequenceLength, sequencePosition, byteOffset);
+                }
+
+                @Override
+                public void startEntry(final String name) throws ValidationException {
+                    unlimitedBounded.startEntry(name);
+                }
+
+                @Override
+                public void endEntry(final String name, final ValidationResult result) throws ValidationException {
+                    unlimitedBounded.endEntry(name, result);
+                }
+            });
+
+            for (final int threads : new int[] { 1, 8 }) {
+                final EventHandler limited = new EventHandler();
+                assertEquals(unlimitedStop, stopped(zip, threads, new BoundedValidationHandler(limited, maxErrors)));
+                assertEquals(unlimited.events, limited.events);
+            }
+        }
+    }
+
+    @Test
+    public void handlerWhichDoesNotStop() throws IOException, ValidationException {
+        final File zip = randomZip(new Random(2011));
+        final EventHandler expected = new EventHandler();
+        new Utf8Validator(new DfaValidationEngine(), null).validateZip(zip.toPath(), null, 1, expected);
+
+        final EventHandler actual = new EventHandler();
+        new Utf8Validator(new DfaValidationEngine(), null).validateZip(zip.toPath(), null, 4, new ZipValidationHandler() {
+            @Override
+            public void error(final String message, final long byteOffset) {
+                actual.error(message, byteOffset);
+            }
+
+            @Override
+            public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+                actual.error(kind, sequenceLength, sequencePosition, byteOffset);
+            }
+
+            @Override
+            public void startEntry(final String name) {
+                actual.startEntry(name);
+            }
+
+            @Override
+            public void endEntry(final String name, final ValidationResult result) {
+                actual.endEntry(name, result);
+            }
+        });
+        assertEquals(expected.events, actual.events);
+    }
+
+    @Test
+    public void moreErrorsThanAnEntryCollects() throws IOException, ValidationException {
+        final byte[] content = new byte[(int) CollectingValidationHandler.MAX_COLLECTED_ERRORS * 5];
+        Arrays.fill(content, (byte)0xFF);
+        final File zip = zip("a.bin", content, "b.bin", content, "c.txt", VALID, "d.bin", content);
+
+        final EventHandler handler = new EventHandler();
+        final Map<String, ValidationResult> results = new Utf8Validator(new DfaValidationEngine(), null).validateZip(zip.toPath(), null, 4, handler);
+        assertEquals(content.length, results.get("a.bin").getErrorCount());
+        assertEquals(content.length, results.get("d.bin").getErrorCount());
+        assertEquals(1, results.get("a.bin").getFirstErrorOffset());
+        assertEquals(3 * content.length + 8, handler.events.size());
+        assertEquals("error " + content.length, handler.events.get(content.length));
+    }
+
+    @Test
+    public void positionsAreWithinTheEntry() throws IOException, ValidationException {
+        final File zip = zip("a.txt", VALID, "b.txt", INVALID);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), new PrintingValidationHandler(false, new PrintStream(out, true)));
+        validator.setTrackPositions(true);
+
+        validator.validateZip(zip.toPath());
+
+        assertEquals("[ERROR] Invalid single byte UTF-8 character  @ entry: b.txt, byte position: 5, line: 2, column: 2" + System.lineSeparator(),
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void failFastNamesTheEntry() throws IOException {
+        final File zip = zip("a.txt", VALID, "b.txt", INVALID, "c.txt", INVALID);
+        try {
+            new Utf8Validator(new DfaValidationEngine(), new PrintingValidationHandler(true, System.out)).validateZip(zip.toPath());
+            fail("Expected a ValidationException");
+        } catch (final ValidationException ve) {
+            assertEquals(5, ve.getByteOffset());
+            assertTrue(ve.getMessage(), ve.getMessage().contains("in entry: b.txt"));
+        }
+    }
+
+    @Test
+    public void boundedRunsDoNotSpanEntries() throws IOException, ValidationException {
+        final byte[] invalidEnd = {'a', (byte)0xFF, (byte)0xFF};
+        final byte[] invalidStart = {(byte)0xFF, 'b'};
+        final File zip = zip("a.txt", invalidEnd, "b.txt", invalidStart);
+        final EventHandler handler = new EventHandler();
+        final BoundedValidationHandler bounded = new BoundedValidationHandler(handler, 10);
+
+        new Utf8Validator(new DfaValidationEngine(), bounded).validateZip(zip.toPath());
+
+        assertEquals(Arrays.asList(
+                "start a.txt", "error 2 Invalid run of 2 bytes", "end a.txt 2",
+                "start b.txt", "error 1", "end b.txt 1"), handler.events);
+    }
+
+    @Test
+    public void decompressValidatesTheEntriesOfAZip() throws IOException, ValidationException {
+        final File zip = zip("a.txt", VALID, "b.txt", INVALID);
+        final EventHandler handler = new EventHandler();
+        final Utf8Validator validator = new Utf8Validator(new DfaValidationEngine(), handler);
+
+        validator.validate(zip);
+        assertFalse(handler.events.contains("start a.txt"));
+
+        handler.events.clear();
+        validator.setDecompress(true);
+        validator.validate(zip);
+        assertEquals(Arrays.asList(
+                "start a.txt", "end a.txt 0",
+                "start b.txt", "error 5", "end b.txt 1"), handler.events);
+    }
+
+    private static String stopped(final File zip, final int threads, final ValidationHandler handler) throws IOException {
+        try {
+            new Utf8Validator(new DfaValidationEngine(), null).validateZip(zip.toPath(), null, threads, handler);
+            return null;
+        } catch (final ValidationException ve) {
+            return ve.getMessage();
+        }
+    }
+
+    /**
+     * Creates a zip archive of 100 entries of random bytes.
+     */
+    private File randomZip(final Random random) throws IOException {
+        final Object[] entries = new Object[200];
+        for (int i = 0; i < entries.length; i += 2) {
+            final byte[] content = new byte[random.nextInt(5000)];
+            random.nextBytes(content);
+            entries[i] = "entry-" + i;
+            entries[i + 1] = content;
+        }
+        return zip(entries);
+    }
+
+    /**
+     * Creates a zip archive of names and contents, a null content is a directory.
+     */
+    private File zip(final Object... entries) throws IOException {
+        final File f = tempFolder.newFile();
+        try (final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(f))) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zos.putNextEntry(new ZipEntry((String) entries[i]));
+                if (entries[i + 1] != null) {
+                    zos.write((byte[]) entries[i + 1]);
+                }
+                zos.closeEntry();
+            }
+        }
+        return f;
+    }
+
+    private static class EventHandler implements ZipValidationHandler {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void error(final String message, final long byteOffset) {
+            events.add("error " + byteOffset + " " + message);
+        }
+
+        @Override
+        public void error(final ErrorKind kind, final int sequenceLength, final int sequencePosition, final long byteOffset) {
+            events.add("error " + byteOffset);
+        }
+
+        @Override
+        public void startEntry(final String name) {
+            events.add("start " + name);
+        }
+
+        @Override
+        public void endEntry(final String name, final ValidationResult result) {
+            events.add("end " + name + " " + result.getErrorCount());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Validation Engine which uses the JDK Vector API to
+ * validate a whole vector of 32 or 64 bytes at each step,
+ * after the "lookup" algorithm of Keiser and Lemire's
+ * "Validating UTF-8 In Less Than One Instruction Per Byte".
+ *
+ * Each byte is checked against the byte before it by looking up
+ * the high and low nibbles of the previous byte, and the high
+ * nibble of the byte, in three 16 entry tables of error flags; the
+ * error is the AND of the three. A further check ensures that the
+ * third and fourth bytes of a sequence are continuation bytes.
+ *
+ * Each vector is started on the boundary of a sequence, so
+ * no state is carried between vectors, and when a vector ends
+ * part way through a sequence the next vector starts at that sequence.
+ * As soon as a vector is found to contain an error, or when fewer
+ * bytes than a vector remain, the DfaValidationEngine takes over until
+ * the next boundary, so that exactly the same errors are reported.
+ *
+ * Needs the JVM to be started with "--add-modules jdk.incubator.vector".
+ *
+ * @author agent <agent@local>
+ */
+public class VectorValidationEngine implements ValidationEngine {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final int VECTOR_LENGTH = SPECIES.length();
+
+    // error flags, a pair of bytes is invalid if all three lookups share a flag
+    private static final byte TOO_SHORT =       1 << 0;     // 11______ 0_______ or 11______ 11______
+    private static final byte TOO_LONG =        1 << 1;     // 0_______ 10______
+    private static final byte OVERLONG_3 =      1 << 2;     // 11100000 100_____
+    private static final byte TOO_LARGE =       1 << 3;     // 11110100 1001____ or 11110100 101_____ or 11110101+
+    private static final byte SURROGATE =       1 << 4;     // 11101101 101_____
+    private static final byte OVERLONG_2 =      1 << 5;     // 1100000_ 10______
+    private static final byte TOO_LARGE_1000 =  1 << 6;     // 11110101+ 1000____
+    private static final byte OVERLONG_4 =      1 << 6;     // 11110000 1000____
+    private static final byte TWO_CONTS =       (byte) (1 << 7);   // 10______ 10______
+    private static final byte CARRY = TOO_SHORT | TOO_LONG | TWO_CONTS;
+
+    private static final ByteVector BYTE_1_HIGH = table(
+            // 0_______ ________ ASCII in byte 1
+            TOO_LONG, TOO_LONG, TOO_LONG, TOO_LONG,
+            TOO_LONG, TOO_LONG, TOO_LONG, TOO_LONG,
+            // 10______ ________ continuation in byte 1
+            TWO_CONTS, TWO_CONTS, TWO_CONTS, TWO_CONTS,
+            // 1100____ ________ two byte lead in byte 1
+            TOO_SHORT | OVERLONG_2,
+            // 1101____ ________ two byte lead in byte 1
+            TOO_SHORT,
+            // 1110____ ________ three byte lead in byte 1
+            TOO_SHORT | OVERLONG_3 | SURROGATE,
+            // 1111____ ________ four byte lead in byte 1
+            TOO_SHORT | TOO_LARGE | TOO_LARGE_1000 | OVERLONG_4
+    );
+
+    private static final ByteVector BYTE_1_LOW = table(
+            // ____0000 ________
+            CARRY | OVERLONG_3 | OVERLONG_2 | OVERLONG_4,
+            // ____0001 ________
+            CARRY | OVERLONG_2,
+            // ____001_ ________
+            CARRY,
+            CARRY,
+            // ____0100 ________
+            CARRY | TOO_LARGE,
+            // ____0101 ________
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            // ____011_ ________
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            // ____1___ ________
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            // ____1101 ________
+            CARRY | TOO_LARGE | TOO_LARGE_1000 | SURROGATE,
+            CARRY | TOO_LARGE | TOO_LARGE_1000,
+            CARRY | TOO_LARGE | TOO_LARGE_1000
+    );
+
+    private static final ByteVector BYTE_2_HIGH = table(
+            // ________ 0_______ ASCII in byte 2
+            TOO_SHORT, TOO_SHORT, TOO_SHORT, TOO_SHORT,
+            TOO_SHORT, TOO_SHORT, TOO_SHORT, TOO_SHORT,
+            // ________ 1000____
+            TOO_LONG | OVERLONG_2 | TWO_CONTS | OVERLONG_3 | TOO_LARGE_1000 | OVERLONG_4,
+            // ________ 1001____
+            TOO_LONG | OVERLONG_2 | TWO_CONTS | OVERLONG_3 | TOO_LARGE,
+            // ________ 101_____
+            TOO_LONG | OVERLONG_2 | TWO_CONTS | SURROGATE | TOO_LARGE,
+            TOO_LONG | OVERLONG_2 | TWO_CONTS | SURROGATE | TOO_LARGE,
+            // ________ 11______ lead in byte 2
+            TOO_SHORT, TOO_SHORT, TOO_SHORT, TOO_SHORT
+    );
+
+    private final DfaValidationEngine dfa = new DfaValidationEngine();
+
+    @Override
+    public void validate(final ValidationState state, final byte[] data, final int off, final int len, final ValidationHandler handler) throws ValidationException {
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (state.multiBytesRemain == 0) {
+                final int next = skipValid(data, i, end);
+                state.read += next - i;
+                i = next;
+            }
+
+            // the DFA validates whatever the vectors could not, up to a vector at a time
+            final int dfaLen = Math.min(end - i, VECTOR_LENGTH);
+            dfa.validate(state, data, i, dfaLen, handler);
+            i += dfaLen;
+        }
+    }
+
+    @Override
+    public void validate(final ValidationState state, final ByteBuffer buf, final ValidationHandler handler) throws ValidationException {
+        final int end = buf.limit();
+        while (buf.position() < end) {
+            if (state.multiBytesRemain == 0) {
+                final int i = buf.position();
+                final int next = skipValid(buf, i, end);
+                state.read += next - i;
+                buf.position(next);
+            }
+
+            // the DFA validates whatever the vectors could not, up to a vector at a time
+            final ByteBuffer dfaBuf = buf.duplicate();
+            dfaBuf.limit(Math.min(end, buf.position() + VECTOR_LENGTH));
+            dfa.validate(state, dfaBuf, handler);
+            buf.position(dfaBuf.position());
+        }
+    }
+
+    @Override
+    public void end(final ValidationState state, final ValidationHandler handler) throws ValidationException {
+        dfa.end(state, handler);
+    }
+
+    /**
+     * Skips over whole vectors of valid UTF-8.
+     *
+     * @param data The bytes for UTF-8 validation
+     * @param i The offset in data of the start of a sequence
+     * @param end The offset in data after the last byte to validate
+     *
+     * @return The offset in data of the start of the first sequence
+     * which was not validated
+     */
+    private static int skipValid(final byte[] data, int i, final int end) {
+        while (i <= end - VECTOR_LENGTH) {
+            final ByteVector input = ByteVector.fromArray(SPECIES, data, i);
+            if (!isAscii(input)) {
+                if (hasError(input)) {
+                    break;
+                }
+                i -= incompleteTail(data[i + VECTOR_LENGTH - 3], data[i + VECTOR_LENGTH - 2], data[i + VECTOR_LENGTH - 1]);
+            }
+            i += VECTOR_LENGTH;
+        }
+        return i;
+    }
+
+    private static int skipValid(final ByteBuffer buf, int i, final int end) {
+        while (i <= end - VECTOR_LENGTH) {
+            final ByteVector input = ByteVector.fromByteBuffer(SPECIES, buf, i, ByteOrder.nativeOrder());
+            if (!isAscii(input)) {
+                if (hasError(input)) {
+                    break;
+                }
+                i -= incompleteTail(buf.get(i + VECTOR_LENGTH - 3), buf.get(i + VECTOR_LENGTH - 2), buf.get(i + VECTOR_LENGTH - 1));
+            }
+            i += VECTOR_LENGTH;
+        }
+        return i;
+    }
+
+    private static boolean isAscii(final ByteVector input) {
+        return !input.compare(VectorOperators.LT, (byte) 0).anyTrue();
+    }
+
+    /**
+     * Determines if a vector, which starts on the boundary of
+     * a sequence, contains an error. A sequence which is incomplete
+     * at the end of the vector is not an error.
+     */
+    private static boolean hasError(final ByteVector input) {
+        // the previous 1, 2 and 3 bytes, the vector starts on a boundary so those before it are taken as ASCII
+        final ByteVector prev1 = input.unslice(1);
+        final ByteVector prev2 = input.unslice(2);
+        final ByteVector prev3 = input.unslice(3);
+
+        final ByteVector byte1High = prev1.lanewise(VectorOperators.LSHR, 4).selectFrom(BYTE_1_HIGH);
+        final ByteVector byte1Low = prev1.and((byte) 0x0F).selectFrom(BYTE_1_LOW);
+        final ByteVector byte2High = input.lanewise(VectorOperators.LSHR, 4).selectFrom(BYTE_2_HIGH);
+        final ByteVector specialCases = byte1High.and(byte1Low).and(byte2High);
+
+        // the third and fourth bytes of a sequence must be continuations, which sets TWO_CONTS in specialCases
+        final VectorMask<Byte> mustBeContinuation = prev2.compare(VectorOperators.UNSIGNED_GE, (byte) 0xE0)
+                .or(prev3.compare(VectorOperators.UNSIGNED_GE, (byte) 0xF0));
+        final ByteVector expected = ByteVector.zero(SPECIES).blend(TWO_CONTS, mustBeContinuation);
+
+        return specialCases.compare(VectorOperators.NE, expected).anyTrue();
+    }
+
+    /**
+     * Finds the number of bytes at the end of a vector
+     * which belong to a sequence that continues after it.
+     */
+    private static int incompleteTail(final byte b3, final byte b2, final byte b1) {
+        if ((b1 & 0xC0) == 0xC0) {
+            return 1;                                   // lead byte of any sequence
+        } else if ((b2 & 0xE0) == 0xE0) {
+            return 2;                                   // lead byte of a three or four byte sequence
+        } else if ((b3 & 0xF0) == 0xF0) {
+            return 3;                                   // lead byte of a four byte sequence
+        }
+        return 0;
+    }
+
+    private static ByteVector table(final int... entries) {
+        final byte[] lanes = new byte[VECTOR_LENGTH];
+        for (int i = 0; i < VECTOR_LENGTH; i++) {
+            lanes[i] = (byte) entries[i % entries.length];
+        }
+        return ByteVector.fromArray(SPECIES, lanes, 0);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2011, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.gov.nationalarchives.utf8.validator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent <agent@local>
+ */
+public class VectorValidationEngineTest {
+
+    private static final byte[][] FRAGMENTS = {
+            {0x78}, {0x2C}, {(byte)0xC2, (byte)0xA9}, {(byte)0xE2, (byte)0x82, (byte)0xAC},
+            {(byte)0xF0, (byte)0x9F, (byte)0x80, (byte)0xB0}, {(byte)0xED, (byte)0x9F, (byte)0xBF},
+            {(byte)0xF4, (byte)0x8F, (byte)0xBF, (byte)0xBF}, {(byte)0xE0, (byte)0xA0, (byte)0x80}
+    };
+
+    @Test
+    public void isAvailable() {
+        assertTrue(ValidationEngines.isVectorAvailable());
+        assertTrue(ValidationEngines.fastest() instanceof VectorValidationEngine);
+    }
+
+    @Test
+    public void agreesWithDfaOnValidInput() throws ValidationException {
+        agreesWithDfa(0);
+    }
+
+    @Test
+    public void agreesWithDfaOnSparselyInvalidInput() throws ValidationException {
+        agreesWithDfa(500);
+    }
+
+    @Test
+    public void agreesWithDfaOnDenselyInvalidInput() throws ValidationException {
+        agreesWithDfa(8);
+    }
+
+    @Test
+    public void firstInvalidOffsetAgreesWithDfa() throws ValidationException {
+        final Random random = new Random(2012);
+        for (int n = 0; n < 500; n++) {
+            final byte[] data = randomInput(random, random.nextInt(20000), random.nextBoolean() ? 0 : 1 + random.nextInt(20000));
+            final long[] first = { -1 };
+            final ValidationHandler handler = (message, byteOffset) -> {
+                if (first[0] == -1) {
+                    first[0] = byteOffset - 1;
+                }
+            };
+            final ValidationState state = new ValidationState();
+            new DfaValidationEngine().validate(state, data, 0, data.length, handler);
+            new DfaValidationEngine().end(state, handler);
+
+            assertEquals(first[0], Utf8Validator.firstInvalidOffset(data));
+            assertEquals(first[0], Utf8Validator.firstInvalidOffset(ByteBuffer.wrap(data)));
+            assertEquals(first[0] == -1, Utf8Validator.isValid(data));
+        }
+    }
+
+    private void agreesWithDfa(final int invalidOneIn) throws ValidationException {
+        final Random random = new Random(2011 + invalidOneIn);
+        for (int n = 0; n < 2000; n++) {
+            final byte[] data = randomInput(random, random.nextInt(1024), invalidOneIn);
+            final int chunkSize = 1 + random.nextInt(300);
+
+            final List<String> expected = errors(new DfaValidationEngine(), data, chunkSize, false);
+            assertEquals(expected, errors(new VectorValidationEngine(), data, chunkSize, false));
+            assertEquals(expected, errors(new VectorValidationEngine(), data, chunkSize, true));
+        }
+    }
+
+    private static byte[] randomInput(final Random random, final int len, final int invalidOneIn) {
+        final ByteBuffer buf = ByteBuffer.allocate(len + 4);
+        while (buf.position() < len) {
+            if (invalidOneIn > 0 && random.nextInt(invalidOneIn) == 0) {
+                buf.put((byte) random.nextInt(256));
+            } else if (random.nextBoolean()) {
+                buf.put((byte) 0x61);
+            } else {
+                buf.put(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+        }
+        final byte[] data = new byte[buf.position()];
+        buf.flip();
+        buf.get(data);
+        return data;
+    }
+
+    private static List<String> errors(final ValidationEngine engine, final byte[] data, final int chunkSize, final boolean direct) throws ValidationException {
+        final List<String> errors = new ArrayList<>();
+        final ValidationHandler handler = (message, byteOffset) -> errors.add(byteOffset + ": " + message);
+
+        final ValidationState state = new ValidationState();
+        for (int off = 0; off < data.length; off += chunkSize) {
+            final int len = Math.min(chunkSize, data.length - off);
+            if (direct) {
+                final ByteBuffer buf = ByteBuffer.allocateDirect(len);
+                buf.put(data, off, len).flip();
+                engine.validate(state, buf, handler);
+            } else {
+                engine.validate(state, data, off, len, handler);
+            }
+        }
+        engine.end(state, handler);
+        return errors;
+    }
+}